@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import java.util.EnumSet;
+
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * {@link AsyncNamespaceService} is a future-based variant of the most common
+ * {@link NamespaceService} operations, intended for tools issuing many
+ * independent metadata operations at once.
+ * <p>
+ * Every method returns immediately to the caller. The result, or the
+ * exception the corresponding {@link ClientProtocol} method would have
+ * thrown, is delivered through the returned future. The calls themselves
+ * still block: each one occupies a thread of a bounded pool until its
+ * response arrives, so the number of operations in flight is limited
+ * by the size of the pool.
+ */
+public interface AsyncNamespaceService {
+
+  public ListenableFuture<HdfsFileStatus> getFileInfo(String src);
+
+  public ListenableFuture<Boolean> mkdirs(
+      String src, FsPermission masked, boolean createParent);
+
+  public ListenableFuture<Void> create(
+      String src, FsPermission masked, String clientName,
+      EnumSet<CreateFlag> flag, boolean createParent,
+      short replication, long blockSize);
+
+  public ListenableFuture<Boolean> delete(String src, boolean recursive);
+
+  public ListenableFuture<DirectoryListing> getListing(
+      String src, byte[] startAfter, boolean needLocation);
+}
@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+
+/**
+ * Serialized block list of a file together with an index, which allows
+ * to decode only the blocks overlapping a range of the file.
+ * <p>
+ * The index is stored in its own column of the file row. It has a fixed
+ * size entry per block: the offset of the block in the file, followed by
+ * positions of the block and of its locations in the respective columns.
+ * For rows written without the index it is built on first use.
+ * <p>
+ * The index saves decoding of blocks outside of the range only. The block
+ * and location columns are still read from the row as a whole, since
+ * HBase cannot read part of a cell; reading only the blocks of a range
+ * would require a column per block.
+ */
+public class BlockIndex {
+  private static final int ENTRY_SIZE = 8 + 4 + 4;
+  private static final byte[] EMPTY = new byte[0];
+
+  private final byte[] blocks;
+  private final byte[] locations;
+  private byte[] index;
+  private LocatedBlock lastBlock;
+
+  public BlockIndex(byte[] index, byte[] blocks, byte[] locations) {
+    this.index = index;
+    this.blocks = blocks == null ? EMPTY : blocks;
+    this.locations = locations == null ? EMPTY : locations;
+  }
+
+  /**
+   * Build the index of serialized blocks and their locations.
+   */
+  public static byte[] build(byte[] blocks, byte[] locations)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    int blockPos = 0;
+    int locsPos = 0;
+    while(blockPos < blocks.length) {
+      if(locsPos >= locations.length)
+        throw new IOException("Block list has more entries than locations");
+      UnlocatedBlock block =
+          GiraffaPBHelper.bytesToUnlocatedBlock(blocks, blockPos);
+      out.writeLong(block.getStartOffset());
+      out.writeInt(blockPos);
+      out.writeInt(locsPos);
+      blockPos = GiraffaPBHelper.skipDelimited(blocks, blockPos);
+      locsPos = GiraffaPBHelper.skipDelimited(locations, locsPos);
+    }
+    out.close();
+    return baos.toByteArray();
+  }
+
+  public byte[] getIndexBytes() throws IOException {
+    if(index == null)
+      index = build(blocks, locations);
+    return index;
+  }
+
+  public byte[] getBlocksBytes() {
+    return blocks;
+  }
+
+  public byte[] getLocationsBytes() {
+    return locations;
+  }
+
+  /**
+   * Number of blocks in the file.
+   */
+  public int size() throws IOException {
+    return getIndexBytes().length / ENTRY_SIZE;
+  }
+
+  /**
+   * Decode all blocks of the file.
+   */
+  public List<UnlocatedBlock> getBlocks() throws IOException {
+    return GiraffaPBHelper.bytesToUnlocatedBlocks(blocks);
+  }
+
+  /**
+   * Decode locations of all blocks of the file.
+   */
+  public List<DatanodeInfo[]> getLocations() throws IOException {
+    return GiraffaPBHelper.bytesToBlockLocations(locations);
+  }
+
+  /**
+   * Decode the i-th block and its locations.
+   */
+  public LocatedBlock getLocatedBlock(int i) throws IOException {
+    ByteBuffer entry = ByteBuffer.wrap(getIndexBytes(), i * ENTRY_SIZE,
+        ENTRY_SIZE);
+    entry.getLong();
+    UnlocatedBlock block =
+        GiraffaPBHelper.bytesToUnlocatedBlock(blocks, entry.getInt());
+    return block.toLocatedBlock(
+        GiraffaPBHelper.bytesToBlockLocation(locations, entry.getInt()));
+  }
+
+  /**
+   * @return the last block of the file or null if the file has no blocks
+   */
+  public LocatedBlock getLastBlock() throws IOException {
+    int n = size();
+    if(lastBlock == null && n > 0)
+      lastBlock = getLocatedBlock(n - 1);
+    return lastBlock;
+  }
+
+  /**
+   * File length computed as the end of its last block.
+   */
+  public long getFileLength() throws IOException {
+    LocatedBlock last = getLastBlock();
+    return last == null ? 0 : last.getStartOffset() + last.getBlockSize();
+  }
+
+  /**
+   * Decode blocks overlapping the range of the file, starting with
+   * the block containing the offset. Same as NameNode, returns an empty list
+   * if the offset is beyond the end of the file.
+   */
+  public List<LocatedBlock> getLocatedBlocks(long offset, long length)
+      throws IOException {
+    List<LocatedBlock> result = new ArrayList<LocatedBlock>();
+    int n = size();
+    if(n == 0 || offset >= getFileLength())
+      return result;
+    long end = offset + length;
+    int i = findBlock(offset, n);
+    do {
+      result.add(i == n - 1 ? getLastBlock() : getLocatedBlock(i));
+      i++;
+    } while(i < n && getStartOffset(i) < end);
+    return result;
+  }
+
+  private long getStartOffset(int i) throws IOException {
+    return ByteBuffer.wrap(getIndexBytes()).getLong(i * ENTRY_SIZE);
+  }
+
+  /**
+   * Binary search for the last block starting at or before the offset.
+   */
+  private int findBlock(long offset, int n) throws IOException {
+    int low = 0;
+    int high = n - 1;
+    while(low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if(getStartOffset(mid) <= offset)
+        low = mid;
+      else
+        high = mid - 1;
+    }
+    return low;
+  }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import org.apache.giraffa.GiraffaConstants.FileState;
+
+/**
+ * Usage counters of a directory subtree: the number of files and
+ * directories below the directory, the total length of its files and the
+ * disk space they consume. The counters are stored in the directory row
+ * and are maintained incrementally by namespace operations, which record
+ * their changes atomically with their mutations, see UsageJournal.
+ * <p>
+ * The length of a file is counted once the file is closed.
+ */
+public class DirectoryUsage {
+  public static final DirectoryUsage EMPTY = new DirectoryUsage(0, 0, 0, 0);
+
+  private final long fileCount;
+  private final long directoryCount;
+  private final long length;
+  private final long spaceConsumed;
+
+  public DirectoryUsage(long fileCount, long directoryCount,
+                        long length, long spaceConsumed) {
+    this.fileCount = fileCount;
+    this.directoryCount = directoryCount;
+    this.length = length;
+    this.spaceConsumed = spaceConsumed;
+  }
+
+  /**
+   * Usage contributed to its ancestors by the given node, including
+   * the node itself.
+   */
+  public static DirectoryUsage of(INode node) {
+    if(node.isDir()) {
+      DirectoryUsage usage =
+          node.getUsage() == null ? EMPTY : node.getUsage();
+      return new DirectoryUsage(usage.fileCount, usage.directoryCount + 1,
+          usage.length, usage.spaceConsumed);
+    }
+    if(node.getFileState() != FileState.CLOSED)
+      return new DirectoryUsage(1, 0, 0, 0);
+    return new DirectoryUsage(1, 0, node.getLen(),
+        node.getLen() * node.getReplication());
+  }
+
+  public long getFileCount() {
+    return fileCount;
+  }
+
+  public long getDirectoryCount() {
+    return directoryCount;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public long getSpaceConsumed() {
+    return spaceConsumed;
+  }
+
+  public DirectoryUsage add(DirectoryUsage other) {
+    return new DirectoryUsage(fileCount + other.fileCount,
+        directoryCount + other.directoryCount,
+        length + other.length, spaceConsumed + other.spaceConsumed);
+  }
+
+  public DirectoryUsage negate() {
+    return new DirectoryUsage(-fileCount, -directoryCount,
+        -length, -spaceConsumed);
+  }
+
+  public boolean isEmpty() {
+    return fileCount == 0 && directoryCount == 0 &&
+        length == 0 && spaceConsumed == 0;
+  }
+
+  @Override
+  public String toString() {
+    return "files=" + fileCount + " directories=" + directoryCount +
+        " length=" + length + " space=" + spaceConsumed;
+  }
+}
@@ -36,7 +36,10 @@ public enum FileField {
   BLOCK_SIZE (RowKeyBytes.toBytes("blockSize")),
   BLOCK (RowKeyBytes.toBytes("block")),
   LOCATIONS (RowKeyBytes.toBytes("locations")),
-  FILE_ATTRIBUTES (RowKeyBytes.toBytes("default"));
+  BLOCK_INDEX (RowKeyBytes.toBytes("blockIndex")),
+  DATA (RowKeyBytes.toBytes("data")),
+  FILE_ATTRIBUTES (RowKeyBytes.toBytes("default")),
+  USAGE (RowKeyBytes.toBytes("usage"));
 
   private byte[] bytes = null;
   private FileField(byte[] arg) {this.bytes = arg;}
@@ -84,6 +87,9 @@ public enum FileField {
   public static byte[] getLocations() {
     return LOCATIONS.bytes;
   }
+  public static byte[] getBlockIndex() {
+    return BLOCK_INDEX.bytes;
+  }
   public static byte[] getSymlink() {
     return SYMLINK.bytes;
   }
@@ -99,4 +105,10 @@ public enum FileField {
   public static byte[] getLength() {
     return LENGTH.bytes;
   }
+  public static byte[] getData() {
+    return DATA.bytes;
+  }
+  public static byte[] getUsage() {
+    return USAGE.bytes;
+  }
 }
@@ -19,6 +19,7 @@ package org.apache.giraffa;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Implementation of a row key based on the file's full path.
@@ -99,7 +100,16 @@ public class FullPathRowKey extends RowKey implements Serializable {
   @Override // RowKey
   public byte[] getStartListingKey(byte[] startAfter) {
     byte[] start = directoryStartKey();
-    return startAfter.length == 0 ? start : RowKeyBytes.add(start, startAfter);
+    if(startAfter.length == 0)
+      return start;
+    // startAfter is either a file name or a full path as returned in
+    // the local name of file statuses; the listing starts after that name
+    int nameStart = 0;
+    for(int i = 0; i < startAfter.length; i++)
+      if(startAfter[i] == '/')
+        nameStart = i + 1;
+    byte[] name = Arrays.copyOfRange(startAfter, nameStart, startAfter.length);
+    return RowKeyBytes.add(RowKeyBytes.add(start, name), new byte[]{0});
   }
 
   @Override // RowKey
@@ -20,6 +20,7 @@ package org.apache.giraffa;
 import org.apache.giraffa.hbase.NamespaceAgent;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
 import org.apache.hadoop.util.ReflectionUtils;
 
 public class GiraffaConfiguration extends Configuration {
@@ -43,8 +44,79 @@ public class GiraffaConfiguration extends Configuration {
                                   DFSConfigKeys.DFS_LIST_LIMIT;
   public static final int     GRFA_LIST_LIMIT_DEFAULT =
                                   DFSConfigKeys.DFS_LIST_LIMIT_DEFAULT;
+  public static final String  GRFA_CLIENT_CACHE_ENABLED_KEY =
+                                  "grfa.client.cache.enabled";
+  public static final boolean GRFA_CLIENT_CACHE_ENABLED_DEFAULT = false;
+  public static final String  GRFA_CLIENT_CACHE_TTL_KEY =
+                                  "grfa.client.cache.ttl.ms";
+  public static final long    GRFA_CLIENT_CACHE_TTL_DEFAULT = 3000L;
+  public static final String  GRFA_CLIENT_CACHE_SIZE_KEY =
+                                  "grfa.client.cache.max.entries";
+  public static final long    GRFA_CLIENT_CACHE_SIZE_DEFAULT = 10000L;
+  public static final String  GRFA_CLIENT_CACHE_TOKEN_KEY =
+                                  "grfa.client.cache.consistency.token";
+  public static final boolean GRFA_CLIENT_CACHE_TOKEN_DEFAULT = false;
+  public static final String  GRFA_CLIENT_ASYNC_THREADS_KEY =
+                                  "grfa.client.async.threads";
+  public static final int     GRFA_CLIENT_ASYNC_THREADS_DEFAULT = 32;
+  public static final String  GRFA_CLIENT_INLINE_THRESHOLD_KEY =
+                                  "grfa.client.inline.threshold";
+  public static final int     GRFA_CLIENT_INLINE_THRESHOLD_DEFAULT = 0;
 
 
+  public static final String  GRFA_PREALLOCATE_BLOCK_KEY =
+                                  "grfa.create.preallocate.block";
+  public static final boolean GRFA_PREALLOCATE_BLOCK_DEFAULT = false;
+  public static final String  GRFA_DELETE_BATCH_SIZE_KEY =
+                                  "grfa.delete.batch.size";
+  public static final int     GRFA_DELETE_BATCH_SIZE_DEFAULT = 1000;
+  public static final String  GRFA_BLOCK_RECLAIM_INTERVAL_KEY =
+                                  "grfa.block.reclaim.interval.ms";
+  public static final long    GRFA_BLOCK_RECLAIM_INTERVAL_DEFAULT = 3000L;
+  public static final String  GRFA_BLOCK_RECLAIM_BATCH_SIZE_KEY =
+                                  "grfa.block.reclaim.batch.size";
+  public static final int     GRFA_BLOCK_RECLAIM_BATCH_SIZE_DEFAULT = 1000;
+  public static final String  GRFA_RENAME_ATOMIC_MAX_ROWS_KEY =
+                                  "grfa.rename.atomic.max.rows";
+  public static final int     GRFA_RENAME_ATOMIC_MAX_ROWS_DEFAULT = 10000;
+  public static final String  GRFA_RENAME_BATCH_SIZE_KEY =
+                                  "grfa.rename.batch.size";
+  public static final int     GRFA_RENAME_BATCH_SIZE_DEFAULT = 1000;
+  public static final String  GRFA_SUBTREE_THREADS_KEY =
+                                  "grfa.subtree.threads";
+  public static final int     GRFA_SUBTREE_THREADS_DEFAULT = 8;
+  public static final String  GRFA_QUOTA_CACHE_TTL_KEY =
+                                  "grfa.quota.cache.ttl.ms";
+  public static final long    GRFA_QUOTA_CACHE_TTL_DEFAULT = 10000L;
+  public static final String  GRFA_QUOTA_CACHE_SIZE_KEY =
+                                  "grfa.quota.cache.max.entries";
+  public static final long    GRFA_QUOTA_CACHE_SIZE_DEFAULT = 100000L;
+  public static final String  GRFA_LEASE_HARD_LIMIT_KEY =
+                                  "grfa.lease.hard.limit.ms";
+  public static final long    GRFA_LEASE_HARD_LIMIT_DEFAULT =
+                                  HdfsConstants.LEASE_HARDLIMIT_PERIOD;
+  public static final String  GRFA_LEASE_CHECK_INTERVAL_KEY =
+                                  "grfa.lease.check.interval.ms";
+  public static final long    GRFA_LEASE_CHECK_INTERVAL_DEFAULT = 2000L;
+  public static final String  GRFA_GROUP_CACHE_REFRESH_KEY =
+                                  "grfa.group.cache.refresh.ms";
+  public static final long    GRFA_GROUP_CACHE_REFRESH_DEFAULT = 300000L;
+  public static final String  GRFA_GROUP_CACHE_EXPIRE_KEY =
+                                  "grfa.group.cache.expire.ms";
+  public static final long    GRFA_GROUP_CACHE_EXPIRE_DEFAULT = 3600000L;
+  public static final String  GRFA_GROUP_CACHE_SIZE_KEY =
+                                  "grfa.group.cache.max.entries";
+  public static final long    GRFA_GROUP_CACHE_SIZE_DEFAULT = 10000L;
+  public static final String  GRFA_ACCESS_TIME_PRECISION_KEY =
+                                  "grfa.accesstime.precision.ms";
+  public static final long    GRFA_ACCESS_TIME_PRECISION_DEFAULT = 3600000L;
+  public static final String  GRFA_ACCESS_TIME_FLUSH_INTERVAL_KEY =
+                                  "grfa.accesstime.flush.interval.ms";
+  public static final long    GRFA_ACCESS_TIME_FLUSH_INTERVAL_DEFAULT = 1000L;
+  public static final String  GRFA_USAGE_JOURNAL_INTERVAL_KEY =
+                                  "grfa.usage.journal.interval.ms";
+  public static final long    GRFA_USAGE_JOURNAL_INTERVAL_DEFAULT = 10000L;
+
   public static final String  GRFA_WEB_ADDRESS_KEY = "grfa.http-address";
   public static final String  GRFA_WEB_ADDRESS_DEFAULT = "0.0.0.0:40010";
 
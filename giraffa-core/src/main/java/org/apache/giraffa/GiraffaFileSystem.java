@@ -19,9 +19,15 @@ package org.apache.giraffa;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.ContentSummary;
@@ -32,6 +38,7 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hdfs.GiraffaClient;
 import org.apache.hadoop.hdfs.protocol.DirectoryListing;
@@ -39,6 +46,8 @@ import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.util.Progressable;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * Implementation of Giraffa FileSystem.
  * Giraffa stores its namespace in HBase table and retrieves data from
@@ -50,6 +59,7 @@ public class GiraffaFileSystem extends FileSystem {
   private URI hbaseUri;
   private Path workingDir;
   private URI uri;
+  private int inlineThreshold;
 
   public GiraffaFileSystem() {
     // should be empty
@@ -58,8 +68,34 @@ public class GiraffaFileSystem extends FileSystem {
   @Override // FileSystem
   public FSDataOutputStream append(Path f, int bufferSize, Progressable progress)
       throws IOException {
-    // Not implemented
-    throw new IOException("append: Implement me. It is not easy.");
+    String src = getPathName(f);
+    try {
+      return grfaClient.append(src, bufferSize, progress, statistics);
+    } catch(InlineFileException e) {
+      // the file may be stored inline regardless of the threshold of this
+      // client, the server tells
+    }
+    byte[] data = grfaClient.getInlineData(src);
+    if(data == null) // rewritten into blocks meanwhile
+      return grfaClient.append(src, bufferSize, progress, statistics);
+    return appendInline(f, data, bufferSize, progress);
+  }
+
+  /**
+   * Data is not appended to the namespace table. Rewrite the inline file
+   * into blocks and continue writing into them.
+   */
+  private FSDataOutputStream appendInline(Path f, byte[] data, int bufferSize,
+                                          Progressable progress)
+      throws IOException {
+    FileStatus status = getFileStatus(f);
+    OutputStream out = grfaClient.create(getPathName(f),
+        status.getPermission(),
+        EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE),
+        status.getReplication(), status.getBlockSize(), progress, bufferSize,
+        null);
+    out.write(data);
+    return new FSDataOutputStream(out, statistics, data.length);
   }
 
   @Override
@@ -69,8 +105,26 @@ public class GiraffaFileSystem extends FileSystem {
                                    Progressable progress,
                                    Options.ChecksumOpt checksumOpt)
       throws IOException {
+    if(flags.contains(CreateFlag.APPEND)) {
+      if(exists(f))
+        return append(f, bufferSize, progress);
+      if(!flags.contains(CreateFlag.CREATE))
+        throw new FileNotFoundException("File does not exist: " + f);
+      flags = EnumSet.copyOf(flags);
+      flags.remove(CreateFlag.APPEND);
+    }
+    String src = getPathName(f);
+    if(inlineThreshold > 0) {
+      FsPermission masked = (permission == null ?
+          FsPermission.getDefault() : permission).applyUMask(
+              FsPermission.getUMask(getConf()));
+      grfaClient.createInlineFile(src, masked, flags, replication, blockSize);
+      return new FSDataOutputStream(new InlineOutputStream(grfaClient, src,
+          permission, replication, blockSize, progress, bufferSize,
+          checksumOpt, inlineThreshold), statistics);
+    }
     return new FSDataOutputStream(
-        grfaClient.create(getPathName(f), permission, flags, replication,
+        grfaClient.create(src, permission, flags, replication,
             blockSize, progress, bufferSize, checksumOpt), statistics);
   }
 
@@ -88,6 +142,18 @@ public class GiraffaFileSystem extends FileSystem {
             getServerDefaults(f).getBytesPerChecksum()));
   }
 
+  /**
+   * Move blocks of the source files to the end of the target file and
+   * delete the sources. No data is copied.
+   */
+  @Override // FileSystem
+  public void concat(Path trg, Path[] psrcs) throws IOException {
+    String[] srcs = new String[psrcs.length];
+    for(int i = 0; i < psrcs.length; i++)
+      srcs[i] = getPathName(psrcs[i]);
+    grfaClient.concat(getPathName(trg), srcs);
+  }
+
   @Override // FileSystem
   public boolean delete(Path f, boolean recursive) throws IOException {
     return grfaClient.delete(getPathName(f), recursive);
@@ -116,24 +182,8 @@ public class GiraffaFileSystem extends FileSystem {
       // f is a file
       return new ContentSummary(s.getLen(), 1, 0, -1, s.getLen()*s.getReplication(), -1);
     }
-    // f is a directory
-    ContentSummary start = grfaClient.getContentSummary(getPathName(f));
-    HdfsFileStatus[] list = grfaClient.listPaths(getPathName(f),
-        HdfsFileStatus.EMPTY_NAME).getPartialListing();
-    long[] summary = {0, 0, 1, start.getQuota(), 0, start.getSpaceQuota()};
-    for(HdfsFileStatus t : list) {
-      Path path = t.getFullPath(f).makeQualified(getUri(), getWorkingDirectory());
-      // recursive if directory, else return file stats
-      ContentSummary c = t.isDir() ? getContentSummary(path) :
-          new ContentSummary(t.getLen(), 1, 0, -1, t.getLen()*t.getReplication(), -1);
-      // compound results
-      summary[0] += c.getLength();
-      summary[1] += c.getFileCount();
-      summary[2] += c.getDirectoryCount();
-      summary[4] += c.getSpaceConsumed();
-    }
-    return new ContentSummary(summary[0], summary[1], summary[2],
-        summary[3], summary[4], summary[5]);
+    // f is a directory, the subtree is summed up by the namespace service
+    return grfaClient.getContentSummary(getPathName(f));
   }
 
   @Override // FileSystem
@@ -144,6 +194,25 @@ public class GiraffaFileSystem extends FileSystem {
     return createFileStatus(hdfsStatus, f);
   }
 
+  /**
+   * Get statuses of multiple files in a single batch.
+   * @param files paths of the files
+   * @return statuses in the order of the given paths,
+   *         null for files that do not exist
+   */
+  public FileStatus[] getFileStatus(Path[] files) throws IOException {
+    String[] srcs = new String[files.length];
+    for(int i = 0; i < files.length; i++)
+      srcs[i] = getPathName(files[i]);
+    HdfsFileStatus[] hdfsStatuses = grfaClient.getFileInfos(srcs);
+    FileStatus[] statuses = new FileStatus[files.length];
+    for(int i = 0; i < files.length; i++) {
+      if(hdfsStatuses[i] != null)
+        statuses[i] = createFileStatus(hdfsStatuses[i], files[i]);
+    }
+    return statuses;
+  }
+
   private FileStatus createFileStatus(HdfsFileStatus hdfsStatus, Path src) {
     return new FileStatus(hdfsStatus.getLen(), hdfsStatus.isDir(), hdfsStatus.getReplication(),
         hdfsStatus.getBlockSize(), hdfsStatus.getModificationTime(),
@@ -205,6 +274,9 @@ public class GiraffaFileSystem extends FileSystem {
         + UserGroupInformation.getCurrentUser().getShortUserName());
 
     grfaClient = new GiraffaClient(grfaConf, statistics);
+    inlineThreshold = grfaConf.getInt(
+        GiraffaConfiguration.GRFA_CLIENT_INLINE_THRESHOLD_KEY,
+        GiraffaConfiguration.GRFA_CLIENT_INLINE_THRESHOLD_DEFAULT);
 
     LOG.debug("uri = " + uri);
     LOG.debug("workingDir = " + workingDir);
@@ -229,23 +301,90 @@ public class GiraffaFileSystem extends FileSystem {
   @Override // FileSystem
   public FileStatus[] listStatus(Path f) throws FileNotFoundException,
       IOException {
-    String src = getPathName(f);
+    List<FileStatus> fs = new ArrayList<FileStatus>();
+    for(RemoteIterator<FileStatus> it = listStatusIterator(f); it.hasNext();)
+      fs.add(it.next());
+    return fs.toArray(new FileStatus[fs.size()]);
+  }
 
-    // fetch the first batch of entries in the directory
-    DirectoryListing thisListing = grfaClient.listPaths(
-        src, HdfsFileStatus.EMPTY_NAME);
-    
-    if (thisListing == null) { // the directory does not exist
-        throw new FileNotFoundException("File " + f + " does not exist.");
+  /**
+   * List the statuses of the files and directories in the given directory.
+   * The listing is fetched in pages. The next page is requested
+   * asynchronously as soon as the previous one is received,
+   * so that it is fetched while the current page is consumed.
+   * Namespace services without the asynchronous service fetch the next
+   * page synchronously once the current page is consumed.
+   */
+  public RemoteIterator<FileStatus> listStatusIterator(Path f)
+      throws FileNotFoundException, IOException {
+    return new PrefetchingListingIterator(f);
+  }
+
+  private class PrefetchingListingIterator
+      implements RemoteIterator<FileStatus> {
+    private final Path dir;
+    private final String src;
+    private final AsyncNamespaceService asyncService;
+    private DirectoryListing thisListing;
+    private int index;
+    private ListenableFuture<DirectoryListing> nextListing;
+
+    PrefetchingListingIterator(Path dir) throws IOException {
+      this.dir = dir;
+      this.src = getPathName(dir);
+      this.asyncService = grfaClient.hasAsyncNamespaceService() ?
+          grfaClient.getAsyncNamespaceService() : null;
+      // fetch the first batch of entries in the directory
+      this.thisListing = grfaClient.listPaths(src, HdfsFileStatus.EMPTY_NAME);
+      if(thisListing == null) { // the directory does not exist
+        throw new FileNotFoundException("File " + dir + " does not exist.");
+      }
+      prefetch();
     }
-    
-    FileStatus[] fs = new FileStatus[thisListing.getPartialListing().length];
-    for(int i = 0; i < fs.length; i++)
-    {
-      HdfsFileStatus hdfsStatus = thisListing.getPartialListing()[i];
-      fs[i] = createFileStatus(hdfsStatus, f);
+
+    private void prefetch() {
+      nextListing = asyncService != null && thisListing.hasMore() ?
+          asyncService.getListing(src, thisListing.getLastName(), false) :
+          null;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+      while(index >= thisListing.getPartialListing().length) {
+        if(!thisListing.hasMore())
+          return false;
+        thisListing = nextListing != null ? getListing(nextListing) :
+            grfaClient.listPaths(src, thisListing.getLastName());
+        index = 0;
+        if(thisListing == null) { // the directory was removed
+          throw new FileNotFoundException("File " + dir + " does not exist.");
+        }
+        prefetch();
+      }
+      return true;
+    }
+
+    @Override
+    public FileStatus next() throws IOException {
+      if(!hasNext())
+        throw new NoSuchElementException("No more entries in " + dir);
+      return createFileStatus(thisListing.getPartialListing()[index++], dir);
+    }
+
+    private DirectoryListing getListing(
+        ListenableFuture<DirectoryListing> future) throws IOException {
+      try {
+        return future.get();
+      } catch(InterruptedException e) {
+        future.cancel(false);
+        throw (IOException) new InterruptedIOException(
+            "Interrupted while listing " + dir).initCause(e);
+      } catch(ExecutionException e) {
+        if(e.getCause() instanceof IOException)
+          throw (IOException) e.getCause();
+        throw new IOException("Cannot list " + dir, e.getCause());
+      }
     }
-    return fs;
   }
 
   @Override // FileSystem
@@ -255,8 +394,25 @@ public class GiraffaFileSystem extends FileSystem {
 
   @Override // FileSystem
   public FSDataInputStream open(Path f, int bufferSize) throws IOException {
-    return new FSDataInputStream(
-        grfaClient.open(getPathName(f), bufferSize, true));
+    String src = getPathName(f);
+    try {
+      return new FSDataInputStream(grfaClient.open(src, bufferSize, true));
+    } catch(InlineFileException e) {
+      // the file may be stored inline regardless of the threshold of this
+      // client, the server tells
+    }
+    byte[] data = grfaClient.getInlineData(src);
+    if(data == null) // rewritten into blocks meanwhile
+      return new FSDataInputStream(grfaClient.open(src, bufferSize, true));
+    return new FSDataInputStream(new InlineInputStream(data));
+  }
+
+  /**
+   * Start the lease recovery of a file abandoned by its writer.
+   * @return true if the file is closed
+   */
+  public boolean recoverLease(Path f) throws IOException {
+    return grfaClient.recoverLease(getPathName(f));
   }
 
   @SuppressWarnings("deprecation")
@@ -30,6 +30,8 @@ import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.proto.HdfsProtos.DatanodeInfosProto;
 import org.apache.hadoop.hdfs.protocolPB.PBHelper;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 
 /**
  * Helper class, similar to PBHelper, for converting between Giraffa objects
@@ -164,4 +166,34 @@ public class GiraffaPBHelper {
     in.close();
     return locs;
   }
+
+  /**
+   * Deserializes a single UnlocatedBlock starting at the given position
+   * of a byte array produced by {@link #unlocatedBlocksToBytes(List)}.
+   */
+  public static UnlocatedBlock bytesToUnlocatedBlock(byte[] bytes, int pos)
+      throws IOException {
+    return convert(UnlocatedBlockProto.parseDelimitedFrom(
+        new ByteArrayInputStream(bytes, pos, bytes.length - pos)));
+  }
+
+  /**
+   * Deserializes locations of a single block starting at the given position
+   * of a byte array produced by {@link #blockLocationsToBytes(List)}.
+   */
+  public static DatanodeInfo[] bytesToBlockLocation(byte[] bytes, int pos)
+      throws IOException {
+    return convert(DatanodeInfosProto.parseDelimitedFrom(
+        new ByteArrayInputStream(bytes, pos, bytes.length - pos)));
+  }
+
+  /**
+   * Skips a length delimited message without parsing it.
+   * @return position of the next message in the array
+   */
+  public static int skipDelimited(byte[] bytes, int pos) throws IOException {
+    int size = CodedInputStream.newInstance(bytes, pos, bytes.length - pos)
+        .readRawVarint32();
+    return pos + CodedOutputStream.computeRawVarint32Size(size) + size;
+  }
 }
@@ -19,7 +19,12 @@ package org.apache.giraffa;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,9 +60,34 @@ public class INode {
   private List<DatanodeInfo[]> locations;
   private FileState fileState;
   private RenameState renameState;
+  private byte[] inlineData;
+  // serialized blocks read from the row, decoded on demand
+  private BlockIndex blockIndex;
+  // reads the blocks of a file loaded without them, on first access
+  private BlockLoader blockLoader;
+  // fields modified since the node was read from or written to its row,
+  // null if the row is not written yet
+  private EnumSet<FileField> dirtyFields;
+  // usage counters of a directory subtree
+  private DirectoryUsage usage;
+  // whether the usage counters are written with the next update of the row
+  private boolean resetUsage;
+  // columns of the usage cells read from the row, removed with the row
+  private List<byte[]> usageColumns;
+  // changes of the usage of the ancestors of paths, recorded with the next
+  // write of the row
+  private Map<String, DirectoryUsage> usageDeltas;
 
   public static final Log LOG = LogFactory.getLog(INode.class.getName());
 
+  /**
+   * Reads the serialized blocks of a file, whose attributes were read
+   * without them.
+   */
+  public interface BlockLoader {
+    BlockIndex loadBlocks() throws IOException;
+  }
+
   /**
    * Construct an INode from the RowKey and file attributes.
    */
@@ -94,10 +124,11 @@ public class INode {
            owner, group, symlink, RowKeyBytes.toBytes(key.getPath()));
   }
 
-  public HdfsFileStatus getLocatedFileStatus() {
+  public HdfsFileStatus getLocatedFileStatus() throws IOException {
     List<LocatedBlock> locatedBlocksList =
-        UnlocatedBlock.toLocatedBlocks(blocks, locations);
-    LocatedBlock lastBlock = locatedBlocksList.get(locatedBlocksList.size()-1);
+        UnlocatedBlock.toLocatedBlocks(getBlocks(), getLocations());
+    LocatedBlock lastBlock = locatedBlocksList.isEmpty() ? null :
+        locatedBlocksList.get(locatedBlocksList.size()-1);
     boolean isUnderConstruction = (fileState == FileState.UNDER_CONSTRUCTION);
     boolean isLastBlockComplete = (fileState == FileState.CLOSED);
     LocatedBlocks locatedBlocks = new LocatedBlocks(length, isUnderConstruction,
@@ -192,14 +223,80 @@ public class INode {
     return symlink == null ? null : symlink.clone();
   }
 
-  public List<UnlocatedBlock> getBlocks() {
+  /**
+   * Get the blocks of the file. Reading the blocks does not mark them
+   * modified: a caller changing the list has to set it again with
+   * {@link #setBlocks(List)} to have it written with the next update.
+   */
+  public List<UnlocatedBlock> getBlocks() throws IOException {
+    decodeBlocks();
     return blocks;
   }
   
-  public List<DatanodeInfo[]> getLocations() {
+  public List<DatanodeInfo[]> getLocations() throws IOException {
+    decodeBlocks();
     return locations;
   }
 
+  /**
+   * Get the block index of the file, which allows to decode only some of
+   * its blocks. The index is built if the blocks have been modified.
+   */
+  public BlockIndex getBlockIndex() throws IOException {
+    if(isDir())
+      return null;
+    loadBlocks();
+    if(blockIndex == null)
+      blockIndex = new BlockIndex(null, getBlocksBytes(), getLocationsBytes());
+    return blockIndex;
+  }
+
+  /**
+   * Get the serialized block index, if the blocks have not been decoded
+   * since they were read, and thus cannot have been modified.
+   */
+  public byte[] getBlockIndexBytes() throws IOException {
+    loadBlocks();
+    return blockIndex == null || blocks != null ? null :
+        blockIndex.getIndexBytes();
+  }
+
+  /**
+   * Set serialized blocks of the file read from the namespace table.
+   * The blocks are decoded only when requested.
+   */
+  public void setBlockIndex(BlockIndex index) {
+    this.blockIndex = index;
+    this.blocks = null;
+    this.locations = null;
+    this.blockLoader = null;
+  }
+
+  /**
+   * Set the loader of the blocks of a file read without them.
+   * The blocks are read only when requested.
+   */
+  public void setBlockLoader(BlockLoader loader) {
+    setBlockIndex(null);
+    this.blockLoader = loader;
+  }
+
+  private void loadBlocks() throws IOException {
+    if(blockLoader == null)
+      return;
+    BlockLoader loader = blockLoader;
+    blockLoader = null;
+    blockIndex = loader.loadBlocks();
+  }
+
+  private void decodeBlocks() throws IOException {
+    loadBlocks();
+    if(blocks != null || blockIndex == null)
+      return;
+    blocks = blockIndex.getBlocks();
+    locations = blockIndex.getLocations();
+  }
+
   public FileState getFileState() {
     return fileState;
   }
@@ -208,6 +305,18 @@ public class INode {
     return renameState;
   }
 
+  /**
+   * Get the content of a small file stored in the namespace row.
+   * @return file data, or null if the file data is kept in blocks
+   */
+  public byte[] getInlineData() {
+    return inlineData;
+  }
+
+  public boolean isInline() {
+    return inlineData != null;
+  }
+
   /**
    * Get the blocks member as a byte array.
    * 
@@ -215,15 +324,21 @@ public class INode {
    * @throws IOException 
    */
   public byte[] getBlocksBytes() throws IOException {
+    loadBlocks();
     if(isDir())
       return null;
+    else if(blocks == null && blockIndex != null)
+      return blockIndex.getBlocksBytes();
     else
       return GiraffaPBHelper.unlocatedBlocksToBytes(blocks);
   }
   
   public byte[] getLocationsBytes() throws IOException {
+    loadBlocks();
     if(isDir())
       return null;
+    else if(locations == null && blockIndex != null)
+      return blockIndex.getLocationsBytes();
     else
       return GiraffaPBHelper.blockLocationsToBytes(locations);
   }
@@ -235,44 +350,62 @@ public class INode {
 
   public void setPermission(FsPermission newPermission) {
     this.permission = newPermission;
+    markDirty(FileField.PERMISSIONS);
   }
 
   public void setQuota(long namespaceQuota, long diskspaceQuota) {
     if (namespaceQuota != HdfsConstants.QUOTA_DONT_SET) {
       this.nsQuota = namespaceQuota;
+      markDirty(FileField.NS_QUOTA);
     }
     if (diskspaceQuota != HdfsConstants.QUOTA_DONT_SET) {
       this.dsQuota = diskspaceQuota;
+      markDirty(FileField.DS_QUOTA);
     }
   }
 
   public void setReplication(short replication) {
     this.block_replication = replication;
+    markDirty(FileField.REPLICATION);
+  }
+
+  public void setLength(long length) {
+    this.length = length;
+    markDirty(FileField.LENGTH);
   }
 
   public void setState(FileState newFileState) {
     this.fileState = newFileState;
+    markDirty(FileField.FILE_STATE);
   }
 
   public void setRenameState(RenameState renameState) {
     this.renameState = renameState;
+    markDirty(FileField.RENAME_STATE);
   }
 
   public void setTimes(long mtime, long atime) {
     this.modification_time = mtime;
     this.access_time = atime;
+    markDirty(FileField.M_TIME);
+    markDirty(FileField.A_TIME);
   }
 
   public void setOwner(String username, String groupname) {
     if(username != null) {
       this.owner = username;
+      markDirty(FileField.USER_NAME);
     }
     if(groupname != null) {
       this.group = groupname;
+      markDirty(FileField.GROUP_NAME);
     }
   }
 
-  public void setLastBlock(ExtendedBlock last) {
+  public void setLastBlock(ExtendedBlock last) throws IOException {
+    decodeBlocks();
+    markBlocksDirty();
+    blockIndex = null;
     for(UnlocatedBlock block : blocks) {
       ExtendedBlock eb = block.getBlock();
       if(eb.getBlockId() == last.getBlockId()) {
@@ -283,18 +416,138 @@ public class INode {
     }
   }
 
-  public void setBlocks(List<UnlocatedBlock> blocks) {
+  public void setBlocks(List<UnlocatedBlock> blocks) throws IOException {
+    decodeBlocks();
+    markBlocksDirty();
+    this.blockIndex = null;
     this.blocks = blocks;
   }
 
-  public void setLocations(List<DatanodeInfo[]> locations) {
+  public void setLocations(List<DatanodeInfo[]> locations)
+      throws IOException {
+    decodeBlocks();
+    markBlocksDirty();
+    this.blockIndex = null;
     this.locations = locations;
   }
 
+  public void setInlineData(byte[] data) {
+    this.inlineData = data;
+    markDirty(FileField.DATA);
+  }
+
+  /**
+   * Get the fields modified since the node was read from or written to
+   * its row, which are the columns to write with the next update.
+   * @return modified fields, or null if the row is not written yet and
+   * all columns have to be written
+   */
+  public Set<FileField> getDirtyFields() {
+    return dirtyFields == null ? null :
+        Collections.unmodifiableSet(dirtyFields);
+  }
+
+  /**
+   * Mark the node as equal to its row, after it is read or written.
+   */
+  public void markClean() {
+    dirtyFields = EnumSet.noneOf(FileField.class);
+    usageDeltas = null;
+  }
+
+  private void markDirty(FileField field) {
+    if(dirtyFields != null)
+      dirtyFields.add(field);
+  }
+
+  private void markBlocksDirty() {
+    markDirty(FileField.BLOCK);
+    markDirty(FileField.LOCATIONS);
+    markDirty(FileField.BLOCK_INDEX);
+  }
+
+  /**
+   * Get the usage counters of this directory.
+   * @return counters read from the row, or null if the row has none
+   */
+  public DirectoryUsage getUsage() {
+    return usage;
+  }
+
+  /**
+   * Set usage counters read from the namespace table.
+   */
+  public void setUsage(DirectoryUsage usage) {
+    this.usage = usage;
+    this.resetUsage = false;
+  }
+
+  /**
+   * Set usage counters, which are written as the initial counters of
+   * the row with the next update. Used for new and copied directories only, since
+   * counters of existing directories are updated incrementally.
+   */
+  public void resetUsage(DirectoryUsage usage) {
+    this.usage = usage;
+    this.resetUsage = true;
+  }
+
+  /**
+   * @return true if the usage counters should be written with the next
+   * update of the row
+   */
+  public boolean isUsageReset() {
+    return resetUsage;
+  }
+
+  /**
+   * Get the columns of the usage cells of this directory, which are removed
+   * with its row.
+   * @return columns read from the row, or null if they are not read
+   */
+  public List<byte[]> getUsageColumns() {
+    return usageColumns;
+  }
+
+  public void setUsageColumns(List<byte[]> usageColumns) {
+    this.usageColumns = usageColumns;
+  }
+
+  /**
+   * Record a change of the usage of all ancestors of the given path. The
+   * change is written with the next write of the row of this node, in the
+   * same atomic mutation, and then applied to the ancestors.
+   */
+  public void addUsageDelta(String path, DirectoryUsage delta) {
+    if(delta.isEmpty())
+      return;
+    if(usageDeltas == null)
+      usageDeltas = new LinkedHashMap<String, DirectoryUsage>();
+    DirectoryUsage previous = usageDeltas.get(path);
+    usageDeltas.put(path, previous == null ? delta : previous.add(delta));
+  }
+
+  /**
+   * @return changes of the usage of ancestors not yet written, by path
+   */
+  public Map<String, DirectoryUsage> getUsageDeltas() {
+    if(usageDeltas == null)
+      return Collections.emptyMap();
+    return Collections.unmodifiableMap(usageDeltas);
+  }
+
   public INode cloneWithNewRowKey(RowKey newKey) {
-    return new INode(length, isdir, block_replication, blocksize,
+    INode clone = new INode(length, isdir, block_replication, blocksize,
         modification_time, access_time, permission, owner, group, symlink,
         newKey, dsQuota, nsQuota, fileState, renameState, blocks, locations);
+    clone.setInlineData(inlineData);
+    if(blockIndex != null)
+      clone.setBlockIndex(blockIndex);
+    else if(blockLoader != null)
+      clone.setBlockLoader(blockLoader);
+    if(usage != null)
+      clone.resetUsage(usage);
+    return clone;
   }
 
   @Override
@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * Input stream over the content of a file stored in the namespace row.
+ */
+class InlineInputStream extends ByteArrayInputStream
+    implements Seekable, PositionedReadable {
+
+  InlineInputStream(byte[] data) {
+    super(data);
+  }
+
+  @Override // Seekable
+  public synchronized void seek(long newPos) throws IOException {
+    if(newPos < 0 || newPos > count)
+      throw new EOFException("Cannot seek to " + newPos
+          + ", file length is " + count);
+    pos = (int) newPos;
+  }
+
+  @Override // Seekable
+  public synchronized long getPos() {
+    return pos;
+  }
+
+  @Override // Seekable
+  public boolean seekToNewSource(long targetPos) {
+    return false;
+  }
+
+  @Override // PositionedReadable
+  public synchronized int read(long position, byte[] buffer, int offset,
+                               int length) {
+    if(position >= count)
+      return -1;
+    int n = (int) Math.min(length, count - position);
+    System.arraycopy(buf, (int) position, buffer, offset, n);
+    return n;
+  }
+
+  @Override // PositionedReadable
+  public void readFully(long position, byte[] buffer, int offset, int length)
+      throws IOException {
+    if(position < 0 || position + length > count)
+      throw new EOFException("Cannot read " + length + " bytes at "
+          + position + ", file length is " + count);
+    read(position, buffer, offset, length);
+  }
+
+  @Override // PositionedReadable
+  public void readFully(long position, byte[] buffer) throws IOException {
+    readFully(position, buffer, 0, buffer.length);
+  }
+}
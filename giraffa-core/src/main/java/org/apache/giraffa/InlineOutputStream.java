@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumSet;
+
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.Options.ChecksumOpt;
+import org.apache.hadoop.fs.Syncable;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.GiraffaClient;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Output stream of a file, which is expected to be small.
+ * <p>
+ * The data is buffered in memory. If the file does not exceed the inline
+ * threshold, its content is stored in the namespace row when the stream is
+ * closed, so no blocks are allocated and no DataNodes are involved.
+ * Otherwise the file is recreated and the data is written into HDFS blocks
+ * as usual. Data of an inline file is not visible to readers until close,
+ * so the file is switched to blocks as well on the first hflush or hsync,
+ * which must make the data visible or durable.
+ */
+class InlineOutputStream extends OutputStream implements Syncable {
+  private final GiraffaClient grfaClient;
+  private final String src;
+  private final FsPermission permission;
+  private final short replication;
+  private final long blockSize;
+  private final Progressable progress;
+  private final int bufferSize;
+  private final ChecksumOpt checksumOpt;
+  private final int threshold;
+
+  private ByteArrayOutputStream buffer;
+  private OutputStream blockStream;
+  private boolean closed;
+
+  InlineOutputStream(GiraffaClient grfaClient, String src,
+                     FsPermission permission, short replication,
+                     long blockSize, Progressable progress, int bufferSize,
+                     ChecksumOpt checksumOpt, int threshold) {
+    this.grfaClient = grfaClient;
+    this.src = src;
+    this.permission = permission;
+    this.replication = replication;
+    this.blockSize = blockSize;
+    this.progress = progress;
+    this.bufferSize = bufferSize;
+    this.checksumOpt = checksumOpt;
+    this.threshold = threshold;
+    this.buffer = new ByteArrayOutputStream(Math.min(threshold, 4096));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkClosed();
+    if(blockStream == null && buffer.size() + len > threshold) {
+      switchToBlocks();
+    }
+    if(blockStream != null) {
+      blockStream.write(b, off, len);
+    } else {
+      buffer.write(b, off, len);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    checkClosed();
+    if(blockStream != null)
+      blockStream.flush();
+  }
+
+  @Deprecated
+  public void sync() throws IOException {
+    hflush();
+  }
+
+  @Override // Syncable
+  public void hflush() throws IOException {
+    checkClosed();
+    if(blockStream == null)
+      switchToBlocks();
+    ((Syncable) blockStream).hflush();
+  }
+
+  @Override // Syncable
+  public void hsync() throws IOException {
+    checkClosed();
+    if(blockStream == null)
+      switchToBlocks();
+    ((Syncable) blockStream).hsync();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed)
+      return;
+    closed = true;
+    if(blockStream != null) {
+      blockStream.close();
+    } else {
+      grfaClient.completeInlineFile(src, buffer.toByteArray());
+      buffer = null;
+    }
+  }
+
+  /**
+   * The file has grown over the threshold or is flushed. Recreate it as
+   * a regular file and write buffered data into blocks.
+   */
+  private void switchToBlocks() throws IOException {
+    blockStream = grfaClient.create(src, permission,
+        EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE), replication,
+        blockSize, progress, bufferSize, checksumOpt);
+    buffer.writeTo(blockStream);
+    buffer = null;
+  }
+
+  private void checkClosed() throws IOException {
+    if(closed)
+      throw new IOException("Stream is closed: " + src);
+  }
+}
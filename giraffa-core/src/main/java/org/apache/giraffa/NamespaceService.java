@@ -21,6 +21,7 @@ import java.io.Closeable;
 import java.io.IOException;
 
 import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
 
 /**
  * {@link NamespaceService} is a common interface that provides access
@@ -43,4 +44,30 @@ public interface NamespaceService extends ClientProtocol, Closeable {
   public void initialize(GiraffaConfiguration conf) throws IOException;
 
   public void format(GiraffaConfiguration conf) throws IOException;
+
+  /**
+   * Get file statuses of multiple paths at once.
+   * @param srcs paths of the files
+   * @return statuses in the order of the given paths,
+   *         with null entries for the paths that do not exist
+   */
+  public HdfsFileStatus[] getFileInfos(String[] srcs) throws IOException;
+
+  /**
+   * Store the content of a small file in its namespace row and close the
+   * file. The file must have been created and not yet completed.
+   * @param src path of the file
+   * @param clientName name of the client that created the file
+   * @param data the whole content of the file
+   */
+  public void completeInlineFile(String src, String clientName, byte[] data)
+      throws IOException;
+
+  /**
+   * Get the content of a file stored in its namespace row.
+   * @param src path of the file
+   * @return file data, or null if the file data is kept in blocks
+   * @throws java.io.FileNotFoundException if the path does not exist
+   */
+  public byte[] getInlineData(String src) throws IOException;
 }
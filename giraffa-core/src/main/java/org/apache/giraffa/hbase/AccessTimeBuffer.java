@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.RowKey;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Write-behind buffer of access times of the files of a region.
+ * <p>
+ * Reading a file updates its access time, which would turn every open into
+ * a namespace write. Instead, access times are recorded in memory, where
+ * repeated accesses of a file are coalesced into the latest one, and a
+ * daemon thread periodically writes them to their rows, updating only
+ * the access time column. Access times not yet written are lost if the
+ * region server fails, which only delays the access time of the files.
+ * <p>
+ * An access time is written only if the row still holds the modification
+ * time seen by the access, so that it is not applied to another file
+ * created at the same path meanwhile, nor to a file modified since.
+ * HBase has no batched checkAndPut, so each access time is a separate
+ * checkAndPut. The rows belong to the region of the buffer, so these are
+ * applied to the region directly, without a round trip, and do not wait
+ * for their WAL syncs.
+ */
+class AccessTimeBuffer implements Runnable {
+  private static final Log LOG = LogFactory.getLog(AccessTimeBuffer.class);
+
+  private static class Access {
+    private final RowKey key;
+    private final long mtime;
+    private long atime;
+
+    Access(RowKey key, long mtime, long atime) {
+      this.key = key;
+      this.mtime = mtime;
+      this.atime = atime;
+    }
+  }
+
+  private final INodeManager nodeManager;
+  private final long flushInterval;
+  // sorted by path, so that the accesses of a subtree are adjacent
+  private TreeMap<String, Access> accesses = new TreeMap<String, Access>();
+  private volatile boolean running;
+  private Thread thread;
+
+  AccessTimeBuffer(INodeManager nodeManager, long flushInterval) {
+    this.nodeManager = nodeManager;
+    this.flushInterval = flushInterval;
+  }
+
+  synchronized void start(String name) {
+    running = true;
+    thread = new Thread(this, "AccessTimeBuffer-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop the flushing thread and write the buffered access times.
+   */
+  void stop() {
+    synchronized(this) {
+      running = false;
+      if(thread != null)
+        thread.interrupt();
+      thread = null;
+    }
+    flush();
+  }
+
+  /**
+   * Record an access of the file at the given time.
+   * @param mtime modification time of the file seen by the access
+   */
+  synchronized void update(RowKey key, long mtime, long atime) {
+    Access access = accesses.get(key.getPath());
+    if(access == null || access.mtime != mtime)
+      accesses.put(key.getPath(), new Access(key, mtime, atime));
+    else if(access.atime < atime)
+      access.atime = atime;
+  }
+
+  /**
+   * Drop buffered access times of the path and all files under it,
+   * e.g. when they are deleted or their times are set explicitly.
+   */
+  synchronized void remove(String src) {
+    String prefix = src.endsWith(Path.SEPARATOR) ? src : src + Path.SEPARATOR;
+    accesses.remove(src);
+    accesses.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+  }
+
+  @Override // Runnable
+  public void run() {
+    while(running) {
+      try {
+        Thread.sleep(flushInterval);
+      } catch(InterruptedException e) {
+        // check running
+      }
+      flush();
+    }
+  }
+
+  /**
+   * Write the buffered access times. Files deleted or modified since their
+   * access are skipped.
+   */
+  void flush() {
+    Map<String, Access> flushed;
+    synchronized(this) {
+      if(accesses.isEmpty())
+        return;
+      flushed = accesses;
+      accesses = new TreeMap<String, Access>();
+    }
+    for(Access access : flushed.values()) {
+      try {
+        nodeManager.setAccessTime(access.key, access.mtime, access.atime);
+      } catch(IOException e) {
+        LOG.warn("Failed to update access time of " +
+            access.key.getPath(), e);
+      }
+    }
+  }
+}
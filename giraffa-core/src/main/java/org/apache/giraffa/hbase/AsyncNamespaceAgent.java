@@ -0,0 +1,296 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.giraffa.AsyncNamespaceService;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hbase.ipc.ServerRpcController;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.ClientNamenodeProtocol;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.CreateRequestProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.CreateResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.DeleteRequestProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.DeleteResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.GetFileInfoRequestProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.GetFileInfoResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.GetListingRequestProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.GetListingResponseProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.MkdirsRequestProto;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.MkdirsResponseProto;
+import org.apache.hadoop.hdfs.protocolPB.PBHelper;
+import org.apache.hadoop.io.EnumSetWritable;
+import org.apache.hadoop.ipc.RemoteException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.RpcCallback;
+
+/**
+ * Implementation of {@link AsyncNamespaceService} on top of
+ * {@link NamespaceAgent}.
+ * Calls are made through the {@link ClientNamenodeProtocol.Interface} stub
+ * of the region serving the path. HBase coprocessor channels complete the
+ * call in the thread which issued it, so the calls still block: region
+ * lookup and the call itself are dispatched to a bounded thread pool, and
+ * each call blocks a thread of the pool for its whole round trip. At most
+ * as many calls as the pool has threads are in flight, the others wait in
+ * the queue of the pool.
+ */
+class AsyncNamespaceAgent implements AsyncNamespaceService {
+  private final NamespaceAgent agent;
+  private final ThreadPoolExecutor executor;
+
+  AsyncNamespaceAgent(NamespaceAgent agent, int numThreads) {
+    this.agent = agent;
+    this.executor = new ThreadPoolExecutor(numThreads, numThreads,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("AsyncNamespaceAgent-%d").build());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * A single asynchronous call to the region serving the path.
+   * @param <R> protocol response type
+   * @param <T> result type
+   */
+  private abstract static class RegionCall<R, T> {
+    final String src;
+
+    RegionCall(String src) {
+      this.src = src;
+    }
+
+    abstract void call(ClientNamenodeProtocol.Interface stub,
+        ServerRpcController controller, RpcCallback<R> done);
+
+    abstract T convert(R response) throws IOException;
+
+    /** Called when the call completes, whether it succeeded or failed. */
+    void complete() {}
+  }
+
+  private <R, T> ListenableFuture<T> submit(final RegionCall<R, T> call) {
+    final SettableFuture<T> future = SettableFuture.create();
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          final ServerRpcController controller = new ServerRpcController();
+          ClientNamenodeProtocol.Interface stub =
+              ClientNamenodeProtocol.newStub(agent.getRegionChannel(call.src));
+          call.call(stub, controller, new RpcCallback<R>() {
+            @Override
+            public void run(R response) {
+              try {
+                if(controller.failedOnException())
+                  future.setException(unwrap(controller.getFailedOn()));
+                else if(controller.failed())
+                  future.setException(new IOException(controller.errorText()));
+                else
+                  future.set(call.convert(response));
+              } catch(Throwable t) {
+                future.setException(t);
+              } finally {
+                call.complete();
+              }
+            }
+          });
+        } catch(Throwable t) {
+          future.setException(t);
+          call.complete();
+        }
+      }
+    };
+    try {
+      executor.execute(task);
+    } catch(RejectedExecutionException e) {
+      future.setException(new IOException("Namespace agent is closed", e));
+    }
+    return future;
+  }
+
+  private static IOException unwrap(IOException e) {
+    return e instanceof RemoteException ?
+        ((RemoteException) e).unwrapRemoteException() : e;
+  }
+
+  private static <T> ListenableFuture<T> failed(IOException e) {
+    SettableFuture<T> future = SettableFuture.create();
+    future.setException(e);
+    return future;
+  }
+
+  @Override // AsyncNamespaceService
+  public ListenableFuture<HdfsFileStatus> getFileInfo(String src) {
+    final GetFileInfoRequestProto req =
+        GetFileInfoRequestProto.newBuilder().setSrc(src).build();
+    return submit(
+        new RegionCall<GetFileInfoResponseProto, HdfsFileStatus>(src) {
+      @Override
+      void call(ClientNamenodeProtocol.Interface stub,
+          ServerRpcController controller,
+          RpcCallback<GetFileInfoResponseProto> done) {
+        stub.getFileInfo(controller, req, done);
+      }
+
+      @Override
+      HdfsFileStatus convert(GetFileInfoResponseProto response) {
+        return response.hasFs() ? PBHelper.convert(response.getFs()) : null;
+      }
+    });
+  }
+
+  @Override // AsyncNamespaceService
+  public ListenableFuture<Boolean> mkdirs(
+      final String src, FsPermission masked, final boolean createParent) {
+    final MkdirsRequestProto req = MkdirsRequestProto.newBuilder()
+        .setSrc(src)
+        .setMasked(PBHelper.convert(masked))
+        .setCreateParent(createParent).build();
+    return submit(new RegionCall<MkdirsResponseProto, Boolean>(src) {
+      @Override
+      void call(ClientNamenodeProtocol.Interface stub,
+          ServerRpcController controller,
+          RpcCallback<MkdirsResponseProto> done) {
+        stub.mkdirs(controller, req, done);
+      }
+
+      @Override
+      Boolean convert(MkdirsResponseProto response)
+          throws FileNotFoundException {
+        boolean created = response.getResult();
+        if(!createParent && !created)
+          throw new FileNotFoundException("File does not exist: " + src);
+        return created;
+      }
+
+      @Override
+      void complete() {
+        agent.invalidateCacheTree(src);
+      }
+    });
+  }
+
+  @Override // AsyncNamespaceService
+  public ListenableFuture<Void> create(
+      final String src, FsPermission masked, String clientName,
+      EnumSet<CreateFlag> flag, boolean createParent,
+      short replication, long blockSize) {
+    if(new Path(src).getParent() == null)
+      return failed(new IOException("Root cannot be a file."));
+    final CreateRequestProto req = CreateRequestProto.newBuilder()
+        .setSrc(src)
+        .setMasked(PBHelper.convert(masked))
+        .setClientName(clientName)
+        .setCreateFlag(PBHelper.convertCreateFlag(
+            new EnumSetWritable<CreateFlag>(flag)))
+        .setCreateParent(createParent)
+        .setReplication(replication)
+        .setBlockSize(blockSize).build();
+    return submit(new RegionCall<CreateResponseProto, Void>(src) {
+      @Override
+      void call(ClientNamenodeProtocol.Interface stub,
+          ServerRpcController controller,
+          RpcCallback<CreateResponseProto> done) {
+        stub.create(controller, req, done);
+      }
+
+      @Override
+      Void convert(CreateResponseProto response) {
+        return null;
+      }
+
+      @Override
+      void complete() {
+        agent.invalidateCacheTree(src);
+      }
+    });
+  }
+
+  @Override // AsyncNamespaceService
+  public ListenableFuture<Boolean> delete(
+      final String src, boolean recursive) {
+    if(new Path(src).getParent() == null)
+      return failed(new FileNotFoundException("Parent does not exist."));
+    final DeleteRequestProto req = DeleteRequestProto.newBuilder()
+        .setSrc(src)
+        .setRecursive(recursive).build();
+    return submit(new RegionCall<DeleteResponseProto, Boolean>(src) {
+      @Override
+      void call(ClientNamenodeProtocol.Interface stub,
+          ServerRpcController controller,
+          RpcCallback<DeleteResponseProto> done) {
+        stub.delete(controller, req, done);
+      }
+
+      @Override
+      Boolean convert(DeleteResponseProto response) {
+        return response.getResult();
+      }
+
+      @Override
+      void complete() {
+        agent.invalidateCacheTree(src);
+      }
+    });
+  }
+
+  @Override // AsyncNamespaceService
+  public ListenableFuture<DirectoryListing> getListing(
+      String src, byte[] startAfter, boolean needLocation) {
+    if(startAfter == null)
+      startAfter = new byte[0];
+    final GetListingRequestProto req = GetListingRequestProto.newBuilder()
+        .setSrc(src)
+        .setStartAfter(ByteString.copyFrom(startAfter))
+        .setNeedLocation(needLocation).build();
+    return submit(
+        new RegionCall<GetListingResponseProto, DirectoryListing>(src) {
+      @Override
+      void call(ClientNamenodeProtocol.Interface stub,
+          ServerRpcController controller,
+          RpcCallback<GetListingResponseProto> done) {
+        stub.getListing(controller, req, done);
+      }
+
+      @Override
+      DirectoryListing convert(GetListingResponseProto response) {
+        return response.hasDirList() ?
+            PBHelper.convert(response.getDirList()) : null;
+      }
+    });
+  }
+
+  void close() {
+    executor.shutdownNow();
+  }
+}
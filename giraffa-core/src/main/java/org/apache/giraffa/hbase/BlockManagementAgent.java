@@ -17,6 +17,7 @@
  */
 package org.apache.giraffa.hbase;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
@@ -25,7 +26,9 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.BlockIndex;
 import org.apache.giraffa.FileField;
+import org.apache.giraffa.GiraffaConfiguration;
 import org.apache.giraffa.GiraffaPBHelper;
 import org.apache.giraffa.UnlocatedBlock;
 import org.apache.giraffa.hbase.NamespaceAgent.BlockAction;
@@ -48,6 +51,7 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hdfs.DFSClient;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
@@ -75,12 +79,14 @@ public class BlockManagementAgent extends BaseRegionObserver {
   private static final String GRFA_HOME_DIR = "/giraffa";
   private static final String GRFA_BLOCKS_DIR = GRFA_HOME_DIR + "/finalized";
   private static final String GRFA_TMP_BLOCKS_DIR = GRFA_HOME_DIR + "/tmp";
+  private static final String GRFA_RECLAIM_DIR = GRFA_HOME_DIR + "/reclaim";
   private static final String GRFA_BLOCK_FILE_PREFFIX = "g";
   private static final String GRFA_TMP_FILE_PREFFIX = "tmp_";
 
   private DistributedFileSystem hdfs;
   private AtomicLong temporaryFileId;
   private String clientName;
+  private BlockReclaimer reclaimer;
 
   @Override // BaseRegionObserver
   public void start(CoprocessorEnvironment e) throws IOException {
@@ -96,12 +102,24 @@ public class BlockManagementAgent extends BaseRegionObserver {
       msg = "Cannot create finalized block directory: " + GRFA_BLOCKS_DIR;
     else if(!hdfs.mkdirs(new Path(GRFA_TMP_BLOCKS_DIR)))
       msg = "Cannot create remporary block directory: " + GRFA_TMP_BLOCKS_DIR;
+    else if(!hdfs.mkdirs(new Path(GRFA_RECLAIM_DIR)))
+      msg = "Cannot create block reclaim directory: " + GRFA_RECLAIM_DIR;
     if(msg != null) {
       LOG.error(msg);
       throw new IOException(msg);
     }
     temporaryFileId = new AtomicLong(now());
     clientName = getClientName();
+
+    String owner = e instanceof RegionCoprocessorEnvironment ?
+        ((RegionCoprocessorEnvironment) e).getRegion().getRegionInfo()
+            .getEncodedName() : clientName;
+    reclaimer = new BlockReclaimer(hdfs, new Path(GRFA_RECLAIM_DIR), owner,
+        conf.getLong(GiraffaConfiguration.GRFA_BLOCK_RECLAIM_INTERVAL_KEY,
+            GiraffaConfiguration.GRFA_BLOCK_RECLAIM_INTERVAL_DEFAULT),
+        conf.getInt(GiraffaConfiguration.GRFA_BLOCK_RECLAIM_BATCH_SIZE_KEY,
+            GiraffaConfiguration.GRFA_BLOCK_RECLAIM_BATCH_SIZE_DEFAULT));
+    reclaimer.start();
   }
 
   private String getClientName() {
@@ -111,6 +129,7 @@ public class BlockManagementAgent extends BaseRegionObserver {
 
   @Override // BaseRegionObserver
   public void stop(CoprocessorEnvironment e) {
+    if(reclaimer != null) reclaimer.stop();
     /*
     try {
       if(hdfs != null) hdfs.close();
@@ -124,14 +143,24 @@ public class BlockManagementAgent extends BaseRegionObserver {
   @Override // BaseRegionObserver
   public void prePut(ObserverContext<RegionCoprocessorEnvironment> e, Put put,
                      WALEdit edit, Durability durability) throws IOException {
+    // usage cells written into the rows of ancestors, see UsageJournal
+    if(!put.getFamilyCellMap().containsKey(FileField.getFileAttributes()))
+      return;
     List<KeyValue> kvs = getKeyValues(put);
     BlockAction blockAction = getBlockAction(kvs);
     if(blockAction == null) {
-      return;
+      if(!updateBlockIndex(kvs, false))
+        return;
     } else if(blockAction.equals(BlockAction.ALLOCATE)) {
       allocateBlock(kvs);
+      updateBlockIndex(kvs, true);
     } else if(blockAction.equals(BlockAction.CLOSE)) {
-      completeBlocks(kvs);
+      completeBlocks(kvs, true);
+      updateBlockIndex(kvs, true);
+    } else if(blockAction.equals(BlockAction.RECOVER)) {
+      // the block file is already closed by its lease recovery
+      completeBlocks(kvs, false);
+      updateBlockIndex(kvs, true);
     } else if(blockAction.equals(BlockAction.DELETE)) {
       deleteBlocks(kvs);
     }
@@ -139,6 +168,31 @@ public class BlockManagementAgent extends BaseRegionObserver {
         new ArrayList<Cell>(kvs));
   }
 
+  /**
+   * Build the index of the block list written by the put, unless the put
+   * already carries the index of unmodified blocks.
+   * @param modified true if the blocks have been changed by the agent
+   * @return true if the index has been added to the put
+   */
+  private boolean updateBlockIndex(List<KeyValue> kvs, boolean modified)
+      throws IOException {
+    KeyValue blockKv = findField(kvs, FileField.BLOCK);
+    if(blockKv == null)
+      return false;
+    KeyValue indexKv = findField(kvs, FileField.BLOCK_INDEX);
+    if(indexKv != null) {
+      if(!modified)
+        return false;
+      kvs.remove(indexKv);
+    }
+    KeyValue locsKv = findField(kvs, FileField.LOCATIONS);
+    byte[] index = BlockIndex.build(blockKv.getValue(),
+        locsKv == null ? new byte[0] : locsKv.getValue());
+    kvs.add(new KeyValue(blockKv.getRow(), FileField.getFileAttributes(),
+        FileField.getBlockIndex(), blockKv.getTimestamp(), index));
+    return true;
+  }
+
   private List<KeyValue> getKeyValues(Put put) {
     List<Cell> cells =
         put.getFamilyCellMap().get(FileField.getFileAttributes());
@@ -149,20 +203,35 @@ public class BlockManagementAgent extends BaseRegionObserver {
     return kvs;
   }
 
-  private void deleteBlocks(List<KeyValue> kvs) {
+  private void deleteBlocks(List<KeyValue> kvs) throws IOException {
     // remove the blockAction
     removeBlockAction(kvs);
+    reclaimBlocks(getFileBlocks(kvs));
+  }
 
-    List<UnlocatedBlock> al = getFileBlocks(kvs);
-    for(UnlocatedBlock block : al) {
-      try {
-        hdfs.delete(getGiraffaBlockPath(block.getBlock()), true);
-      } catch (IOException e) {
-        LOG.error("Error deleting Giraffa block: " + block);
-        continue;
-      }
-      LOG.info("Deleted Giraffa block: " + block);
+  /**
+   * Queue the blocks for deletion. Block files are deleted in the
+   * background by the {@link BlockReclaimer}.
+   */
+  void reclaimBlocks(List<UnlocatedBlock> blocks) throws IOException {
+    reclaimer.enqueue(getBlockFiles(blocks));
+  }
+
+  /**
+   * Queue the blocks for deletion, persisting the queue entry before
+   * returning, so that the blocks are reclaimed even if the region server
+   * fails after the rows referring to them are deleted.
+   */
+  void reclaimBlocksNow(List<UnlocatedBlock> blocks) throws IOException {
+    reclaimer.persist(getBlockFiles(blocks));
+  }
+
+  private List<Path> getBlockFiles(List<UnlocatedBlock> blocks) {
+    List<Path> blockFiles = new ArrayList<Path>(blocks.size());
+    for(UnlocatedBlock block : blocks) {
+      blockFiles.add(getGiraffaBlockPath(block.getBlock()));
     }
+    return blockFiles;
   }
 
 private void removeBlockAction(List<KeyValue> kvs) {
@@ -191,17 +260,48 @@ private void removeBlockAction(List<KeyValue> kvs) {
       byteArrayToBlockList(kv.getValue());
   }
 
-  private void completeBlocks(List<KeyValue> kvs) throws IOException {
+  private void completeBlocks(List<KeyValue> kvs, boolean closeBlockFile)
+      throws IOException {
     // remove the blockAction
     removeBlockAction(kvs);
 
     List<UnlocatedBlock> al = getFileBlocks(kvs);
     // get the last block
     UnlocatedBlock block = al.get(al.size()-1);
-    closeBlockFile(block.getBlock());
-    LOG.info("Block file is closed: " + block);
+    if(block.getBlockSize() == 0) {
+      // the block was allocated in advance but nothing was written into it
+      abandonLastBlock(kvs, al);
+    } else if(closeBlockFile) {
+      closeBlockFile(block.getBlock());
+      LOG.info("Block file is closed: " + block);
+    }
     // return total fileSize to update in the put
-    updateFileSize(kvs, getFileSize(al));
+    KeyValue dataKv = findField(kvs, FileField.DATA);
+    updateFileSize(kvs,
+        dataKv == null ? getFileSize(al) : dataKv.getValueLength());
+  }
+
+  /**
+   * Remove the last block from the file and delete its block file.
+   */
+  private void abandonLastBlock(List<KeyValue> kvs, List<UnlocatedBlock> al)
+      throws IOException {
+    UnlocatedBlock block = al.remove(al.size() - 1);
+    hdfs.delete(getGiraffaBlockPath(block.getBlock()), false);
+    LOG.info("Abandoned empty Giraffa block: " + block);
+
+    KeyValue blockKv = findField(kvs, FileField.BLOCK);
+    KeyValue locsKv = findField(kvs, FileField.LOCATIONS);
+    List<DatanodeInfo[]> al_locs = byteArrayToLocsList(locsKv.getValue());
+    al_locs.remove(al_locs.size() - 1);
+    kvs.remove(blockKv);
+    kvs.remove(locsKv);
+    kvs.add(new KeyValue(blockKv.getRow(), FileField.getFileAttributes(),
+        FileField.getBlock(), blockKv.getTimestamp(),
+        blockArrayToBytes(al)));
+    kvs.add(new KeyValue(locsKv.getRow(), FileField.getFileAttributes(),
+        FileField.getLocations(), locsKv.getTimestamp(),
+        locsArrayToBytes(al_locs)));
   }
 
   private void updateFileSize(List<KeyValue> kvs, long fileSize) {
@@ -315,6 +415,70 @@ private void removeBlockAction(List<KeyValue> kvs) {
     return block;
   }
 
+  /**
+   * Reopen the block file of the last block of a file for append.
+   * @return the block with its locations, or null if the block file is
+   * full and a new block should be allocated instead
+   */
+  LocatedBlock appendBlock(ExtendedBlock block) throws IOException {
+    String blockPathName = getGiraffaBlockPathName(block);
+    LocatedBlock located =
+        hdfs.getClient().getNamenode().append(blockPathName, clientName);
+    if(located == null) {
+      // the block file is reopened, but has no space left
+      closeBlockFile(block);
+      return null;
+    }
+    LOG.info("Reopened Giraffa block for append: " + located);
+    return located;
+  }
+
+  /**
+   * Get a new generation stamp for the block being written, when its
+   * pipeline is set up for append or recovered after a DataNode failure.
+   */
+  LocatedBlock updateBlockForPipeline(ExtendedBlock block)
+      throws IOException {
+    return hdfs.getClient().getNamenode().updateBlockForPipeline(
+        block, clientName);
+  }
+
+  /**
+   * Commit the new generation stamp and locations of the block being
+   * written.
+   */
+  void updatePipeline(ExtendedBlock oldBlock, ExtendedBlock newBlock,
+                      DatanodeID[] newNodes) throws IOException {
+    hdfs.getClient().getNamenode().updatePipeline(
+        clientName, oldBlock, newBlock, newNodes);
+  }
+
+  /**
+   * Recover the lease of the block file abandoned by its writer.
+   * The NameNode closes the block file once the replicas of its block are
+   * recovered, which may take several calls.
+   * @return the recovered block with its final length and generation stamp,
+   * or null if recovery is still in progress
+   */
+  ExtendedBlock recoverBlock(ExtendedBlock block) throws IOException {
+    Path blockPath = getGiraffaBlockPath(block);
+    ExtendedBlock recovered = new ExtendedBlock(block);
+    recovered.setNumBytes(0);
+    try {
+      if(!hdfs.recoverLease(blockPath))
+        return null;
+      LocatedBlock last = hdfs.getClient().getLocatedBlocks(
+          getGiraffaBlockPathName(block), 0).getLastLocatedBlock();
+      if(last != null)
+        recovered = last.getBlock();
+    } catch(FileNotFoundException e) {
+      // the block file was never written
+      LOG.warn("Block file does not exist: " + blockPath);
+    }
+    LOG.info("Recovered Giraffa block: " + recovered);
+    return recovered;
+  }
+
   private void closeBlockFile(ExtendedBlock block) throws IOException {
     boolean isClosed = false;
     while(!isClosed) {
@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Time;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Persistent queue of block files to be deleted in the background.
+ * <p>
+ * {@link #enqueue(List)} buffers the names of the block files in memory.
+ * A daemon thread periodically writes the buffered names into a new queue
+ * file in HDFS, so that the deletion survives restarts of the region
+ * server, then deletes the block files listed in the queue files of its
+ * owner, and the queue files themselves. The buffer is written early once
+ * it holds a batch of block files. Block files buffered when the region
+ * server fails are not reclaimed, callers deleting many rows at once
+ * {@link #persist(List)} the block files of each batch before the rows.
+ * <p>
+ * Queue files left behind by owners, which no longer exist, e.g. split
+ * regions, are claimed by renaming them once they get stale.
+ */
+class BlockReclaimer implements Runnable {
+  private static final Log LOG = LogFactory.getLog(BlockReclaimer.class);
+  private static final char SEPARATOR = '_';
+  /** Queue files not processed for this many intervals are stale. */
+  private static final int STALE_INTERVALS = 10;
+
+  private final FileSystem fs;
+  private final Path queueDir;
+  private final String owner;
+  private final long interval;
+  private final int batchSize;
+  private final AtomicLong queueFileId;
+  // block files not written to a queue file yet
+  private List<Path> buffer = new ArrayList<Path>();
+  private volatile boolean running;
+  private Thread thread;
+
+  BlockReclaimer(FileSystem fs, Path queueDir, String owner, long interval,
+                 int batchSize) {
+    this.fs = fs;
+    this.queueDir = queueDir;
+    this.owner = owner;
+    this.interval = interval;
+    this.batchSize = batchSize;
+    this.queueFileId = new AtomicLong(Time.now());
+  }
+
+  synchronized void start() {
+    running = true;
+    thread = new Thread(this, "BlockReclaimer-" + owner);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    synchronized(this) {
+      running = false;
+      if(thread != null)
+        thread.interrupt();
+      thread = null;
+    }
+    try {
+      flush();
+    } catch(IOException e) {
+      LOG.warn("Failed to queue block files in " + queueDir, e);
+    }
+  }
+
+  /**
+   * Buffer the block files to be deleted in the background.
+   */
+  synchronized void enqueue(List<Path> blockFiles) {
+    buffer.addAll(blockFiles);
+    if(buffer.size() >= batchSize)
+      notifyAll();
+  }
+
+  /**
+   * Persist the buffered block files into a new queue file.
+   */
+  void flush() throws IOException {
+    List<Path> blockFiles;
+    synchronized(this) {
+      if(buffer.isEmpty())
+        return;
+      blockFiles = buffer;
+      buffer = new ArrayList<Path>();
+    }
+    try {
+      persist(blockFiles);
+    } catch(IOException e) {
+      // keep the block files for the next attempt, names already written
+      // to the partial queue file are reclaimed twice, which is harmless
+      synchronized(this) {
+        buffer.addAll(blockFiles);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Write the block files into a new queue file, bypassing the buffer.
+   * Used by callers, which must not remove the references to the blocks
+   * before their deletion is persisted.
+   */
+  void persist(List<Path> blockFiles) throws IOException {
+    if(blockFiles.isEmpty())
+      return;
+    Path queueFile = new Path(queueDir,
+        owner + SEPARATOR + queueFileId.incrementAndGet());
+    FSDataOutputStream out = fs.create(queueFile, false);
+    try {
+      for(Path blockFile : blockFiles) {
+        out.write((blockFile.toUri().getPath() + "\n")
+            .getBytes(Charsets.UTF_8));
+      }
+    } finally {
+      out.close();
+    }
+    LOG.debug("Queued " + blockFiles.size() + " block files in " + queueFile);
+  }
+
+  @Override // Runnable
+  public void run() {
+    while(running) {
+      try {
+        flush();
+        reclaim();
+      } catch(IOException e) {
+        LOG.warn("Failed to reclaim blocks in " + queueDir, e);
+      }
+      synchronized(this) {
+        try {
+          if(running && buffer.size() < batchSize)
+            wait(interval);
+        } catch(InterruptedException e) {
+          // check running
+        }
+      }
+    }
+  }
+
+  /**
+   * Delete block files of all queue files owned by this reclaimer.
+   * @return number of processed queue files
+   */
+  int reclaim() throws IOException {
+    int processed = 0;
+    long staleTime = Time.now() - STALE_INTERVALS * interval;
+    for(FileStatus status : fs.listStatus(queueDir)) {
+      Path queueFile = status.getPath();
+      if(!queueFile.getName().startsWith(owner + SEPARATOR)) {
+        if(status.getModificationTime() > staleTime)
+          continue;
+        queueFile = claim(queueFile);
+        if(queueFile == null)
+          continue;
+      }
+      process(queueFile);
+      processed++;
+    }
+    return processed;
+  }
+
+  private Path claim(Path queueFile) throws IOException {
+    Path claimed = new Path(queueDir, owner + SEPARATOR + queueFile.getName());
+    // only one of the competing reclaimers succeeds to rename the file
+    if(!fs.rename(queueFile, claimed))
+      return null;
+    LOG.info("Claimed stale queue file " + queueFile);
+    return claimed;
+  }
+
+  private void process(Path queueFile) throws IOException {
+    int deleted = 0;
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(fs.open(queueFile), Charsets.UTF_8));
+    try {
+      String line;
+      while((line = in.readLine()) != null) {
+        if(line.isEmpty())
+          continue;
+        // the block file could be deleted before a restart
+        if(fs.delete(new Path(line), false))
+          deleted++;
+      }
+    } finally {
+      in.close();
+    }
+    fs.delete(queueFile, false);
+    LOG.info("Deleted " + deleted + " block files queued in " + queueFile);
+  }
+}
@@ -20,6 +20,8 @@ package org.apache.giraffa.hbase;
 import java.io.IOException;
 import java.util.List;
 
+import org.apache.giraffa.BlockIndex;
+import org.apache.giraffa.DirectoryUsage;
 import org.apache.giraffa.FileField;
 import org.apache.giraffa.GiraffaConstants;
 import org.apache.giraffa.GiraffaPBHelper;
@@ -49,6 +51,13 @@ public class FileFieldDeserializer {
     return GiraffaPBHelper.bytesToBlockLocations(value);
   }
 
+  public static BlockIndex getBlockIndex(Result res) {
+    byte[] family = FileField.getFileAttributes();
+    return new BlockIndex(res.getValue(family, FileField.getBlockIndex()),
+        res.getValue(family, FileField.getBlock()),
+        res.getValue(family, FileField.getLocations()));
+  }
+
   public static boolean getDirectory(Result res) {
     return res.containsColumn(FileField.getFileAttributes(),
         FileField.getDirectory());
@@ -122,4 +131,19 @@ public class FileFieldDeserializer {
     return Bytes.toLong(res.getValue(FileField.getFileAttributes(),
         FileField.getLength()));
   }
+
+  /**
+   * Returns the content of a file stored inline in its namespace row,
+   * or null if the file keeps its data in blocks.
+   */
+  public static byte[] getData(Result res) {
+    return res.getValue(FileField.getFileAttributes(), FileField.getData());
+  }
+
+  /**
+   * @return usage counters of a directory, or null if the row has none
+   */
+  public static DirectoryUsage getUsage(Result res) {
+    return UsageJournal.getUsage(res);
+  }
 }
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import org.apache.hadoop.util.Time;
+
+/**
+ * Monotonic clock generating timestamps of namespace mutations.
+ * <p>
+ * Timestamps follow the wall clock, but two calls never return the same
+ * value: if the wall clock has not advanced since the previous timestamp,
+ * the logical part is incremented instead. The logical part is folded into
+ * milliseconds, so that timestamps remain comparable with cells written
+ * with the region server time. When the rate of mutations drops the clock
+ * falls back to the wall clock.
+ * <p>
+ * This orders a Delete and a following Put of the same row even if both
+ * happen within the same millisecond, which HBase cannot do when the
+ * delete marker and the cells have equal timestamps.
+ * <p>
+ * Each region has its own clock, which observes only the timestamps of
+ * rows read by that region. Delete markers are never read, so a delete
+ * issued by one region, e.g. of a subtree spanning regions, and a later
+ * create of the same row by another region are ordered only if the clock
+ * of the deleting region is not ahead of the wall clock. Therefore all
+ * mutations of a batch, which touch distinct rows, share one timestamp,
+ * so that the clock runs ahead only by the number of operations issued
+ * within a millisecond rather than by the number of rows they touch.
+ */
+class HybridLogicalClock {
+  private long last;
+
+  /**
+   * @return a timestamp greater than any timestamp returned or observed
+   *         before
+   */
+  synchronized long next() {
+    last = Math.max(Time.now(), last + 1);
+    return last;
+  }
+
+  /**
+   * Advance the clock past a timestamp observed in the namespace table,
+   * possibly written by another region with a faster clock.
+   */
+  synchronized void update(long observed) {
+    last = Math.max(last, observed);
+  }
+
+  synchronized long current() {
+    return last;
+  }
+}
@@ -21,12 +21,23 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.BlockIndex;
+import org.apache.giraffa.DirectoryUsage;
 import org.apache.giraffa.FileField;
 import org.apache.giraffa.GiraffaConfiguration;
+import org.apache.giraffa.GiraffaConstants.FileState;
 import org.apache.giraffa.INode;
 import org.apache.giraffa.RowKey;
 import org.apache.giraffa.RowKeyBytes;
@@ -35,20 +46,34 @@ import org.apache.giraffa.hbase.NamespaceAgent.BlockAction;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.UnresolvedLinkException;
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.NotServingRegionException;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RowMutations;
 import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
 import org.apache.hadoop.security.AccessControlException;
-import org.apache.hadoop.util.Time;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 
 /**
@@ -60,9 +85,36 @@ public class INodeManager implements Closeable {
   private final String nsTableName;
   private final ThreadLocal<HTableInterface> nsTable =
       new ThreadLocal<HTableInterface>();
+  // table clients opened by all threads using this manager, such as the
+  // subtree walk pool and the background threads of the region
+  private final Set<HTableInterface> openTables = Collections.newSetFromMap(
+      new ConcurrentHashMap<HTableInterface, Boolean>());
+  // timestamps of all puts and deletes issued by this manager,
+  // ordered only with mutations of this region, see HybridLogicalClock
+  private final HybridLogicalClock clock = new HybridLogicalClock();
 
   private static final Log LOG = LogFactory.getLog(INodeManager.class);
 
+  // columns holding the blocks of a file, which may be large
+  private static final FileField[] BLOCK_FIELDS =
+      {FileField.BLOCK, FileField.LOCATIONS, FileField.BLOCK_INDEX};
+  // columns of usage cells are never reused, so all their versions are
+  // deleted; LATEST_TIMESTAMP would delete only those up to the server time
+  static final long ALL_VERSIONS = HConstants.LATEST_TIMESTAMP - 1;
+  // all other columns of a row except the pending block action
+  private static final List<byte[]> ATTRIBUTE_COLUMNS = new ArrayList<byte[]>();
+  static {
+    List<FileField> excluded = new ArrayList<FileField>(
+        Arrays.asList(BLOCK_FIELDS));
+    excluded.add(FileField.ACTION);
+    excluded.add(FileField.FILE_ATTRIBUTES);
+    excluded.add(FileField.USAGE);
+    for(FileField field : FileField.values()) {
+      if(!excluded.contains(field))
+        ATTRIBUTE_COLUMNS.add(field.getBytes());
+    }
+  }
+
   public INodeManager(Configuration conf, CoprocessorEnvironment env) {
     this.nsTableName = conf.get(GiraffaConfiguration.GRFA_TABLE_NAME_KEY,
         GiraffaConfiguration.GRFA_TABLE_NAME_DEFAULT);
@@ -71,15 +123,15 @@ public class INodeManager implements Closeable {
 
   @Override
   public void close() {
-    HTableInterface client = nsTable.get();
-    try {
-      if(client != null) {
+    nsTable.remove();
+    for(HTableInterface client : openTables) {
+      try {
         client.close();
-        nsTable.remove();
+      } catch (IOException e) {
+        LOG.error("Cannot close table: ",e);
       }
-    } catch (IOException e) {
-      LOG.error("Cannot close table: ",e);
     }
+    openTables.clear();
   }
 
   /**
@@ -91,18 +143,137 @@ public class INodeManager implements Closeable {
     return getINode(RowKeyFactory.newInstance(path));
   }
 
+  /**
+   * Fetch an INode by source path String, reading its blocks only if
+   * requested.
+   * @param path the source path String
+   * @param withBlocks whether the blocks of a file are read with the row,
+   * otherwise they are read on first access
+   * @return INode for the specified path
+   */
+  public INode getINode(String path, boolean withBlocks) throws IOException {
+    return getINode(RowKeyFactory.newInstance(path), withBlocks);
+  }
+
   /**
    * Fetch an INode, by RowKey.
    * @param key the RowKey
    * @return INode with the specified RowKey
    */
   public INode getINode(RowKey key) throws IOException {
-    Result nodeInfo = getNSTable().get(new Get(key.getKey()));
-    if(nodeInfo.isEmpty()) {
+    return getINode(key, true);
+  }
+
+  /**
+   * Fetch an INode by RowKey, reading its blocks only if requested.
+   * @param key the RowKey
+   * @param withBlocks whether the blocks of a file are read with the row,
+   * otherwise they are read on first access
+   * @return INode with the specified RowKey
+   */
+  public INode getINode(RowKey key, boolean withBlocks) throws IOException {
+    Result nodeInfo = get(newGet(key.getKey(), withBlocks));
+    if(!exists(nodeInfo)) {
       LOG.debug("File does not exist: " + key.getPath());
       return null;
     }
-    return newINode(key.getPath(), nodeInfo);
+    observeTimestamps(nodeInfo);
+    return newINode(key.getPath(), nodeInfo, withBlocks);
+  }
+
+  /**
+   * Fetch INodes of the given RowKeys with a single multi-Get.
+   * @param keys the RowKeys
+   * @return INodes in the order of the keys, null for missing rows
+   */
+  public List<INode> getINodes(List<RowKey> keys) throws IOException {
+    return getINodes(keys, true);
+  }
+
+  /**
+   * Fetch INodes of the given RowKeys with a single multi-Get, reading
+   * blocks of files only if requested.
+   * @param keys the RowKeys
+   * @param withBlocks whether the blocks of files are read with the rows,
+   * otherwise they are read on first access
+   * @return INodes in the order of the keys, null for missing rows
+   */
+  public List<INode> getINodes(List<RowKey> keys, boolean withBlocks)
+      throws IOException {
+    List<Get> gets = new ArrayList<Get>(keys.size());
+    for(RowKey key : keys) {
+      gets.add(newGet(key.getKey(), withBlocks));
+    }
+    Result[] results = get(gets);
+    List<INode> nodes = new ArrayList<INode>(keys.size());
+    for(int i = 0; i < results.length; i++) {
+      Result result = results[i];
+      if(result == null || !exists(result)) {
+        nodes.add(null);
+        continue;
+      }
+      observeTimestamps(result);
+      nodes.add(newINode(keys.get(i).getPath(), result, withBlocks));
+    }
+    return nodes;
+  }
+
+  /**
+   * Create a Get of the row, restricted to the attribute columns and the
+   * usage counters unless the blocks are requested.
+   */
+  static Get newGet(byte[] row, boolean withBlocks) {
+    Get get = new Get(row);
+    if(!withBlocks) {
+      byte[] family = FileField.getFileAttributes();
+      for(byte[] column : ATTRIBUTE_COLUMNS) {
+        get.addColumn(family, column);
+      }
+      get.addFamily(FileField.getUsage());
+    }
+    return get;
+  }
+
+  /**
+   * @return true if the result holds a file or directory, rather than
+   * usage cells left in the row of a deleted one
+   */
+  static boolean exists(Result result) {
+    return result.containsColumn(FileField.getFileAttributes(),
+        FileField.getFileName());
+  }
+
+  /**
+   * Create an INode from its row, which contains the blocks of a file
+   * unless withBlocks is false. Then the blocks are read on first access.
+   */
+  private INode newINode(String src, Result result, boolean withBlocks)
+      throws IOException {
+    INode node = newINode(src, result);
+    if(!withBlocks && !node.isDir())
+      node.setBlockLoader(newBlockLoader(node.getRowKey()));
+    return node;
+  }
+
+  private INode.BlockLoader newBlockLoader(final RowKey key) {
+    return new INode.BlockLoader() {
+      @Override
+      public BlockIndex loadBlocks() throws IOException {
+        // the name tells a file without blocks from a deleted one
+        byte[] family = FileField.getFileAttributes();
+        Get get = new Get(key.getKey());
+        get.addColumn(family, FileField.getFileName());
+        for(FileField field : BLOCK_FIELDS) {
+          get.addColumn(family, field.getBytes());
+        }
+        Result result = get(get);
+        if(result.isEmpty())
+          throw new FileNotFoundException("File does not exist: " +
+              key.getPath());
+        observeTimestamps(result);
+        return FileFieldDeserializer.getBlockIndex(result);
+      }
+    };
   }
 
   /**
@@ -115,61 +286,323 @@ public class INodeManager implements Closeable {
   /**
    * Commit the fields of the give INode into HBase. Additional stores a
    * BlockAction for processing by the BlockManagementAgent.
+   * <p>
+   * Of a node read from its row only the modified fields are written,
+   * provided the row still exists. New nodes and nodes with a BlockAction,
+   * which reads the whole row, are written with all fields.
    */
   public void updateINode(INode node, BlockAction ba)
       throws IOException {
-    long ts = Time.now();
+    Set<FileField> fields = ba == null ? node.getDirtyFields() : null;
+    Put put = null;
+    if(fields == null) {
+      put = newPut(node, ba);
+      put(put);
+    } else if(!fields.isEmpty() || node.isUsageReset() ||
+        !node.getUsageDeltas().isEmpty()) {
+      RowKey key = node.getRowKey();
+      put = newPut(node, null, fields);
+      if(!checkAndPut(FileField.getFileName(), getFileNameBytes(key), put))
+        throw new FileNotFoundException("File does not exist: " +
+            key.getPath());
+    }
+    node.markClean();
+    if(put != null)
+      applyIntents(put);
+  }
+
+  /**
+   * Commit the fields of the given INode into HBase, provided its row is
+   * still in the given state. The check and the write are a single atomic
+   * operation, so of concurrent state changes of a file only one succeeds.
+   * Of a node read from its row only the modified fields are written, unless
+   * a BlockAction is stored.
+   * @param expected the state the row must be in
+   * @return true if the row is written, false if its state has changed
+   * or it does not exist
+   */
+  public boolean updateINode(INode node, BlockAction ba, FileState expected)
+      throws IOException {
+    Put put = ba == null && node.getDirtyFields() != null ?
+        newPut(node, null, node.getDirtyFields()) : newPut(node, ba);
+    if(!checkAndPut(FileField.getFileState(),
+        Bytes.toBytes(expected.toString()), put))
+      return false;
+    node.markClean();
+    applyIntents(put);
+    return true;
+  }
+
+  /**
+   * Commit the fields of a new INode into HBase, unless its row already
+   * exists. The check and the write are a single atomic operation, so of
+   * concurrent creators of the same path only one succeeds.
+   * @return true if the row is written, false if it already exists
+   */
+  public boolean createINode(INode node, BlockAction ba) throws IOException {
+    if(node.isDir())
+      removeStaleUsage(node.getRowKey().getKey());
+    Put put = newPut(node, ba);
+    if(!checkAndPut(FileField.getFileName(), null, put))
+      return false;
+    node.markClean();
+    applyIntents(put);
+    return true;
+  }
+
+  /**
+   * Remove delta cells left in the row of a deleted directory, so that
+   * they are not counted by a directory created at its path.
+   */
+  private void removeStaleUsage(byte[] row) throws IOException {
+    Get get = new Get(row);
+    get.addFamily(FileField.getUsage());
+    Result result = get(get);
+    List<byte[]> columns = UsageJournal.getColumns(result);
+    // a base cell belongs to an existing directory
+    if(columns == null || UsageJournal.getUsage(result) != null)
+      return;
+    delete(newUsageDelete(row, columns));
+  }
+
+  private static Delete newUsageDelete(byte[] row, List<byte[]> columns) {
+    Delete delete = new Delete(row);
+    for(byte[] column : columns) {
+      delete.deleteColumns(FileField.getUsage(), column, ALL_VERSIONS);
+    }
+    return delete;
+  }
+
+  /**
+   * Write only the times of the row, leaving its other columns unchanged.
+   * The row is written only if it exists, so that a delayed update does not
+   * bring back a row deleted meanwhile.
+   * @param mtime modification time, or -1 to leave it unchanged
+   * @param atime access time, or -1 to leave it unchanged
+   * @return true if the times are written, false if the row does not exist
+   */
+  public boolean setTimes(RowKey key, long mtime, long atime)
+      throws IOException {
+    if(mtime == -1 && atime == -1)
+      return getINode(key) != null;
+    long ts = clock.next();
+    byte[] family = FileField.getFileAttributes();
+    Put put = new Put(key.getKey(), ts);
+    if(mtime != -1)
+      put.add(family, FileField.getMTime(), ts, Bytes.toBytes(mtime));
+    if(atime != -1)
+      put.add(family, FileField.getATime(), ts, Bytes.toBytes(atime));
+    return checkAndPut(FileField.getFileName(), getFileNameBytes(key), put);
+  }
+
+  /**
+   * Write only the access time of the row, if the row still holds the given
+   * modification time. A delayed update thus neither brings back a row
+   * deleted meanwhile, nor applies to a file recreated at the same path.
+   * @return true if the access time is written
+   */
+  public boolean setAccessTime(RowKey key, long mtime, long atime)
+      throws IOException {
+    long ts = clock.next();
+    Put put = new Put(key.getKey(), ts);
+    put.add(FileField.getFileAttributes(), FileField.getATime(), ts,
+        Bytes.toBytes(atime));
+    // access times may be lost anyway, so the rows flushed together share
+    // the WAL syncs instead of waiting for one each
+    put.setDurability(Durability.ASYNC_WAL);
+    return checkAndPut(FileField.getMTime(), Bytes.toBytes(mtime), put);
+  }
+
+  private static byte[] getFileNameBytes(RowKey key) {
+    return RowKeyBytes.toBytes(new Path(key.getPath()).getName());
+  }
+
+  /**
+   * Commit the fields of the given INodes to HBase in a single batch.
+   */
+  public void updateINodes(List<INode> nodes) throws IOException {
+    long ts = clock.next();
+    List<Put> puts = new ArrayList<Put>(nodes.size());
+    for(INode node : nodes) {
+      puts.add(newPut(node, null, null, ts));
+    }
+    getNSTable().put(puts);
+    for(INode node : nodes) {
+      node.markClean();
+    }
+    for(Put put : puts) {
+      applyIntents(put);
+    }
+  }
+
+  /**
+   * Build the Put committing the fields of the given INode.
+   */
+  private Put newPut(INode node, BlockAction ba) throws IOException {
+    return newPut(node, ba, null);
+  }
+
+  /**
+   * Build the Put committing the given fields of the INode.
+   * @param fields fields to write, or null to write all fields
+   */
+  private Put newPut(INode node, BlockAction ba, Set<FileField> fields)
+      throws IOException {
+    return newPut(node, ba, fields, clock.next());
+  }
+
+  /**
+   * Build the Put committing the given fields of the INode with the given
+   * timestamp, which may be shared by all mutations of a batch.
+   */
+  private Put newPut(INode node, BlockAction ba, Set<FileField> fields,
+                     long ts) throws IOException {
     RowKey key = node.getRowKey();
     byte[] family = FileField.getFileAttributes();
     Put put = new Put(node.getRowKey().getKey(), ts);
-    put.add(family, FileField.getFileName(), ts,
-            RowKeyBytes.toBytes(new Path(key.getPath()).getName()))
-        .add(family, FileField.getUserName(), ts,
-            RowKeyBytes.toBytes(node.getOwner()))
-        .add(family, FileField.getGroupName(), ts,
-            RowKeyBytes.toBytes(node.getGroup()))
-        .add(family, FileField.getLength(), ts,
-            Bytes.toBytes(node.getLen()))
-        .add(family, FileField.getPermissions(), ts,
-            Bytes.toBytes(node.getPermission().toShort()))
-        .add(family, FileField.getMTime(), ts,
-            Bytes.toBytes(node.getModificationTime()))
-        .add(family, FileField.getATime(), ts,
-            Bytes.toBytes(node.getAccessTime()))
-        .add(family, FileField.getDsQuota(), ts,
-            Bytes.toBytes(node.getDsQuota()))
-        .add(family, FileField.getNsQuota(), ts,
-            Bytes.toBytes(node.getNsQuota()))
-        .add(family, FileField.getReplication(), ts,
-            Bytes.toBytes(node.getReplication()))
-        .add(family, FileField.getBlockSize(), ts,
-            Bytes.toBytes(node.getBlockSize()))
-        .add(family, FileField.getRenameState(), ts,
-            node.getRenameStateBytes());
+    if(fields == null) {
+      put.add(family, FileField.getFileName(), ts, getFileNameBytes(key))
+          .add(family, FileField.getBlockSize(), ts,
+              Bytes.toBytes(node.getBlockSize()));
+    }
+    if(writes(fields, FileField.USER_NAME))
+      put.add(family, FileField.getUserName(), ts,
+          RowKeyBytes.toBytes(node.getOwner()));
+    if(writes(fields, FileField.GROUP_NAME))
+      put.add(family, FileField.getGroupName(), ts,
+          RowKeyBytes.toBytes(node.getGroup()));
+    if(writes(fields, FileField.LENGTH))
+      put.add(family, FileField.getLength(), ts,
+          Bytes.toBytes(node.getLen()));
+    if(writes(fields, FileField.PERMISSIONS))
+      put.add(family, FileField.getPermissions(), ts,
+          Bytes.toBytes(node.getPermission().toShort()));
+    if(writes(fields, FileField.M_TIME))
+      put.add(family, FileField.getMTime(), ts,
+          Bytes.toBytes(node.getModificationTime()));
+    if(writes(fields, FileField.A_TIME))
+      put.add(family, FileField.getATime(), ts,
+          Bytes.toBytes(node.getAccessTime()));
+    if(writes(fields, FileField.DS_QUOTA))
+      put.add(family, FileField.getDsQuota(), ts,
+          Bytes.toBytes(node.getDsQuota()));
+    if(writes(fields, FileField.NS_QUOTA))
+      put.add(family, FileField.getNsQuota(), ts,
+          Bytes.toBytes(node.getNsQuota()));
+    if(writes(fields, FileField.REPLICATION))
+      put.add(family, FileField.getReplication(), ts,
+          Bytes.toBytes(node.getReplication()));
+    if(writes(fields, FileField.RENAME_STATE))
+      put.add(family, FileField.getRenameState(), ts,
+          node.getRenameStateBytes());
 
     // symlink
-    if(node.getSymlink() != null) {
+    if(fields == null && node.getSymlink() != null) {
       put.add(family, FileField.getSymlink(), ts, node.getSymlink());
     }
 
     // file/directory specific columns
     if(node.isDir()) {
-      put.add(family, FileField.getDirectory(), ts,
-          Bytes.toBytes(node.isDir()));
+      if(fields == null)
+        put.add(family, FileField.getDirectory(), ts,
+            Bytes.toBytes(node.isDir()));
+      if(node.isUsageReset()) {
+        byte[] base = UsageJournal.newColumn(UsageJournal.BASE, ts);
+        put.add(FileField.getUsage(), base, ts,
+            UsageJournal.toBytes(node.getUsage()));
+        node.setUsage(node.getUsage());
+        node.setUsageColumns(Collections.singletonList(base));
+      }
     }
     else {
-      put.add(family, FileField.getBlock(), ts, node.getBlocksBytes())
-          .add(family, FileField.getLocations(), ts, node.getLocationsBytes())
-          .add(family, FileField.getFileState(), ts,
-              Bytes.toBytes(node.getFileState().toString()));
+      if(writes(fields, FileField.BLOCK))
+        put.add(family, FileField.getBlock(), ts, node.getBlocksBytes())
+            .add(family, FileField.getLocations(), ts,
+                node.getLocationsBytes());
+      if(writes(fields, FileField.FILE_STATE))
+        put.add(family, FileField.getFileState(), ts,
+            Bytes.toBytes(node.getFileState().toString()));
+      if(writes(fields, FileField.DATA) && node.isInline()) {
+        put.add(family, FileField.getData(), ts, node.getInlineData());
+      }
+      // otherwise BlockManagementAgent builds the index of modified blocks
+      byte[] blockIndex = writes(fields, FileField.BLOCK_INDEX) ?
+          node.getBlockIndexBytes() : null;
+      if(blockIndex != null) {
+        put.add(family, FileField.getBlockIndex(), ts, blockIndex);
+      }
     }
 
     // block action
     if(ba != null) {
       put.add(family, FileField.getAction(), ts, Bytes.toBytes(ba.toString()));
     }
+    addIntents(node, put, ts);
+    return put;
+  }
 
-    getNSTable().put(put);
+  /**
+   * Add the usage deltas of the node to the put as intent cells, which are
+   * applied to the ancestors once the put succeeds, see UsageJournal.
+   */
+  private static void addIntents(INode node, Put put, long ts) {
+    for(Map.Entry<String, DirectoryUsage> delta :
+        node.getUsageDeltas().entrySet()) {
+      put.add(FileField.getUsage(),
+          UsageJournal.newColumn(UsageJournal.INTENT, ts), ts,
+          UsageJournal.newIntent(delta.getKey(), delta.getValue()));
+    }
+  }
+
+  /**
+   * Apply the intents of a successful put to the ancestors of their paths.
+   */
+  private void applyIntents(Put put) {
+    List<Cell> cells = put.getFamilyCellMap().get(FileField.getUsage());
+    if(cells == null)
+      return;
+    Map<byte[], byte[]> intents =
+        new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+    for(Cell cell : cells) {
+      KeyValue kv = KeyValueUtil.ensureKeyValue(cell);
+      if(kv.getQualifier()[0] == UsageJournal.INTENT)
+        intents.put(kv.getQualifier(), kv.getValue());
+    }
+    if(!intents.isEmpty())
+      applyIntents(put.getRow(), intents);
+  }
+
+  /**
+   * Write the deltas of the intents recorded in the row into the rows of
+   * the ancestors of their paths, and remove the intents. Deltas are named
+   * by the intents, so applying an intent again has no further effect.
+   * Intents left by a failure are applied later by the UsageJournal.
+   */
+  void applyIntents(byte[] row, Map<byte[], byte[]> intents) {
+    byte[] family = FileField.getUsage();
+    long ts = clock.next();
+    List<Put> puts = new ArrayList<Put>();
+    try {
+      for(Map.Entry<byte[], byte[]> intent : intents.entrySet()) {
+        byte[] column = UsageJournal.getDeltaColumn(intent.getKey());
+        byte[] delta = UsageJournal.getIntentDelta(intent.getValue());
+        Path path = new Path(UsageJournal.getIntentPath(intent.getValue()));
+        for(Path dir = path.getParent(); dir != null; dir = dir.getParent()) {
+          Put put = new Put(
+              RowKeyFactory.newInstance(dir.toString()).getKey(), ts);
+          put.add(family, column, ts, delta);
+          puts.add(put);
+        }
+      }
+      getNSTable().put(puts);
+      delete(newUsageDelete(row, new ArrayList<byte[]>(intents.keySet())));
+    } catch(IOException e) {
+      LOG.warn("Usage of ancestors is updated later by the usage journal", e);
+    }
+  }
+
+  private static boolean writes(Set<FileField> fields, FileField field) {
+    return fields == null || fields.contains(field);
   }
 
   /**
@@ -190,11 +623,30 @@ public class INodeManager implements Closeable {
    */
   public void map(INode root, byte[] startAfter, int limit, Function f)
       throws IOException {
+    map(root, startAfter, limit, true, f);
+  }
+
+  /**
+   * Apply the given function to each child of the specified directory,
+   * reading blocks of files only if requested.
+   * @param root the directory whose children to scan
+   * @param startAfter the name to start scanning after encoded in java UTF8
+   * @param limit the maximum number of nodes to scan
+   * @param withBlocks whether the blocks of files are read with the rows,
+   * otherwise they are read on first access
+   * @param f the function to apply to each child INode
+   */
+  public void map(INode root, byte[] startAfter, int limit,
+                  boolean withBlocks, Function f) throws IOException {
     RowKey key = root.getRowKey();
-    ResultScanner rs = getListingScanner(key, startAfter);
+    ResultScanner rs = getListingScanner(key, startAfter, withBlocks);
     try {
-      for(Result result : Iterables.limit(rs, limit)) {
-        f.apply(newINodeByParent(key.getPath(), result));
+      for(Result result : Iterables.limit(
+          Iterables.filter(rs, EXISTS), limit)) {
+        INode node = newINodeByParent(key.getPath(), result);
+        if(!withBlocks && !node.isDir())
+          node.setBlockLoader(newBlockLoader(node.getRowKey()));
+        f.apply(node);
       }
     } finally {
       rs.close();
@@ -206,13 +658,16 @@ public class INodeManager implements Closeable {
    * @param dir the directory to list
    * @param startAfter the name to start listing after encoded in java UTF8
    * @param limit the maximum number of nodes to list
+   * @param withBlocks whether the blocks of files are read with the rows,
+   * otherwise they are read on first access
    * @return a list of INodes representing the children of the given directory
    */
-  public List<INode> getListing(INode dir, byte[] startAfter, int limit)
+  public List<INode> getListing(INode dir, byte[] startAfter, int limit,
+                                boolean withBlocks)
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
     final List<INode> nodes = new ArrayList<INode>();
-    map(dir, startAfter, limit, new Function() {
+    map(dir, startAfter, limit, withBlocks, new Function() {
       @Override
       public void apply(INode input) throws IOException {
         nodes.add(input);
@@ -252,7 +707,15 @@ public class INodeManager implements Closeable {
    * Returns whether the given directory has any children.
    */
   public boolean isEmptyDirectory(INode dir) throws IOException {
-    ResultScanner rs = getListingScanner(dir.getRowKey());
+    // a single cell of the first child is enough; rows of deleted
+    // directories with usage cells only have no name and are not returned
+    RowKey key = dir.getRowKey();
+    Scan scan = new Scan(key.getStartListingKey(HdfsFileStatus.EMPTY_NAME),
+        key.getStopListingKey());
+    scan.addColumn(FileField.getFileAttributes(), FileField.getFileName());
+    scan.setFilter(new FirstKeyOnlyFilter());
+    scan.setCaching(1);
+    ResultScanner rs = getNSTable().getScanner(scan);
     try {
       return rs.next() == null;
     } finally {
@@ -264,28 +727,288 @@ public class INodeManager implements Closeable {
    * Deletes the given node's row from HBase.
    */
   public void delete(INode node) throws IOException {
-    getNSTable().delete(new Delete(node.getRowKey().getKey()));
+    long ts = clock.next();
+    Delete delete = newDelete(node, ts);
+    Put intents = newIntentPut(node, ts);
+    if(intents == null) {
+      delete(delete);
+    } else {
+      mutateRow(delete, intents);
+      node.markClean();
+      applyIntents(intents);
+    }
   }
 
   /**
    * Batch deletes the given nodes' rows from HBase
    */
   public void delete(List<INode> nodes) throws IOException {
+    // rows of a batch differ, so a single timestamp orders them all after
+    // the previous mutations, without moving the clock ahead per row
+    long ts = clock.next();
     List<Delete> deletes = new ArrayList<Delete>();
     for(INode node : nodes) {
-      deletes.add(new Delete(node.getRowKey().getKey()));
+      if(node.getUsageDeltas().isEmpty())
+        deletes.add(newDelete(node, ts));
+      else
+        delete(node);
     }
     getNSTable().delete(deletes);
   }
 
+  /**
+   * Build the Delete of the row of the given node.
+   * <p>
+   * Usage cells of a directory are deleted by name, since they are written
+   * by other regions, whose time may be behind the clock. Intents recorded
+   * in the row are kept until they are applied.
+   */
+  private Delete newDelete(INode node, long ts) throws IOException {
+    byte[] row = node.getRowKey().getKey();
+    Delete delete = new Delete(row, ts);
+    delete.deleteFamily(FileField.getFileAttributes(), ts);
+    if(!node.isDir())
+      return delete;
+    List<byte[]> columns = node.getUsageColumns();
+    if(columns == null) {
+      Get get = new Get(row);
+      get.addFamily(FileField.getUsage());
+      columns = UsageJournal.getColumns(get(get));
+    }
+    if(columns != null) {
+      for(byte[] column : columns) {
+        delete.deleteColumns(FileField.getUsage(), column, ALL_VERSIONS);
+      }
+    }
+    return delete;
+  }
+
+  /**
+   * @return the Put of the intents of a deleted node, or null if none
+   */
+  private static Put newIntentPut(INode node, long ts) {
+    if(node.getUsageDeltas().isEmpty())
+      return null;
+    Put put = new Put(node.getRowKey().getKey(), ts);
+    addIntents(node, put, ts);
+    return put;
+  }
+
+  /**
+   * Delete a row and record intents in it with a single atomic mutation,
+   * directly in the region of this manager if local.
+   */
+  private void mutateRow(Delete delete, Put intents) throws IOException {
+    byte[] row = delete.getRow();
+    if(isLocalRow(row)) {
+      try {
+        getRegion().mutateRowsWithLocks(Arrays.<Mutation>asList(delete,
+            intents), Collections.singleton(row));
+        return;
+      } catch(NotServingRegionException e) {
+        LOG.debug("Region is closing, writing through the table client", e);
+      }
+    }
+    RowMutations mutations = new RowMutations(row);
+    mutations.add(delete);
+    mutations.add(intents);
+    getNSTable().mutateRow(mutations);
+  }
+
+  /**
+   * Atomically commits the given nodes and deletes rows of the other nodes.
+   * All rows must belong to the region of this manager. The mutations
+   * are not seen by region observers, so no BlockAction can be applied.
+   * @param updates nodes to commit
+   * @param deletes nodes to delete
+   */
+  public void mutateLocalRows(List<INode> updates, List<INode> deletes)
+      throws IOException {
+    List<Mutation> mutations =
+        new ArrayList<Mutation>(updates.size() + deletes.size());
+    SortedSet<byte[]> rows = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+    long ts = clock.next();
+    List<Put> puts = new ArrayList<Put>();
+    for(INode node : deletes) {
+      Delete delete = newDelete(node, ts);
+      mutations.add(delete);
+      rows.add(delete.getRow());
+      Put intents = newIntentPut(node, ts);
+      if(intents != null)
+        puts.add(intents);
+    }
+    for(INode node : updates) {
+      puts.add(newPut(node, null, null, ts));
+    }
+    mutations.addAll(puts);
+    for(Put put : puts) {
+      rows.add(put.getRow());
+    }
+    getRegion().mutateRowsWithLocks(mutations, rows);
+    for(INode node : updates) {
+      node.markClean();
+    }
+    for(INode node : deletes) {
+      node.markClean();
+    }
+    for(Put put : puts) {
+      applyIntents(put);
+    }
+  }
+
+  /**
+   * Hand the lease of a file over to the NamespaceProcessor of the region
+   * holding its row, which intercepts a checkAndPut marked with the path
+   * and the holder instead of writing it, like the put completing an
+   * inline file.
+   */
+  void transferLease(String src, String holder) throws IOException {
+    byte[] key = RowKeyFactory.newInstance(src).getKey();
+    byte[] family = FileField.getFileAttributes();
+    byte[] state = Bytes.toBytes(FileState.UNDER_CONSTRUCTION.toString());
+    Put put = new Put(key);
+    put.add(family, FileField.getFileState(), state);
+    put.setAttribute(NamespaceProcessor.LEASE_SRC_ATTRIBUTE,
+        Bytes.toBytes(src));
+    put.setAttribute(NamespaceProcessor.LEASE_HOLDER_ATTRIBUTE,
+        Bytes.toBytes(holder));
+    getNSTable().checkAndPut(key, family, FileField.getFileState(), state,
+        put);
+  }
+
+  /**
+   * Returns true if the row belongs to the region of this manager.
+   */
+  public boolean isLocalRow(RowKey key) {
+    return isLocalRow(key.getKey());
+  }
+
+  private boolean isLocalRow(byte[] row) {
+    if(!(env instanceof RegionCoprocessorEnvironment))
+      return false;
+    return HRegion.rowIsInRange(getRegion().getRegionInfo(), row);
+  }
+
+  HRegion getRegion() {
+    return ((RegionCoprocessorEnvironment) env).getRegion();
+  }
+
+  /**
+   * Scan the usage cells of the rows of the region of this manager.
+   */
+  ResultScanner getUsageScanner() throws IOException {
+    HRegionInfo info = getRegion().getRegionInfo();
+    Scan scan = new Scan(info.getStartKey(), info.getEndKey());
+    scan.addFamily(FileField.getUsage());
+    return getNSTable().getScanner(scan);
+  }
+
   /**
    * Gets the blocks and locations for the given INode from HBase and updates
    * the INode with the obtained information.
    */
   public void getBlocksAndLocations(INode node) throws IOException {
-    Result result = getNSTable().get(new Get(node.getRowKey().getKey()));
-    node.setBlocks(FileFieldDeserializer.getBlocks(result));
-    node.setLocations(FileFieldDeserializer.getLocations(result));
+    Result result = get(new Get(node.getRowKey().getKey()));
+    node.setBlockIndex(FileFieldDeserializer.getBlockIndex(result));
+  }
+
+  /**
+   * Read a row. Rows of the region of this manager are read directly from
+   * the region, saving the RPC of the table client back into this server.
+   */
+  private Result get(Get get) throws IOException {
+    if(isLocalRow(get.getRow())) {
+      try {
+        return getRegion().get(get);
+      } catch(NotServingRegionException e) {
+        LOG.debug("Region is closing, reading through the table client", e);
+      }
+    }
+    return getNSTable().get(get);
+  }
+
+  /**
+   * Read rows with a single multi-Get of the rows of other regions.
+   * Rows of the region of this manager are read directly from the region.
+   * @return results in the order of the gets
+   */
+  private Result[] get(List<Get> gets) throws IOException {
+    Result[] results = new Result[gets.size()];
+    List<Get> remoteGets = new ArrayList<Get>(gets.size());
+    List<Integer> remoteIndexes = new ArrayList<Integer>(gets.size());
+    for(int i = 0; i < gets.size(); i++) {
+      Get get = gets.get(i);
+      if(isLocalRow(get.getRow())) {
+        try {
+          results[i] = getRegion().get(get);
+          continue;
+        } catch(NotServingRegionException e) {
+          LOG.debug("Region is closing, reading through the table client", e);
+        }
+      }
+      remoteGets.add(get);
+      remoteIndexes.add(i);
+    }
+    if(remoteGets.isEmpty())
+      return results;
+    Result[] remoteResults = getNSTable().get(remoteGets);
+    for(int i = 0; i < remoteResults.length; i++) {
+      results[remoteIndexes.get(i)] = remoteResults[i];
+    }
+    return results;
+  }
+
+  /**
+   * Write a row. Rows of the region of this manager are written directly
+   * to the region, which runs the region observers as the table client
+   * does.
+   */
+  private void put(Put put) throws IOException {
+    if(isLocalRow(put.getRow())) {
+      try {
+        getRegion().put(put);
+        return;
+      } catch(NotServingRegionException e) {
+        LOG.debug("Region is closing, writing through the table client", e);
+      }
+    }
+    getNSTable().put(put);
+  }
+
+  /**
+   * Write a row if the given column of the row has the expected value,
+   * directly to the region of this manager if the row is local.
+   * @param value the expected value, or null if the column must not exist
+   * @return true if the row is written
+   */
+  private boolean checkAndPut(byte[] qualifier, byte[] value, Put put)
+      throws IOException {
+    byte[] row = put.getRow();
+    byte[] family = FileField.getFileAttributes();
+    if(isLocalRow(row)) {
+      try {
+        return getRegion().checkAndMutate(row, family, qualifier,
+            CompareOp.EQUAL, new BinaryComparator(value), put, true);
+      } catch(NotServingRegionException e) {
+        LOG.debug("Region is closing, writing through the table client", e);
+      }
+    }
+    return getNSTable().checkAndPut(row, family, qualifier, value, put);
+  }
+
+  /**
+   * Delete a row, directly from the region of this manager if local.
+   */
+  private void delete(Delete delete) throws IOException {
+    if(isLocalRow(delete.getRow())) {
+      try {
+        getRegion().delete(delete);
+        return;
+      } catch(NotServingRegionException e) {
+        LOG.debug("Region is closing, deleting through the table client", e);
+      }
+    }
+    getNSTable().delete(delete);
   }
 
   private HTableInterface getNSTable() {
@@ -300,20 +1023,35 @@ public class INodeManager implements Closeable {
     try {
       client = env.getTable(TableName.valueOf(nsTableName));
       nsTable.set(client);
+      openTables.add(client);
     } catch (IOException e) {
       LOG.error("Cannot get table: " + nsTableName, e);
     }
   }
 
+  /**
+   * Advance the clock past the timestamps of the row, so that subsequent
+   * mutations of the row are ordered after it.
+   */
+  private void observeTimestamps(Result result) {
+    for(KeyValue kv : result.raw()) {
+      clock.update(kv.getTimestamp());
+    }
+  }
+
   private INode newINodeByParent(String parent, Result res) throws IOException {
+    observeTimestamps(res);
     String fileName = FileFieldDeserializer.getFileName(res);
     return newINode(new Path(parent, fileName).toString(), res);
   }
 
-  private INode newINode(String src, Result result) throws IOException {
+  /**
+   * Create an INode for the given path from its namespace table row.
+   */
+  static INode newINode(String src, Result result) throws IOException {
     RowKey key = RowKeyFactory.newInstance(src, result.getRow());
     boolean directory = FileFieldDeserializer.getDirectory(result);
-    return new INode(
+    INode node = new INode(
         FileFieldDeserializer.getLength(result),
         directory,
         FileFieldDeserializer.getReplication(result),
@@ -329,22 +1067,50 @@ public class INodeManager implements Closeable {
         FileFieldDeserializer.getNsQuota(result),
         directory ? null : FileFieldDeserializer.getFileState(result),
         FileFieldDeserializer.getRenameState(result),
-        directory ? null : FileFieldDeserializer.getBlocks(result),
-        directory ? null : FileFieldDeserializer.getLocations(result));
+        null, null);
+    if(directory) {
+      node.setUsage(FileFieldDeserializer.getUsage(result));
+      node.setUsageColumns(UsageJournal.getColumns(result));
+    } else {
+      node.setInlineData(FileFieldDeserializer.getData(result));
+      node.setBlockIndex(FileFieldDeserializer.getBlockIndex(result));
+    }
+    node.markClean();
+    return node;
   }
 
+  /**
+   * Scan the attributes of all children of the directory, but not the
+   * blocks of its files.
+   */
   private ResultScanner getListingScanner(RowKey key)
       throws IOException {
-    return getListingScanner(key, HdfsFileStatus.EMPTY_NAME);
+    return getListingScanner(key, HdfsFileStatus.EMPTY_NAME, false);
   }
 
-  private ResultScanner getListingScanner(RowKey key, byte[] startAfter)
+  private ResultScanner getListingScanner(RowKey key, byte[] startAfter,
+                                          boolean withBlocks)
       throws IOException {
     byte[] start = key.getStartListingKey(startAfter);
     byte[] stop = key.getStopListingKey();
-    return getNSTable().getScanner(new Scan(start, stop));
+    Scan scan = new Scan(start, stop);
+    if(!withBlocks) {
+      byte[] family = FileField.getFileAttributes();
+      for(byte[] column : ATTRIBUTE_COLUMNS) {
+        scan.addColumn(family, column);
+      }
+    }
+    return getNSTable().getScanner(scan);
   }
 
+  // skips usage cells left in the rows of deleted directories
+  private static final Predicate<Result> EXISTS = new Predicate<Result>() {
+    @Override
+    public boolean apply(Result result) {
+      return exists(result);
+    }
+  };
+
   public interface Function {
     void apply(INode input) throws IOException;
   }
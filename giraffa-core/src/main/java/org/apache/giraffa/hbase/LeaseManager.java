@@ -0,0 +1,296 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.GiraffaConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.util.Time;
+
+/**
+ * In-memory table of leases of files under construction, shared by all
+ * regions of a region server.
+ * <p>
+ * A lease is held by a client for all files it writes through the regions
+ * of the server. Renewal only updates the lease time in memory, so clients
+ * renew their leases with a single lightweight call per region server.
+ * A daemon thread periodically recovers files of leases, which have not
+ * been renewed within the hard limit, through the {@link Recovery}
+ * registered with each file. Leases of files renamed into rows of another
+ * region are handed over to the processor of that region, so that they
+ * are renewed with the server holding the new rows.
+ * <p>
+ * The table is not persistent. Files remaining under construction after
+ * a restart of the region server can be recovered with recoverLease.
+ */
+class LeaseManager implements Runnable {
+  private static final Log LOG = LogFactory.getLog(LeaseManager.class);
+
+  private static final Map<Object, LeaseManager> MANAGERS =
+      new IdentityHashMap<Object, LeaseManager>();
+
+  /**
+   * Recovers a file under construction, whose lease expired.
+   */
+  interface Recovery {
+    /**
+     * @return true if the file is closed, false if recovery is in progress
+     * and should be retried later
+     */
+    boolean recoverFile(String src) throws IOException;
+  }
+
+  private static class Lease {
+    private final String holder;
+    private long lastUpdate;
+    private final Map<String, Recovery> files =
+        new HashMap<String, Recovery>();
+
+    Lease(String holder) {
+      this.holder = holder;
+      renew();
+    }
+
+    void renew() {
+      lastUpdate = Time.now();
+    }
+  }
+
+  private final Object server;
+  private final long hardLimit;
+  private final long checkInterval;
+  private final Map<String, Lease> leases = new HashMap<String, Lease>();
+  private final Map<String, Lease> leasesByFile = new HashMap<String, Lease>();
+  private int references;
+  private volatile boolean running;
+  private Thread thread;
+
+  private LeaseManager(Object server, Configuration conf) {
+    this.server = server;
+    this.hardLimit = conf.getLong(
+        GiraffaConfiguration.GRFA_LEASE_HARD_LIMIT_KEY,
+        GiraffaConfiguration.GRFA_LEASE_HARD_LIMIT_DEFAULT);
+    this.checkInterval = conf.getLong(
+        GiraffaConfiguration.GRFA_LEASE_CHECK_INTERVAL_KEY,
+        GiraffaConfiguration.GRFA_LEASE_CHECK_INTERVAL_DEFAULT);
+  }
+
+  /**
+   * Get the lease manager of the region server hosting the region.
+   * Each call must be paired with a call to {@link #release()}.
+   */
+  static LeaseManager acquire(RegionCoprocessorEnvironment env) {
+    Object server = env.getRegionServerServices();
+    if(server == null)
+      server = env.getRegion();
+    synchronized(MANAGERS) {
+      LeaseManager manager = MANAGERS.get(server);
+      if(manager == null) {
+        manager = new LeaseManager(server, env.getConfiguration());
+        MANAGERS.put(server, manager);
+        manager.start();
+      }
+      manager.references++;
+      return manager;
+    }
+  }
+
+  /**
+   * Release the lease manager, stopping it when no region uses it.
+   */
+  void release() {
+    synchronized(MANAGERS) {
+      if(--references > 0)
+        return;
+      MANAGERS.remove(server);
+      stop();
+    }
+  }
+
+  private synchronized void start() {
+    running = true;
+    thread = new Thread(this, "LeaseManager-" + server);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private synchronized void stop() {
+    running = false;
+    if(thread != null)
+      thread.interrupt();
+    thread = null;
+  }
+
+  /**
+   * Add the file to the lease of the holder.
+   */
+  synchronized void addLease(String holder, String src, Recovery recovery) {
+    removeLease(src);
+    Lease lease = leases.get(holder);
+    if(lease == null) {
+      lease = new Lease(holder);
+      leases.put(holder, lease);
+    } else {
+      lease.renew();
+    }
+    lease.files.put(src, recovery);
+    leasesByFile.put(src, lease);
+  }
+
+  /**
+   * @return the holder of the lease of the file, or null if not leased
+   */
+  synchronized String getHolder(String src) {
+    Lease lease = leasesByFile.get(src);
+    return lease == null ? null : lease.holder;
+  }
+
+  /**
+   * @return holders of the leases of the path and all files under it,
+   * by file
+   */
+  synchronized Map<String, String> getHolders(String src) {
+    Map<String, String> holders = new HashMap<String, String>();
+    for(String file : getLeasedFiles(src)) {
+      holders.put(file, leasesByFile.get(file).holder);
+    }
+    return holders;
+  }
+
+  /**
+   * Remove the file from its lease. Called when the file is closed.
+   */
+  synchronized void removeLease(String src) {
+    Lease lease = leasesByFile.remove(src);
+    if(lease == null)
+      return;
+    lease.files.remove(src);
+    if(lease.files.isEmpty())
+      leases.remove(lease.holder);
+  }
+
+  /**
+   * Remove leases of the path and all files under it.
+   */
+  synchronized void removeLeases(String src) {
+    for(String file : getLeasedFiles(src)) {
+      removeLease(file);
+    }
+  }
+
+  /**
+   * Move leases of the path and all files under it to the new path.
+   */
+  synchronized void renameLeases(String src, String dst) {
+    for(String file : getLeasedFiles(src)) {
+      Lease lease = leasesByFile.remove(file);
+      Recovery recovery = lease.files.remove(file);
+      String newFile = dst + file.substring(src.length());
+      lease.files.put(newFile, recovery);
+      leasesByFile.put(newFile, lease);
+    }
+  }
+
+  /**
+   * Remove all files registered with the given recovery, e.g. when the
+   * region which owns them is closed.
+   */
+  synchronized void removeLeases(Recovery recovery) {
+    for(Iterator<Lease> it = leases.values().iterator(); it.hasNext();) {
+      Lease lease = it.next();
+      for(Iterator<Map.Entry<String, Recovery>> files =
+          lease.files.entrySet().iterator(); files.hasNext();) {
+        Map.Entry<String, Recovery> file = files.next();
+        if(file.getValue() == recovery) {
+          leasesByFile.remove(file.getKey());
+          files.remove();
+        }
+      }
+      if(lease.files.isEmpty())
+        it.remove();
+    }
+  }
+
+  /**
+   * Renew the lease of the holder. Only the lease time is updated.
+   */
+  synchronized void renewLease(String holder) {
+    Lease lease = leases.get(holder);
+    if(lease != null)
+      lease.renew();
+  }
+
+  private List<String> getLeasedFiles(String src) {
+    String prefix = src.endsWith(Path.SEPARATOR) ? src : src + Path.SEPARATOR;
+    List<String> files = new ArrayList<String>();
+    for(String file : leasesByFile.keySet()) {
+      if(file.equals(src) || file.startsWith(prefix))
+        files.add(file);
+    }
+    return files;
+  }
+
+  @Override // Runnable
+  public void run() {
+    while(running) {
+      checkLeases();
+      try {
+        Thread.sleep(checkInterval);
+      } catch(InterruptedException e) {
+        // check running
+      }
+    }
+  }
+
+  /**
+   * Recover files of the leases which expired the hard limit.
+   * Files, which cannot be recovered yet, remain leased and are retried
+   * on the next check.
+   */
+  void checkLeases() {
+    Map<String, Recovery> expired = new HashMap<String, Recovery>();
+    synchronized(this) {
+      long expiry = Time.now() - hardLimit;
+      for(Lease lease : leases.values()) {
+        if(lease.lastUpdate < expiry)
+          expired.putAll(lease.files);
+      }
+    }
+    for(Map.Entry<String, Recovery> file : expired.entrySet()) {
+      String src = file.getKey();
+      try {
+        LOG.info("Lease of " + src + " expired, recovering the file");
+        if(file.getValue().recoverFile(src))
+          removeLease(src);
+      } catch(IOException e) {
+        LOG.warn("Failed to recover " + src, e);
+      }
+    }
+  }
+}
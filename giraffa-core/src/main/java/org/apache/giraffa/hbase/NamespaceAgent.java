@@ -36,15 +36,24 @@ import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_REPLICATION_KEY;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.AsyncNamespaceService;
 import org.apache.giraffa.FileField;
 import org.apache.giraffa.GiraffaConfiguration;
+import org.apache.giraffa.GiraffaConstants.FileState;
 import org.apache.giraffa.NamespaceService;
 import org.apache.giraffa.RowKey;
 import org.apache.giraffa.RowKeyFactory;
@@ -61,13 +70,19 @@ import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hbase.Coprocessor;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.TableNotFoundException;
 import org.apache.hadoop.hbase.ipc.CoprocessorRpcChannel;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hdfs.protocol.AlreadyBeingCreatedException;
 import org.apache.hadoop.hdfs.protocol.ClientProtocol;
 import org.apache.hadoop.hdfs.protocol.CorruptFileBlocks;
@@ -83,7 +98,6 @@ import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.hadoop.hdfs.protocol.NSQuotaExceededException;
 import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.ClientNamenodeProtocol;
-import org.apache.hadoop.hdfs.protocolPB.ClientNamenodeProtocolPB;
 import org.apache.hadoop.hdfs.protocolPB.ClientNamenodeProtocolTranslatorPB;
 import org.apache.hadoop.hdfs.security.token.block.DataEncryptionKey;
 import org.apache.hadoop.hdfs.security.token.delegation.DelegationTokenIdentifier;
@@ -92,11 +106,11 @@ import org.apache.hadoop.hdfs.server.namenode.SafeModeException;
 import org.apache.hadoop.io.EnumSetWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.retry.Idempotent;
-import org.apache.hadoop.ipc.ProtobufHelper;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.util.DataChecksum;
-import com.google.protobuf.ServiceException;
+
+import com.google.common.util.concurrent.ListenableFuture;
 
  /**
   * NamespaceAgent is the proxy used by DFSClient to communicate with HBase
@@ -114,12 +128,23 @@ public class NamespaceAgent implements NamespaceService {
                                   NamespaceProcessor.class.getName();
 
   public static enum BlockAction {
-    CLOSE, ALLOCATE, DELETE
+    CLOSE, ALLOCATE, DELETE, RECOVER
   }
 
   private HBaseAdmin hbAdmin;
-  private HTableInterface nsTable;
+  private HTable nsTable;
+  private final ConcurrentMap<String, RegionProxy> regionProxies =
+      new ConcurrentHashMap<String, RegionProxy>();
+  private final Set<String> openFiles =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // files of the blocks being written, pipeline updates do not carry paths
+  private final ConcurrentMap<Long, String> openBlocks =
+      new ConcurrentHashMap<Long, String>();
   private FsServerDefaults serverDefaults;
+  private NamespaceCache nsCache;
+  private boolean useConsistencyToken;
+  private int asyncThreads;
+  private AsyncNamespaceAgent asyncAgent;
 
   private static final Log LOG =
     LogFactory.getLog(NamespaceAgent.class.getName());
@@ -156,6 +181,24 @@ public class NamespaceAgent implements NamespaceService {
         conf.getLong(FS_TRASH_INTERVAL_KEY, FS_TRASH_INTERVAL_DEFAULT),
         checksumType);
 
+    if(conf.getBoolean(GiraffaConfiguration.GRFA_CLIENT_CACHE_ENABLED_KEY,
+        GiraffaConfiguration.GRFA_CLIENT_CACHE_ENABLED_DEFAULT)) {
+      this.nsCache = new NamespaceCache(
+          conf.getLong(GiraffaConfiguration.GRFA_CLIENT_CACHE_TTL_KEY,
+              GiraffaConfiguration.GRFA_CLIENT_CACHE_TTL_DEFAULT),
+          conf.getLong(GiraffaConfiguration.GRFA_CLIENT_CACHE_SIZE_KEY,
+              GiraffaConfiguration.GRFA_CLIENT_CACHE_SIZE_DEFAULT));
+      this.useConsistencyToken = conf.getBoolean(
+          GiraffaConfiguration.GRFA_CLIENT_CACHE_TOKEN_KEY,
+          GiraffaConfiguration.GRFA_CLIENT_CACHE_TOKEN_DEFAULT);
+      LOG.info("Client namespace cache is enabled" +
+          (useConsistencyToken ? " with consistency tokens" : ""));
+    }
+
+    this.asyncThreads = conf.getInt(
+        GiraffaConfiguration.GRFA_CLIENT_ASYNC_THREADS_KEY,
+        GiraffaConfiguration.GRFA_CLIENT_ASYNC_THREADS_DEFAULT);
+
     try {
       this.nsTable = new HTable(hbAdmin.getConfiguration(), tableName);
     } catch(TableNotFoundException tnfe) {
@@ -163,38 +206,119 @@ public class NamespaceAgent implements NamespaceService {
     }
   }
 
+  /**
+   * Returns asynchronous variant of this namespace service.
+   * The service is created on the first call and shares region proxies
+   * and the metadata cache with this agent.
+   */
+  public synchronized AsyncNamespaceService getAsyncService() {
+    if(asyncAgent == null)
+      asyncAgent = new AsyncNamespaceAgent(this, asyncThreads);
+    return asyncAgent;
+  }
+
+  /**
+   * Consistency token of a file is the latest timestamp of its row
+   * in the namespace table, or -1 if the file does not exist.
+   */
+  private long getConsistencyToken(String src) throws IOException {
+    Get get = new Get(RowKeyFactory.newInstance(src).getKey());
+    get.setFilter(new KeyOnlyFilter());
+    return getConsistencyToken(nsTable.get(get));
+  }
+
+  private static long getConsistencyToken(Result result) {
+    long token = -1;
+    if(result.isEmpty())
+      return token;
+    for(KeyValue kv : result.raw()) {
+      token = Math.max(token, kv.getTimestamp());
+    }
+    return token;
+  }
+
+  /** Invalidate cached status of the path after its attributes changed. */
+  void invalidateCache(String src) {
+    if(nsCache != null)
+      nsCache.invalidate(src);
+  }
+
+  /** Invalidate cached subtree and ancestors of a created or removed path. */
+  void invalidateCacheTree(String src) {
+    if(nsCache != null)
+      nsCache.invalidateTree(src);
+  }
+
   private ClientProtocol getRegionProxy(String src) throws IOException {    
     return getRegionProxy(RowKeyFactory.newInstance(src));
   }
   
-  private ClientProtocol getRegionProxy(RowKey key) {
-    // load blocking stub for protocol based on row key
+  /**
+   * Returns ClientProtocol proxy to the region serving the given key.
+   * Proxies are cached per region. A region name which is not in the cache
+   * means that region boundaries have changed (split or merge), in which
+   * case proxies of all cached regions overlapping the new one are dropped.
+   * Region moves do not require invalidation, since the rpc channel locates
+   * the region of the row it was built for on every call.
+   */
+  private ClientProtocol getRegionProxy(RowKey key) throws IOException {
+    return getRegion(key).proxy;
+  }
+
+  /**
+   * Returns the coprocessor channel to the region serving the given path.
+   */
+  CoprocessorRpcChannel getRegionChannel(String src) throws IOException {
+    return getRegion(RowKeyFactory.newInstance(src)).channel;
+  }
+
+  private RegionProxy getRegion(RowKey key) throws IOException {
+    HRegionInfo region =
+        nsTable.getRegionLocation(key.getKey()).getRegionInfo();
+    String regionName = region.getRegionNameAsString();
+    RegionProxy regionProxy = regionProxies.get(regionName);
+    if(regionProxy != null)
+      return regionProxy;
+
+    for(Iterator<RegionProxy> it = regionProxies.values().iterator();
+        it.hasNext();) {
+      HRegionInfo cached = it.next().region;
+      if(overlaps(cached, region)) {
+        LOG.debug("Evicting proxy for region " +
+            cached.getRegionNameAsString());
+        it.remove();
+      }
+    }
+    // bind the channel to the row of the request rather than to a region
+    // boundary, so that it addresses the region serving a real path
     CoprocessorRpcChannel channel = nsTable.coprocessorService(key.getKey());
-    final ClientNamenodeProtocol.BlockingInterface stub =
+    ClientNamenodeProtocol.BlockingInterface stub =
         ClientNamenodeProtocol.newBlockingStub(channel);
-    
-    // create a handler for forwarding proxy calls to blocking stub
-    InvocationHandler handler = new InvocationHandler(){
-      @Override
-      public Object invoke(Object proxy, Method method, Object[] args)
-          throws Throwable {
-        try {
-          return method.invoke(stub, args);
-        }catch(InvocationTargetException e) {
-          LOG.info(ProtobufHelper.getRemoteException(
-              (ServiceException) e.getCause()).getMessage());
-          throw e.getCause();
-        }
-      }
-    };
-    
-    // create a proxy implementation of ClientNamenodeProtocolPB
-    Class<ClientNamenodeProtocolPB> classObj = ClientNamenodeProtocolPB.class;
-    ClientNamenodeProtocolPB clientPB =
-        (ClientNamenodeProtocolPB) Proxy.newProxyInstance(
-            classObj.getClassLoader(), new Class[]{classObj}, handler);
-    
-    return new ClientNamenodeProtocolTranslatorPB(clientPB);
+    regionProxy = new RegionProxy(region, channel,
+        new ClientNamenodeProtocolTranslatorPB(
+            new ClientNamenodeProtocolStubPB(stub)));
+    RegionProxy existing = regionProxies.putIfAbsent(regionName, regionProxy);
+    return existing == null ? regionProxy : existing;
+  }
+
+  private static boolean overlaps(HRegionInfo a, HRegionInfo b) {
+    byte[] aEnd = a.getEndKey();
+    byte[] bEnd = b.getEndKey();
+    return (aEnd.length == 0 || Bytes.compareTo(b.getStartKey(), aEnd) < 0)
+        && (bEnd.length == 0 || Bytes.compareTo(a.getStartKey(), bEnd) < 0);
+  }
+
+  private static class RegionProxy {
+    final HRegionInfo region;
+    final CoprocessorRpcChannel channel;
+    final ClientProtocol proxy;
+
+    RegionProxy(HRegionInfo region, CoprocessorRpcChannel channel,
+                ClientProtocol proxy) {
+      this.region = region;
+      this.channel = channel;
+      this.proxy = proxy;
+    }
   }
 
   @Override // ClientProtocol
@@ -202,7 +326,11 @@ public class NamespaceAgent implements NamespaceService {
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    proxy.abandonBlock(b, src, holder);
+    try {
+      proxy.abandonBlock(b, src, holder);
+    } finally {
+      invalidateCache(src);
+    }
   }
 
   @Override // ClientProtocol
@@ -212,9 +340,15 @@ public class NamespaceAgent implements NamespaceService {
       NotReplicatedYetException, SafeModeException, UnresolvedLinkException,
       IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    LocatedBlock blk = proxy.addBlock(src, clientName, previous, excludeNodes);
+    LocatedBlock blk;
+    try {
+      blk = proxy.addBlock(src, clientName, previous, excludeNodes);
+    } finally {
+      invalidateCache(src);
+    }
     if(blk == null)
       throw new FileNotFoundException("File does not exist: " + src);
+    openBlocks.put(blk.getBlock().getBlockId(), src);
     LOG.info("Added block " + blk + " to file: " + src);
     return blk;
   }
@@ -224,7 +358,17 @@ public class NamespaceAgent implements NamespaceService {
       throws AccessControlException, DSQuotaExceededException,
       FileNotFoundException, SafeModeException, UnresolvedLinkException,
       IOException {
-    throw new IOException("append not supported");
+    ClientProtocol proxy = getRegionProxy(src);
+    LocatedBlock lastBlock;
+    try {
+      lastBlock = proxy.append(src, clientName);
+    } finally {
+      invalidateCache(src);
+    }
+    openFiles.add(src);
+    if(lastBlock != null)
+      openBlocks.put(lastBlock.getBlock().getBlockId(), src);
+    return lastBlock;
   }
 
   @Override // ClientProtocol
@@ -237,7 +381,13 @@ public class NamespaceAgent implements NamespaceService {
       throws AccessControlException, FileNotFoundException, SafeModeException,
       UnresolvedLinkException, IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    boolean res = proxy.complete(src, clientName, last);
+    boolean res;
+    try {
+      res = proxy.complete(src, clientName, last);
+    } finally {
+      invalidateCache(src);
+    }
+    moveOpenFiles(src, null);
     if(!res)
       throw new FileNotFoundException("File does not exist: " + src);
     LOG.info("File: " + src + " is " + (res ? "completed" : "not completed"));
@@ -247,7 +397,15 @@ public class NamespaceAgent implements NamespaceService {
   @Override // ClientProtocol
   public void concat(String trg, String[] srcs) throws IOException,
       UnresolvedLinkException {
-    throw new IOException("concat is not supported");
+    ClientProtocol proxy = getRegionProxy(trg);
+    try {
+      proxy.concat(trg, srcs);
+    } finally {
+      invalidateCache(trg);
+      for(String src : srcs) {
+        invalidateCacheTree(src);
+      }
+    }
   }
 
   @Override // ClientProtocol
@@ -263,8 +421,13 @@ public class NamespaceAgent implements NamespaceService {
       throw new IOException("Root cannot be a file.");
 
     ClientProtocol proxy = getRegionProxy(src);
-    proxy.create(src, masked, clientName, createFlag, createParent,
-        replication, blockSize);
+    try {
+      proxy.create(src, masked, clientName, createFlag, createParent,
+          replication, blockSize);
+    } finally {
+      invalidateCacheTree(src);
+    }
+    openFiles.add(src);
   }
 
   @Override // ClientProtocol
@@ -296,7 +459,12 @@ public class NamespaceAgent implements NamespaceService {
     }
 
     ClientProtocol proxy = getRegionProxy(src);
-    return proxy.delete(src, recursive);
+    try {
+      return proxy.delete(src, recursive);
+    } finally {
+      invalidateCacheTree(src);
+      moveOpenFiles(src, null);
+    }
   }
 
   @Override // ClientProtocol
@@ -344,6 +512,7 @@ public class NamespaceAgent implements NamespaceService {
         GiraffaConfiguration.GRFA_TABLE_NAME_DEFAULT);
     HTableDescriptor htd = new HTableDescriptor(TableName.valueOf(tableName));
     htd.addFamily(new HColumnDescriptor(FileField.getFileAttributes()));
+    htd.addFamily(new HColumnDescriptor(FileField.getUsage()));
     String coprocClass =
         conf.get(GRFA_COPROCESSOR_KEY, GRFA_COPROCESSOR_DEFAULT);
     htd.addCoprocessor(coprocClass, null, Coprocessor.PRIORITY_SYSTEM, null);
@@ -397,11 +566,126 @@ public class NamespaceAgent implements NamespaceService {
   @Override // ClientProtocol
   public HdfsFileStatus getFileInfo(String src) throws AccessControlException,
       FileNotFoundException, UnresolvedLinkException, IOException {
+    if(nsCache == null)
+      return getRegionProxy(src).getFileInfo(src);
+
+    // token is taken before the status, so that it can only be older
+    long token = useConsistencyToken ? getConsistencyToken(src) : 0;
+    NamespaceCache.CachedStatus cached = nsCache.getFileInfo(src);
+    if(cached != null && cached.token == token)
+      return cached.status;
     ClientProtocol proxy = getRegionProxy(src);
     HdfsFileStatus fStatus = proxy.getFileInfo(src);
+    nsCache.putFileInfo(src, fStatus, token);
     return fStatus;
   }
 
+  /**
+   * Statuses are fetched through the async service: the calls are sent
+   * in parallel to the regions serving the paths, which build the statuses
+   * from their rows. Statuses found in the cache are not fetched, unless
+   * their consistency tokens, read with a single multi-get, have changed.
+   */
+  @Override // NamespaceService
+  public HdfsFileStatus[] getFileInfos(String[] srcs) throws IOException {
+    HdfsFileStatus[] statuses = new HdfsFileStatus[srcs.length];
+    long[] tokens = nsCache != null && useConsistencyToken ?
+        getConsistencyTokens(srcs) : new long[srcs.length];
+    AsyncNamespaceService async = getAsyncService();
+    List<ListenableFuture<HdfsFileStatus>> futures =
+        new ArrayList<ListenableFuture<HdfsFileStatus>>(srcs.length);
+    for(int i = 0; i < srcs.length; i++) {
+      NamespaceCache.CachedStatus cached =
+          nsCache == null ? null : nsCache.getFileInfo(srcs[i]);
+      if(cached != null && cached.token == tokens[i]) {
+        statuses[i] = cached.status;
+        futures.add(null);
+      } else {
+        futures.add(async.getFileInfo(srcs[i]));
+      }
+    }
+    for(int i = 0; i < srcs.length; i++) {
+      if(futures.get(i) == null)
+        continue;
+      statuses[i] = getFileInfo(srcs[i], futures.get(i));
+      if(nsCache != null)
+        nsCache.putFileInfo(srcs[i], statuses[i], tokens[i]);
+    }
+    return statuses;
+  }
+
+  private long[] getConsistencyTokens(String[] srcs) throws IOException {
+    List<Get> gets = new ArrayList<Get>(srcs.length);
+    for(String src : srcs) {
+      Get get = new Get(RowKeyFactory.newInstance(src).getKey());
+      get.setFilter(new KeyOnlyFilter());
+      gets.add(get);
+    }
+    Result[] results = nsTable.get(gets);
+    long[] tokens = new long[srcs.length];
+    for(int i = 0; i < results.length; i++) {
+      tokens[i] = results[i] == null ? -1 : getConsistencyToken(results[i]);
+    }
+    return tokens;
+  }
+
+  private static HdfsFileStatus getFileInfo(String src,
+      ListenableFuture<HdfsFileStatus> future) throws IOException {
+    try {
+      return future.get();
+    } catch(InterruptedException e) {
+      future.cancel(false);
+      throw (IOException) new InterruptedIOException(
+          "Interrupted while getting file info of " + src).initCause(e);
+    } catch(ExecutionException e) {
+      if(e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException("Cannot get file info of " + src, e.getCause());
+    }
+  }
+
+  /**
+   * The data is sent in a checkAndPut marked with the path and the client
+   * name, which NamespaceProcessor of the region intercepts: it checks the
+   * state and the lease of the file and the disk space quota, and writes
+   * the data and closes the file in a single row update.
+   */
+  @Override // NamespaceService
+  public void completeInlineFile(String src, String clientName, byte[] data)
+      throws IOException {
+    byte[] key = RowKeyFactory.newInstance(src).getKey();
+    byte[] family = FileField.getFileAttributes();
+    Put put = new Put(key);
+    put.add(family, FileField.getData(), data);
+    put.setAttribute(NamespaceProcessor.INLINE_SRC_ATTRIBUTE,
+        Bytes.toBytes(src));
+    put.setAttribute(NamespaceProcessor.INLINE_CLIENT_ATTRIBUTE,
+        Bytes.toBytes(clientName));
+    boolean completed;
+    try {
+      completed = nsTable.checkAndPut(key, family, FileField.getFileState(),
+          Bytes.toBytes(FileState.UNDER_CONSTRUCTION.toString()), put);
+    } finally {
+      invalidateCache(src);
+    }
+    moveOpenFiles(src, null);
+    if(!completed)
+      throw new FileNotFoundException(
+          "File does not exist or is not under construction: " + src);
+  }
+
+  @Override // NamespaceService
+  public byte[] getInlineData(String src) throws IOException {
+    byte[] family = FileField.getFileAttributes();
+    Get get = new Get(RowKeyFactory.newInstance(src).getKey());
+    get.addColumn(family, FileField.getFileName());
+    get.addColumn(family, FileField.getData());
+    Result result = nsTable.get(get);
+    if(result.isEmpty())
+      throw new FileNotFoundException("File does not exist: " + src);
+    return FileFieldDeserializer.getData(result);
+  }
+
   @Override // ClientProtocol
   public HdfsFileStatus getFileLinkInfo(String src)
       throws AccessControlException, UnresolvedLinkException, IOException {
@@ -420,8 +704,17 @@ public class NamespaceAgent implements NamespaceService {
       throws IOException {
     if(startAfter == null)
       startAfter = new byte[0];
+    // block locations change independently of the namespace, do not cache
+    boolean cacheable = nsCache != null && !needLocation;
+    if(cacheable) {
+      DirectoryListing cached = nsCache.getListing(src, startAfter);
+      if(cached != null)
+        return cached;
+    }
     ClientProtocol proxy = getRegionProxy(src);
     DirectoryListing files = proxy.getListing(src, startAfter, needLocation);
+    if(cacheable)
+      nsCache.putListing(src, startAfter, files);
     return files;
   }
 
@@ -457,7 +750,12 @@ public class NamespaceAgent implements NamespaceService {
       ParentNotDirectoryException, SafeModeException, UnresolvedLinkException,
       IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    boolean created = proxy.mkdirs(src, masked, createParent);
+    boolean created;
+    try {
+      created = proxy.mkdirs(src, masked, createParent);
+    } finally {
+      invalidateCacheTree(src);
+    }
     if(!createParent && !created)
       throw new FileNotFoundException("File does not exist: " + src);
     return created;
@@ -465,7 +763,12 @@ public class NamespaceAgent implements NamespaceService {
 
   @Override // ClientProtocol
   public boolean recoverLease(String src, String clientName) throws IOException {
-    return false;
+    ClientProtocol proxy = getRegionProxy(src);
+    try {
+      return proxy.recoverLease(src, clientName);
+    } finally {
+      invalidateCache(src);
+    }
   }
 
   @Override // ClientProtocol
@@ -477,7 +780,16 @@ public class NamespaceAgent implements NamespaceService {
   public boolean rename(String src, String dst) throws UnresolvedLinkException,
       IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    return proxy.rename(src, dst);
+    boolean renamed = false;
+    try {
+      renamed = proxy.rename(src, dst);
+      return renamed;
+    } finally {
+      invalidateCacheTree(src);
+      invalidateCacheTree(dst);
+      if(renamed)
+        moveOpenFiles(src, dst);
+    }
   }
 
   @Override // ClientProtocol
@@ -487,7 +799,51 @@ public class NamespaceAgent implements NamespaceService {
       NSQuotaExceededException, ParentNotDirectoryException, SafeModeException,
       UnresolvedLinkException, IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    proxy.rename2(src, dst, options);
+    try {
+      proxy.rename2(src, dst, options);
+    } finally {
+      invalidateCacheTree(src);
+      invalidateCacheTree(dst);
+    }
+    moveOpenFiles(src, dst);
+  }
+
+  /**
+   * Move files open by this client under src to dst, or forget them if
+   * dst is null.
+   */
+  private void moveOpenFiles(String src, String dst) {
+    String prefix = src.endsWith(Path.SEPARATOR) ? src : src + Path.SEPARATOR;
+    for(Iterator<String> it = openFiles.iterator(); it.hasNext();) {
+      String file = it.next();
+      if(!file.equals(src) && !file.startsWith(prefix))
+        continue;
+      it.remove();
+      if(dst != null)
+        openFiles.add(dst + file.substring(src.length()));
+    }
+    for(Map.Entry<Long, String> block : openBlocks.entrySet()) {
+      String file = block.getValue();
+      if(!file.equals(src) && !file.startsWith(prefix))
+        continue;
+      if(dst == null)
+        openBlocks.remove(block.getKey(), file);
+      else
+        openBlocks.replace(block.getKey(), file,
+            dst + file.substring(src.length()));
+    }
+  }
+
+  /**
+   * Returns the proxy to the region of the file, which the block written
+   * by this client belongs to.
+   */
+  private ClientProtocol getBlockProxy(ExtendedBlock block)
+      throws IOException {
+    String src = openBlocks.get(block.getBlockId());
+    if(src == null)
+      throw new IOException("Block is not being written: " + block);
+    return getRegionProxy(src);
   }
 
   @Override // ClientProtocol
@@ -499,6 +855,16 @@ public class NamespaceAgent implements NamespaceService {
   @Override // ClientProtocol
   public void renewLease(String clientName) throws AccessControlException,
       IOException {
+    // leases are kept per region server, so a single call to any region
+    // of the server renews the leases of all files open on it
+    Set<String> servers = new HashSet<String>();
+    for(String src : openFiles) {
+      RowKey key = RowKeyFactory.newInstance(src);
+      String server =
+          nsTable.getRegionLocation(key.getKey()).getHostnamePort();
+      if(servers.add(server))
+        getRegionProxy(key).renewLease(clientName);
+    }
   }
 
   @Override // ClientProtocol
@@ -520,7 +886,11 @@ public class NamespaceAgent implements NamespaceService {
       throws AccessControlException, FileNotFoundException, SafeModeException,
       UnresolvedLinkException, IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    proxy.setOwner(src, username, groupname);
+    try {
+      proxy.setOwner(src, username, groupname);
+    } finally {
+      invalidateCache(src);
+    }
   }
 
   @Override // ClientProtocol
@@ -528,7 +898,11 @@ public class NamespaceAgent implements NamespaceService {
       throws AccessControlException, FileNotFoundException, SafeModeException,
       UnresolvedLinkException, IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    proxy.setPermission(src, permission);
+    try {
+      proxy.setPermission(src, permission);
+    } finally {
+      invalidateCache(src);
+    }
   }
 
   @Override // ClientProtocol
@@ -536,7 +910,11 @@ public class NamespaceAgent implements NamespaceService {
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    proxy.setQuota(src, namespaceQuota, diskspaceQuota);
+    try {
+      proxy.setQuota(src, namespaceQuota, diskspaceQuota);
+    } finally {
+      invalidateCache(src);
+    }
   }
 
   @Override // ClientProtocol
@@ -545,7 +923,11 @@ public class NamespaceAgent implements NamespaceService {
       FileNotFoundException, SafeModeException, UnresolvedLinkException,
       IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    return proxy.setReplication(src, replication);
+    try {
+      return proxy.setReplication(src, replication);
+    } finally {
+      invalidateCache(src);
+    }
   }
 
   @Override // ClientProtocol
@@ -559,23 +941,36 @@ public class NamespaceAgent implements NamespaceService {
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
     ClientProtocol proxy = getRegionProxy(src);
-    proxy.setTimes(src, mtime, atime);
+    try {
+      proxy.setTimes(src, mtime, atime);
+    } finally {
+      invalidateCache(src);
+    }
   }
 
   @Override // ClientProtocol
   public LocatedBlock updateBlockForPipeline(ExtendedBlock block, String clientName)
       throws IOException {
-    return null;
+    return getBlockProxy(block).updateBlockForPipeline(block, clientName);
   }
 
   @Override // ClientProtocol
   public void updatePipeline(
       String clientName, ExtendedBlock oldBlock, ExtendedBlock newBlock, DatanodeID[] newNodes)
       throws IOException {
+    getBlockProxy(oldBlock).updatePipeline(clientName, oldBlock, newBlock,
+        newNodes);
   }
 
   @Override // NamespaceService
   public void close() throws IOException {
+    synchronized(this) {
+      if(asyncAgent != null)
+        asyncAgent.close();
+    }
+    regionProxies.clear();
+    if(nsCache != null)
+      nsCache.clear();
     nsTable.close();
     hbAdmin.close();
   }
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Client side cache of file statuses and directory listings.
+ * Entries expire after a fixed time to live, and are invalidated by
+ * the client's own namespace modifications.
+ * Modifications made by other clients become visible after the entry
+ * expires, unless the entries are re-validated with consistency tokens.
+ * A token is the latest HBase timestamp of the file row, which is taken
+ * before the status is fetched from the namespace service.
+ */
+class NamespaceCache {
+  private static final char LISTING_KEY_SEPARATOR = '\0';
+
+  static class CachedStatus {
+    final HdfsFileStatus status;
+    final long token;
+
+    CachedStatus(HdfsFileStatus status, long token) {
+      this.status = status;
+      this.token = token;
+    }
+  }
+
+  private final Cache<String, CachedStatus> statuses;
+  private final Cache<String, DirectoryListing> listings;
+
+  NamespaceCache(long ttlMs, long maxEntries) {
+    this.statuses = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+        .maximumSize(maxEntries)
+        .build();
+    this.listings = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+        .maximumSize(maxEntries)
+        .build();
+  }
+
+  CachedStatus getFileInfo(String src) {
+    return statuses.getIfPresent(src);
+  }
+
+  void putFileInfo(String src, HdfsFileStatus status, long token) {
+    if(status != null)
+      statuses.put(src, new CachedStatus(status, token));
+  }
+
+  DirectoryListing getListing(String src, byte[] startAfter) {
+    return listings.getIfPresent(listingKey(src, startAfter));
+  }
+
+  void putListing(String src, byte[] startAfter, DirectoryListing listing) {
+    if(listing != null)
+      listings.put(listingKey(src, startAfter), listing);
+  }
+
+  /**
+   * Invalidate the status of the path and the listing of its parent.
+   * Used when attributes of a single file or directory change.
+   */
+  void invalidate(String src) {
+    statuses.invalidate(src);
+    String parent = getParent(src);
+    if(parent != null)
+      invalidateListings(parent);
+  }
+
+  /**
+   * Invalidate the path, all its descendants, and all its ancestors.
+   * Used when the path is created, deleted or renamed.
+   */
+  void invalidateTree(String src) {
+    String prefix = src.endsWith(Path.SEPARATOR) ? src : src + Path.SEPARATOR;
+    for(Iterator<String> it = statuses.asMap().keySet().iterator();
+        it.hasNext();) {
+      String key = it.next();
+      if(key.equals(src) || key.startsWith(prefix))
+        it.remove();
+    }
+    for(Iterator<String> it = listings.asMap().keySet().iterator();
+        it.hasNext();) {
+      String key = it.next();
+      String dir = key.substring(0, key.indexOf(LISTING_KEY_SEPARATOR));
+      if(dir.equals(src) || dir.startsWith(prefix))
+        it.remove();
+    }
+    for(String parent = getParent(src); parent != null;
+        parent = getParent(parent)) {
+      statuses.invalidate(parent);
+      invalidateListings(parent);
+    }
+  }
+
+  void clear() {
+    statuses.invalidateAll();
+    listings.invalidateAll();
+  }
+
+  private void invalidateListings(String dir) {
+    String prefix = dir + LISTING_KEY_SEPARATOR;
+    for(Iterator<String> it = listings.asMap().keySet().iterator();
+        it.hasNext();) {
+      if(it.next().startsWith(prefix))
+        it.remove();
+    }
+  }
+
+  private static String listingKey(String src, byte[] startAfter) {
+    return src + LISTING_KEY_SEPARATOR + Bytes.toStringBinary(startAfter);
+  }
+
+  private static String getParent(String src) {
+    Path parent = new Path(src).getParent();
+    return parent == null ? null : parent.toUri().getPath();
+  }
+}
@@ -36,16 +36,33 @@ import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_REPLICATION_KEY;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.BlockIndex;
+import org.apache.giraffa.DirectoryUsage;
+import org.apache.giraffa.FileField;
 import org.apache.giraffa.GiraffaConfiguration;
 import org.apache.giraffa.INode;
+import org.apache.giraffa.InlineFileException;
 import org.apache.giraffa.RenameState;
 import org.apache.giraffa.RowKey;
 import org.apache.giraffa.RowKeyFactory;
@@ -65,9 +82,16 @@ import org.apache.hadoop.fs.Options.Rename;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hbase.Coprocessor;
 import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
 import org.apache.hadoop.hbase.coprocessor.CoprocessorService;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
 import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
 import org.apache.hadoop.hbase.coprocessor.CoprocessorException;
+import org.apache.hadoop.hbase.filter.ByteArrayComparable;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hdfs.protocol.AlreadyBeingCreatedException;
 import org.apache.hadoop.hdfs.protocol.ClientProtocol;
 import org.apache.hadoop.hdfs.protocol.CorruptFileBlocks;
@@ -81,26 +105,42 @@ import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.apache.hadoop.hdfs.protocol.NSQuotaExceededException;
+import org.apache.hadoop.hdfs.protocol.QuotaExceededException;
 import org.apache.hadoop.hdfs.protocol.HdfsConstants.DatanodeReportType;
 import org.apache.hadoop.hdfs.protocol.HdfsConstants.SafeModeAction;
 import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.ClientNamenodeProtocol;
 import org.apache.hadoop.hdfs.security.token.block.DataEncryptionKey;
 import org.apache.hadoop.hdfs.security.token.delegation.DelegationTokenIdentifier;
+import org.apache.hadoop.hdfs.server.namenode.LeaseExpiredException;
 import org.apache.hadoop.hdfs.server.namenode.NotReplicatedYetException;
 import org.apache.hadoop.hdfs.server.namenode.SafeModeException;
 import org.apache.hadoop.io.EnumSetWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.security.AccessControlException;
-import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.util.DataChecksum;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.Service;
 
 /**
   */
-public class NamespaceProcessor implements ClientProtocol,
-    Coprocessor, CoprocessorService {
+public class NamespaceProcessor extends BaseRegionObserver
+    implements ClientProtocol, Coprocessor, CoprocessorService {
+  /**
+   * Attributes of a checkAndPut carrying the content of an inline file,
+   * which is intercepted by this processor and completes the file.
+   * ClientNamenodeProtocol has no call carrying file data.
+   */
+  public static final String INLINE_SRC_ATTRIBUTE = "grfa.inline.src";
+  public static final String INLINE_CLIENT_ATTRIBUTE = "grfa.inline.client";
+  /**
+   * Attributes of a checkAndPut handing the lease of a renamed file over
+   * to the processor of the region, which holds the new row of the file.
+   */
+  static final String LEASE_SRC_ATTRIBUTE = "grfa.lease.src";
+  static final String LEASE_HOLDER_ATTRIBUTE = "grfa.lease.holder";
+
   // RPC service fields
   ClientNamenodeProtocolServerSideCallbackTranslatorPB translator =
       new ClientNamenodeProtocolServerSideCallbackTranslatorPB(this);
@@ -112,6 +152,28 @@ public class NamespaceProcessor implements ClientProtocol,
 
   private int lsLimit;
 
+  private boolean preallocateBlock;
+
+  private int deleteBatchSize;
+  private int renameMaxRows;
+  private int renameBatchSize;
+  private ThreadPoolExecutor subtreeExecutor;
+  private QuotaCache quotaCache;
+  private LeaseManager leaseManager;
+  private UserGroupCache userGroupCache;
+  private long accessTimePrecision;
+  private AccessTimeBuffer accessTimeBuffer;
+  private UsageJournal usageJournal;
+  private final LeaseManager.Recovery leaseRecovery =
+      new LeaseManager.Recovery() {
+        @Override
+        public boolean recoverFile(String src) throws IOException {
+          return NamespaceProcessor.this.recoverFile(src);
+        }
+      };
+
+  private RegionCoprocessorEnvironment env;
+
   private static final Log LOG =
       LogFactory.getLog(NamespaceProcessor.class.getName());
    
@@ -138,6 +200,35 @@ public class NamespaceProcessor implements ClientProtocol,
         GiraffaConfiguration.GRFA_LIST_LIMIT_DEFAULT);
     this.lsLimit = configuredLimit > 0 ?
         configuredLimit : GiraffaConfiguration.GRFA_LIST_LIMIT_DEFAULT;
+    this.preallocateBlock = conf.getBoolean(
+        GiraffaConfiguration.GRFA_PREALLOCATE_BLOCK_KEY,
+        GiraffaConfiguration.GRFA_PREALLOCATE_BLOCK_DEFAULT);
+    this.deleteBatchSize = Math.max(1, conf.getInt(
+        GiraffaConfiguration.GRFA_DELETE_BATCH_SIZE_KEY,
+        GiraffaConfiguration.GRFA_DELETE_BATCH_SIZE_DEFAULT));
+    this.renameMaxRows = conf.getInt(
+        GiraffaConfiguration.GRFA_RENAME_ATOMIC_MAX_ROWS_KEY,
+        GiraffaConfiguration.GRFA_RENAME_ATOMIC_MAX_ROWS_DEFAULT);
+    this.renameBatchSize = Math.max(1, conf.getInt(
+        GiraffaConfiguration.GRFA_RENAME_BATCH_SIZE_KEY,
+        GiraffaConfiguration.GRFA_RENAME_BATCH_SIZE_DEFAULT));
+    int subtreeThreads = Math.max(1, conf.getInt(
+        GiraffaConfiguration.GRFA_SUBTREE_THREADS_KEY,
+        GiraffaConfiguration.GRFA_SUBTREE_THREADS_DEFAULT));
+    this.subtreeExecutor = new ThreadPoolExecutor(
+        subtreeThreads, subtreeThreads,
+        60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("NamespaceProcessor-subtree-%d").build());
+    this.subtreeExecutor.allowCoreThreadTimeOut(true);
+    this.quotaCache = new QuotaCache(
+        conf.getLong(GiraffaConfiguration.GRFA_QUOTA_CACHE_TTL_KEY,
+            GiraffaConfiguration.GRFA_QUOTA_CACHE_TTL_DEFAULT),
+        conf.getLong(GiraffaConfiguration.GRFA_QUOTA_CACHE_SIZE_KEY,
+            GiraffaConfiguration.GRFA_QUOTA_CACHE_SIZE_DEFAULT));
+    this.env = (RegionCoprocessorEnvironment) env;
+    this.leaseManager = LeaseManager.acquire(this.env);
+    this.userGroupCache = UserGroupCache.acquire(this.env);
     LOG.info("Caching is set to: " + RowKeyFactory.isCaching());
     LOG.info("RowKey is set to: " +
         RowKeyFactory.getRowKeyClass().getCanonicalName());
@@ -153,6 +244,19 @@ public class NamespaceProcessor implements ClientProtocol,
     }
 
     this.nodeManager = new INodeManager(conf, env);
+    this.accessTimePrecision = conf.getLong(
+        GiraffaConfiguration.GRFA_ACCESS_TIME_PRECISION_KEY,
+        GiraffaConfiguration.GRFA_ACCESS_TIME_PRECISION_DEFAULT);
+    this.accessTimeBuffer = new AccessTimeBuffer(nodeManager, conf.getLong(
+        GiraffaConfiguration.GRFA_ACCESS_TIME_FLUSH_INTERVAL_KEY,
+        GiraffaConfiguration.GRFA_ACCESS_TIME_FLUSH_INTERVAL_DEFAULT));
+    if(accessTimePrecision > 0)
+      accessTimeBuffer.start(
+          this.env.getRegion().getRegionInfo().getEncodedName());
+    this.usageJournal = new UsageJournal(nodeManager, conf.getLong(
+        GiraffaConfiguration.GRFA_USAGE_JOURNAL_INTERVAL_KEY,
+        GiraffaConfiguration.GRFA_USAGE_JOURNAL_INTERVAL_DEFAULT));
+    usageJournal.start(this.env.getRegion().getRegionInfo().getEncodedName());
     this.serverDefaults = new FsServerDefaults(
         conf.getLongBytes(DFS_BLOCK_SIZE_KEY, DFS_BLOCK_SIZE_DEFAULT),
         conf.getInt(DFS_BYTES_PER_CHECKSUM_KEY, DFS_BYTES_PER_CHECKSUM_DEFAULT),
@@ -169,6 +273,18 @@ public class NamespaceProcessor implements ClientProtocol,
   @Override // Coprocessor
   public void stop(CoprocessorEnvironment env) {
     LOG.info("Stopping NamespaceProcessor...");
+    if(subtreeExecutor != null)
+      subtreeExecutor.shutdownNow();
+    if(leaseManager != null) {
+      leaseManager.removeLeases(leaseRecovery);
+      leaseManager.release();
+    }
+    if(userGroupCache != null)
+      userGroupCache.release();
+    if(accessTimeBuffer != null)
+      accessTimeBuffer.stop();
+    if(usageJournal != null)
+      usageJournal.stop();
     nodeManager.close();
   }
 
@@ -191,6 +307,14 @@ public class NamespaceProcessor implements ClientProtocol,
       throw new FileNotFoundException("File does not exist: " + src);
     }
 
+    // the first block could have been allocated by create
+    if(previous == null && isPreallocated(iNode)) {
+      return iNode.getBlocks().get(0).toLocatedBlock(
+          iNode.getLocations().get(0));
+    }
+    checkQuota(getAncestorKeys(src), new DirectoryUsage(0, 0, 0,
+        iNode.getBlockSize() * iNode.getReplication()));
+
     // Calls addBlock on HDFS by putting another empty Block in HBase
     if(previous != null) {
       // we need to update in HBase the previous block
@@ -221,12 +345,61 @@ public class NamespaceProcessor implements ClientProtocol,
       return al_blks.get(last).toLocatedBlock(al_locs.get(last));
   }
 
+  /**
+   * True if the file has a single block, which has not been written yet.
+   */
+  private static boolean isPreallocated(INode iNode) throws IOException {
+    List<UnlocatedBlock> blocks = iNode.getBlocks();
+    return blocks.size() == 1 && blocks.get(0).getBlockSize() == 0;
+  }
+
   @Override // ClientProtocol
   public LocatedBlock append(String src, String clientName)
       throws AccessControlException, DSQuotaExceededException,
       FileNotFoundException, SafeModeException, UnresolvedLinkException,
       IOException {
-    throw new IOException("append is not supported");
+    INode iNode = nodeManager.getINode(src);
+    if(iNode == null)
+      throw new FileNotFoundException("File does not exist: " + src);
+    if(iNode.isDir())
+      throw new FileNotFoundException("Cannot append to directory: " + src);
+    if(iNode.getFileState() == FileState.UNDER_CONSTRUCTION)
+      throw new AlreadyBeingCreatedException("Failed to append to " + src +
+          " for " + clientName + ", because the file is under construction");
+    if(iNode.isInline())
+      throw new InlineFileException("Cannot append to inline file: " + src);
+
+    // reopen the file only if it is still closed: of concurrent appenders
+    // one wins, the length is added back to the ancestors when it closes
+    DirectoryUsage usage = DirectoryUsage.of(iNode);
+    iNode.setState(FileState.UNDER_CONSTRUCTION);
+    iNode.addUsageDelta(src, new DirectoryUsage(0, 0,
+        -usage.getLength(), -usage.getSpaceConsumed()));
+    if(!nodeManager.updateINode(iNode, null, FileState.CLOSED))
+      throw new AlreadyBeingCreatedException("Failed to append to " + src +
+          " for " + clientName + ", because the file is under construction");
+    leaseManager.addLease(clientName, src, leaseRecovery);
+
+    // reopen the last block if it has space left, otherwise the client
+    // allocates a new block with addBlock when it starts writing
+    LocatedBlock lastBlock = null;
+    List<UnlocatedBlock> blocks = iNode.getBlocks();
+    if(!blocks.isEmpty()) {
+      UnlocatedBlock last = blocks.get(blocks.size() - 1);
+      if(last.getBlockSize() < iNode.getBlockSize()) {
+        LocatedBlock reopened =
+            requireBlockManagementAgent().appendBlock(last.getBlock());
+        if(reopened != null) {
+          lastBlock = new LocatedBlock(reopened.getBlock(),
+              reopened.getLocations(), last.getStartOffset());
+          lastBlock.setBlockToken(reopened.getBlockToken());
+        }
+      }
+    }
+    LOG.info("Opened file for append: " + src +
+        (lastBlock == null ? "" : " | BlockID: " +
+            lastBlock.getBlock().getBlockId()));
+    return lastBlock;
   }
 
   @Override // ClientProtocol
@@ -239,28 +412,310 @@ public class NamespaceProcessor implements ClientProtocol,
   public boolean complete(String src, String clientName, ExtendedBlock last)
       throws AccessControlException, FileNotFoundException, SafeModeException,
       UnresolvedLinkException, IOException {
-    if(last == null)
-      return true;
     INode iNode = nodeManager.getINode(src);
 
     if(iNode == null) {
       throw new FileNotFoundException("File does not exist: " + src);
     }
+    boolean wasOpen = iNode.getFileState() == FileState.UNDER_CONSTRUCTION;
+    if(last == null && !wasOpen)
+      return true;
+    return complete(src, iNode, last, wasOpen);
+  }
 
+  private boolean complete(String src, INode iNode, ExtendedBlock last,
+                           boolean wasOpen) throws IOException {
     // set the state and replace the block, then put the iNode
     iNode.setState(FileState.CLOSED);
-    iNode.setLastBlock(last);
     long time = now();
     iNode.setTimes(time, time);
-    nodeManager.updateINode(iNode, BlockAction.CLOSE);
-    LOG.info("Completed file: "+src+" | BlockID: "+last.getBlockId());
+    if(last != null)
+      iNode.setLastBlock(last);
+    if(wasOpen)
+      addClosedUsage(src, iNode);
+    if(last == null && iNode.isInline()) {
+      // BlockManagementAgent releases the block allocated in advance
+      if(!nodeManager.updateINode(iNode,
+          isPreallocated(iNode) ? BlockAction.CLOSE : null,
+          FileState.UNDER_CONSTRUCTION))
+        throw new FileNotFoundException(
+            "File is not under construction: " + src);
+    } else if(last == null) {
+      // nothing was written into blocks, BlockManagementAgent releases the
+      // preallocated block, and a file reopened for append keeps its
+      // full blocks
+      nodeManager.updateINode(iNode,
+          isPreallocated(iNode) ? BlockAction.CLOSE : null);
+    } else {
+      nodeManager.updateINode(iNode, BlockAction.CLOSE);
+    }
+    leaseManager.removeLease(src);
+    if(last == null) {
+      LOG.info("Completed " + (iNode.isInline() ? "inline file: " :
+          "file without new blocks: ") + src);
+    } else {
+      LOG.info("Completed file: "+src+" | BlockID: "+last.getBlockId());
+    }
+    return true;
+  }
+
+  /**
+   * Store the content of a small file in its row and close the file,
+   * if the file is still being written by the given client.
+   */
+  void completeInlineFile(String src, String clientName, byte[] data)
+      throws IOException {
+    INode iNode = nodeManager.getINode(src);
+    if(iNode == null || iNode.isDir() ||
+        iNode.getFileState() != FileState.UNDER_CONSTRUCTION)
+      throw new FileNotFoundException(
+          "File does not exist or is not under construction: " + src);
+    String holder = leaseManager.getHolder(src);
+    if(holder != null && !holder.equals(clientName))
+      throw new LeaseExpiredException("Lease of " + src + " is held by " +
+          holder + ", not by " + clientName);
+    checkQuota(getAncestorKeys(src), new DirectoryUsage(0, 0, 0,
+        data.length * (long) iNode.getReplication()));
+    iNode.setInlineData(data);
+    iNode.setLength(data.length);
+    complete(src, iNode, null, true);
+  }
+
+  /**
+   * Complete an inline file, whose content is sent by NamespaceAgent as
+   * a checkAndPut marked with the inline attributes. The put itself is
+   * skipped, the file is written by {@link #completeInlineFile}.
+   */
+  @Override // RegionObserver
+  public boolean preCheckAndPut(
+      ObserverContext<RegionCoprocessorEnvironment> c, byte[] row,
+      byte[] family, byte[] qualifier, CompareOp compareOp,
+      ByteArrayComparable comparator, Put put, boolean result)
+      throws IOException {
+    byte[] leased = put.getAttribute(LEASE_SRC_ATTRIBUTE);
+    if(leased != null) {
+      takeLease(row, Bytes.toString(leased),
+          Bytes.toString(put.getAttribute(LEASE_HOLDER_ATTRIBUTE)));
+      c.bypass();
+      return true;
+    }
+    byte[] src = put.getAttribute(INLINE_SRC_ATTRIBUTE);
+    if(src == null)
+      return result;
+    String path = Bytes.toString(src);
+    if(!Bytes.equals(row, RowKeyFactory.newInstance(path).getKey()))
+      throw new IOException("Inline data of " + path +
+          " is sent to another row");
+    List<KeyValue> data =
+        put.get(FileField.getFileAttributes(), FileField.getData());
+    if(data.size() != 1)
+      throw new IOException("Inline data of " + path + " is missing");
+    completeInlineFile(path,
+        Bytes.toString(put.getAttribute(INLINE_CLIENT_ATTRIBUTE)),
+        data.get(0).getValue());
+    c.bypass();
     return true;
   }
 
+  /**
+   * Add the renamed file to the lease of the holder in this region,
+   * see {@link INodeManager#transferLease}.
+   */
+  private void takeLease(byte[] row, String src, String holder)
+      throws IOException {
+    if(!Bytes.equals(row, RowKeyFactory.newInstance(src).getKey()))
+      throw new IOException("Lease of " + src + " is sent to another row");
+    leaseManager.addLease(holder, src, leaseRecovery);
+    LOG.debug("Took over the lease of " + holder + " for " + src);
+  }
+
+  /**
+   * Move the leases of the renamed files to the processors of the regions
+   * holding their new rows, which the holders renew the leases with.
+   * A lease, which cannot be handed over, is kept in this region.
+   */
+  private void moveLeases(String src, String dst) throws IOException {
+    for(Map.Entry<String, String> lease :
+        leaseManager.getHolders(src).entrySet()) {
+      String file = lease.getKey();
+      String newFile = dst + file.substring(src.length());
+      if(!nodeManager.isLocalRow(RowKeyFactory.newInstance(newFile))) {
+        try {
+          nodeManager.transferLease(newFile, lease.getValue());
+          leaseManager.removeLease(file);
+          continue;
+        } catch(IOException e) {
+          LOG.warn("Failed to move the lease of " + newFile +
+              " to its region, keeping it in this region", e);
+        }
+      }
+      leaseManager.renameLeases(file, newFile);
+    }
+  }
+
+  /**
+   * Add the length of the file to the usage of its ancestors with the write
+   * closing it. The file itself is counted since its creation. The length
+   * is the one BlockManagementAgent writes: of the inline data, or the sum
+   * of the blocks, where an empty last block is abandoned.
+   */
+  private static void addClosedUsage(String src, INode closing)
+      throws IOException {
+    long length = closing.isInline() ? closing.getInlineData().length :
+        BlockManagementAgent.getFileSize(closing.getBlocks());
+    closing.addUsageDelta(src, new DirectoryUsage(0, 0,
+        length, length * closing.getReplication()));
+  }
+
+  /**
+   * Move blocks of the sources to the end of the target and remove the
+   * sources. Only the namespace is changed, no data is copied.
+   * <p>
+   * If all rows belong to this region, the target and the sources are
+   * mutated atomically. Otherwise the sources are first marked DELETED,
+   * then the target is updated and the source rows are removed.
+   * An interrupted concat is completed by calling it again with the same
+   * arguments.
+   */
   @Override // ClientProtocol
   public void concat(String trg, String[] srcs) throws IOException,
       UnresolvedLinkException {
-    throw new IOException("concat is not supported");
+    LOG.info("Concatenating " + Arrays.toString(srcs) + " to " + trg);
+    INode trgNode = nodeManager.getINode(trg);
+    if(trgNode == null)
+      throw new FileNotFoundException("Target does not exist: " + trg);
+    checkCanConcat(trg, trgNode);
+    if(srcs.length == 0)
+      throw new IOException("concat: no sources given for " + trg);
+
+    String parent = new Path(trg).getParent().toString();
+    Set<String> distinct = new HashSet<String>();
+    List<RowKey> keys = new ArrayList<RowKey>(srcs.length);
+    for(String src : srcs) {
+      if(src.equals(trg) || !distinct.add(src))
+        throw new IOException("concat: " + src +
+            " is the target or a duplicate source");
+      if(!parent.equals(new Path(src).getParent().toString()))
+        throw new IOException("concat: " + src +
+            " is not in the directory of the target " + trg);
+      keys.add(RowKeyFactory.newInstance(src));
+    }
+
+    // sources marked DELETED belong to an interrupted concat, which has
+    // already removed the missing sources
+    List<INode> srcNodes = new ArrayList<INode>();
+    boolean resumed = false;
+    for(INode srcNode : nodeManager.getINodes(keys)) {
+      if(srcNode == null)
+        continue;
+      resumed |= srcNode.getFileState() == FileState.DELETED;
+      if(srcNode.getFileState() != FileState.DELETED)
+        checkCanConcat(srcNode.getRowKey().getPath(), srcNode);
+      srcNodes.add(srcNode);
+    }
+    if(!resumed && srcNodes.size() < srcs.length) {
+      for(int i = 0; i < srcs.length; i++) {
+        if(!containsRow(srcNodes, keys.get(i)))
+          throw new FileNotFoundException("Source does not exist: " +
+              srcs[i]);
+      }
+    }
+
+    List<UnlocatedBlock> blocks =
+        new ArrayList<UnlocatedBlock>(trgNode.getBlocks());
+    List<DatanodeInfo[]> locations =
+        new ArrayList<DatanodeInfo[]>(trgNode.getLocations());
+    Set<Long> trgBlockIds = new HashSet<Long>();
+    for(UnlocatedBlock block : blocks) {
+      trgBlockIds.add(block.getBlock().getBlockId());
+    }
+    long length = trgNode.getLen();
+    long trgLength = length;
+    long spaceDelta = 0;
+    for(INode srcNode : srcNodes) {
+      spaceDelta += srcNode.getLen() *
+          (trgNode.getReplication() - srcNode.getReplication());
+      List<UnlocatedBlock> srcBlocks = srcNode.getBlocks();
+      if(!srcBlocks.isEmpty() && trgBlockIds.contains(
+          srcBlocks.get(0).getBlock().getBlockId()))
+        continue; // moved by an interrupted concat
+      List<DatanodeInfo[]> srcLocations = srcNode.getLocations();
+      for(int i = 0; i < srcBlocks.size(); i++) {
+        UnlocatedBlock srcBlock = srcBlocks.get(i);
+        UnlocatedBlock block = new UnlocatedBlock(srcBlock.getBlock(),
+            length, srcBlock.isCorrupt());
+        block.setBlockToken(srcBlock.getBlockToken());
+        blocks.add(block);
+        locations.add(srcLocations.get(i));
+        length += srcBlock.getBlockSize();
+      }
+    }
+    DirectoryUsage delta =
+        new DirectoryUsage(-srcNodes.size(), 0, 0, spaceDelta);
+    checkQuota(getAncestorKeys(trg), delta);
+
+    trgNode.setBlocks(blocks);
+    trgNode.setLocations(locations);
+    // a multi-row mutation is not seen by BlockManagementAgent,
+    // so the index of the merged blocks is written with the row
+    trgNode.getBlockIndex();
+    trgNode.setLength(length);
+    trgNode.setTimes(now(), trgNode.getAccessTime());
+
+    boolean local = nodeManager.isLocalRow(trgNode.getRowKey());
+    for(INode srcNode : srcNodes) {
+      local &= nodeManager.isLocalRow(srcNode.getRowKey());
+    }
+    if(local) {
+      trgNode.addUsageDelta(trg, delta);
+      nodeManager.mutateLocalRows(
+          Collections.singletonList(trgNode), srcNodes);
+    } else {
+      // each stage records its part of the usage change, so that a resumed
+      // concat counts only the stages not done yet
+      // Stage 1: blocks of DELETED rows are not reclaimed with the rows
+      List<INode> marked = new ArrayList<INode>();
+      for(INode srcNode : srcNodes) {
+        if(srcNode.getFileState() == FileState.DELETED)
+          continue;
+        DirectoryUsage usage = DirectoryUsage.of(srcNode);
+        srcNode.setState(FileState.DELETED);
+        srcNode.addUsageDelta(srcNode.getRowKey().getPath(),
+            new DirectoryUsage(0, 0,
+                -usage.getLength(), -usage.getSpaceConsumed()));
+        marked.add(srcNode);
+      }
+      nodeManager.updateINodes(marked);
+      // Stage 2: move the blocks to the target
+      long moved = length - trgLength;
+      trgNode.addUsageDelta(trg, new DirectoryUsage(0, 0,
+          moved, moved * trgNode.getReplication()));
+      nodeManager.updateINode(trgNode);
+      // Stage 3: remove the sources
+      for(INode srcNode : srcNodes) {
+        srcNode.addUsageDelta(srcNode.getRowKey().getPath(),
+            new DirectoryUsage(-1, 0, 0, 0));
+      }
+      nodeManager.delete(srcNodes);
+    }
+  }
+
+  private static boolean containsRow(List<INode> nodes, RowKey key) {
+    for(INode node : nodes) {
+      if(node.getRowKey().getPath().equals(key.getPath()))
+        return true;
+    }
+    return false;
+  }
+
+  private static void checkCanConcat(String src, INode node)
+      throws IOException {
+    if(node.isDir())
+      throw new IOException("concat: " + src + " is a directory");
+    if(node.getFileState() != FileState.CLOSED)
+      throw new IOException("concat: " + src + " is not closed");
+    if(node.isInline())
+      throw new IOException("concat: " + src + " is an inline file");
   }
 
   @Override // ClientProtocol
@@ -281,55 +736,81 @@ public class NamespaceProcessor implements ClientProtocol,
       throw new IOException("Append is not supported.");
     }
 
-    INode iFile = nodeManager.getINode(src);
-    if(create && !overwrite && iFile != null) {
-      throw new FileAlreadyExistsException("File already exists: " + src);
-    }
+    // unless the file may be replaced, its row is not read: the row is
+    // written only if it is still absent
+    List<RowKey> keys = getPathKeys(src);
+    boolean readFile = overwrite || !create;
+    List<INode> nodes = nodeManager.getINodes(
+        readFile ? keys : keys.subList(0, keys.size() - 1), false);
+    List<INode> ancestors = nodes.subList(0, keys.size() - 1);
+    INode iFile = readFile ? nodes.get(nodes.size() - 1) : null;
 
     if(iFile != null && iFile.isDir()) {
       throw new FileAlreadyExistsException("File already exists as directory: "
           + src);
     }
 
-    UserGroupInformation ugi = UserGroupInformation.getLoginUser();
-    clientName = ugi.getShortUserName();
-    String machineName = (ugi.getGroupNames().length == 0) ? "supergroup" : ugi.getGroupNames()[0];
+    if(iFile != null &&
+        iFile.getFileState() == FileState.UNDER_CONSTRUCTION) {
+      String current = leaseManager.getHolder(src);
+      if(current != null && !current.equals(clientName))
+        throw new AlreadyBeingCreatedException("Failed to create " + src +
+            " for " + clientName + ", because it is being created by " +
+            current);
+    }
+
+    String owner = UserGroupCache.getCallerName();
+    String group = userGroupCache.getPrimaryGroup(owner);
     masked = new FsPermission((short) 0644);
 
-    Path parentPath = new Path(src).getParent();
-    assert parentPath != null : "File must have a parent";
-    String parent = parentPath.toString();
-    INode iParent = nodeManager.getINode(parent);
+    assert keys.size() > 1 : "File must have a parent";
+    INode iParent = ancestors.get(ancestors.size() - 1);
     if(!createParent && iParent == null) {
       throw new FileNotFoundException("Parent does not exist: " + src);
     }
 
+    if(iFile == null) {
+      int missing = Collections.frequency(ancestors, null);
+      verifyQuota(ancestors, new DirectoryUsage(1, missing, 0,
+          preallocateBlock ? blockSize * replication : 0));
+    }
+
     if(iParent == null) { // create parent directories
-      if(!mkdirs(parent, masked, true)) {
-        throw new IOException("Cannot create parent directories: " + src);
-      }
+      createDirectories(keys.subList(0, keys.size() - 1), ancestors,
+          masked, true);
     } else if(!iParent.isDir()) {
       throw new ParentNotDirectoryException("Parent path is not a directory: "
           + src);
     }
 
     if(overwrite && iFile != null) {
+      iFile.addUsageDelta(src, DirectoryUsage.of(iFile).negate());
       if(!deleteFile(iFile, true)) {
         throw new IOException("Cannot override existing file: " + src);
       }
+      iFile = null;
     }
 
     // if file did not exist, create its INode now
-    if(iFile == null) {
+    boolean created = iFile == null;
+    if(created) {
       RowKey key = RowKeyFactory.newInstance(src);
       long time = now();
       iFile = new INode(0, false, replication, blockSize, time, time,
-          masked, clientName, machineName, null,
+          masked, owner, group, null,
           key, 0, 0, FileState.UNDER_CONSTRUCTION, null, null, null);
+      iFile.addUsageDelta(src, new DirectoryUsage(1, 0, 0, 0));
     }
 
-    // add file to HBase (update if already exists)
-    nodeManager.updateINode(iFile);
+    // add file to HBase, allocating its first block if configured
+    BlockAction action = preallocateBlock ? BlockAction.ALLOCATE : null;
+    if(!created) {
+      nodeManager.updateINode(iFile, action);
+    } else if(!nodeManager.createINode(iFile, action)) {
+      // another client has created the file since it was checked
+      throw new FileAlreadyExistsException("File already exists: " + src);
+    }
+    leaseManager.addLease(clientName, src, leaseRecovery);
   }
 
   @Override // ClientProtocol
@@ -361,46 +842,100 @@ public class NamespaceProcessor implements ClientProtocol,
     if(node == null) return false;
 
     // then check parent inode
-    INode parent = nodeManager.getINode(parentPath.toString());
+    INode parent = nodeManager.getINode(parentPath.toString(), false);
     if(parent == null)
       throw new FileNotFoundException("Parent does not exist.");
     if(!parent.isDir())
       throw new ParentNotDirectoryException("Parent is not a directory.");
 
-    if(node.isDir())
-      return deleteDirectory(node, recursive, true);
+    // recorded with the first write deleting the node
+    node.addUsageDelta(src, DirectoryUsage.of(node).negate());
+    boolean deleted = node.isDir() ?
+        deleteDirectory(node, recursive, true) : deleteFile(node, true);
+    if(deleted) {
+      leaseManager.removeLeases(src);
+      accessTimeBuffer.remove(src);
+    }
+    return deleted;
+  }
+
+  /**
+   * Checks that adding the delta to the given directories does not exceed
+   * their quotas. Only rows of directories with a quota, or of those
+   * unknown to the quota cache, are read.
+   */
+  private void checkQuota(List<RowKey> dirs, DirectoryUsage delta)
+      throws IOException {
+    if(delta.getFileCount() + delta.getDirectoryCount() <= 0 &&
+        delta.getSpaceConsumed() <= 0)
+      return;
+    List<RowKey> toRead = new ArrayList<RowKey>();
+    for(RowKey key : dirs) {
+      if(!Boolean.FALSE.equals(quotaCache.hasQuota(key.getPath())))
+        toRead.add(key);
+    }
+    if(!toRead.isEmpty())
+      verifyQuota(nodeManager.getINodes(toRead, false), delta);
+  }
 
-    return deleteFile(node, true);
+  /**
+   * Checks that adding the delta to the given directories, just read from
+   * their rows, does not exceed their quotas.
+   * @param dirs directories, null for missing ones
+   */
+  private void verifyQuota(List<INode> dirs, DirectoryUsage delta)
+      throws QuotaExceededException {
+    long nsDelta = delta.getFileCount() + delta.getDirectoryCount();
+    long dsDelta = delta.getSpaceConsumed();
+    for(INode dir : dirs) {
+      if(dir == null || !dir.isDir())
+        continue;
+      quotaCache.update(dir);
+      DirectoryUsage usage =
+          dir.getUsage() == null ? DirectoryUsage.EMPTY : dir.getUsage();
+      String path = dir.getRowKey().getPath();
+      long nsCount = usage.getFileCount() + usage.getDirectoryCount() + 1;
+      if(dir.getNsQuota() > 0 && nsDelta > 0 &&
+          nsCount + nsDelta > dir.getNsQuota()) {
+        QuotaExceededException e =
+            new NSQuotaExceededException(dir.getNsQuota(), nsCount + nsDelta);
+        e.setPathName(path);
+        throw e;
+      }
+      long dsCount = usage.getSpaceConsumed();
+      if(dir.getDsQuota() > 0 && dsDelta > 0 &&
+          dsCount + dsDelta > dir.getDsQuota()) {
+        QuotaExceededException e =
+            new DSQuotaExceededException(dir.getDsQuota(), dsCount + dsDelta);
+        e.setPathName(path);
+        throw e;
+      }
+    }
   }
 
   private boolean deleteFile(INode node, boolean deleteBlocks)
       throws IOException {
-    if(deleteBlocks) {
+    // blocks of a DELETED row are already reclaimed or moved by concat
+    if(deleteBlocks && node.getFileState() != FileState.DELETED) {
       node.setState(FileState.DELETED);
       nodeManager.updateINode(node, BlockAction.DELETE);
     }
 
-    // delete the child key atomically first
+    // delete the child key atomically first; the delete is timestamped
+    // after the put above and before any later put of the same row
     nodeManager.delete(node);
-
-    // delete time penalty (resolves timestamp milliseconds issue)
-    try {
-      Thread.sleep(100);
-    } catch (InterruptedException e) {
-      // do nothing
-    }
-
     return true;
   }
 
   /** 
-   * The psuedo-recursive function which first deletes all children within 
-   * a directory, then the directory itself.
-   * If any of the children cannot be deleted the directory itself will not 
-   * be deleted as well.
+   * Delete a directory. If recursive, first deletes the entire subtree
+   * starting from the deepest directories, so that a directory is removed
+   * after all its children. This is NOT atomic.
+   * If any failure occurs along the way, the deletion process will stop.
    *
    * @param node the parent INode (a directory)
    * @param recursive whether to delete entire subtree
+   * @param deleteBlocks whether to delete blocks of the files in the subtree
    * @return true if the directory was actually deleted
    * @throws AccessControlException
    * @throws FileNotFoundException
@@ -413,26 +948,14 @@ public class NamespaceProcessor implements ClientProtocol,
       UnresolvedLinkException, IOException {
     if(recursive) {
       List<INode> directories = nodeManager.getDirectories(node);
+      SubtreeDeleter deleter = new SubtreeDeleter(deleteBlocks);
       // start ascending the tree (breadth first, then depth)
       // we do this by iterating through directories in reverse
       ListIterator<INode> it = directories.listIterator(directories.size());
       while (it.hasPrevious()) {
-        final List<INode> dirsToDelete = new ArrayList<INode>();
-        nodeManager.map(it.previous(), new Function() {
-          @Override
-          public void apply(INode input) throws IOException {
-            if (!input.isDir())
-              deleteFile(input, deleteBlocks);
-            else
-              dirsToDelete.add(input);
-          }
-        });
-
-        // perform delete (if non-empty)
-        if(!dirsToDelete.isEmpty()) {
-          nodeManager.delete(dirsToDelete);
-        }
+        nodeManager.map(it.previous(), deleter);
       }
+      deleter.flush();
     }
     else if(!nodeManager.isEmptyDirectory(node)) {
       return false;
@@ -443,6 +966,65 @@ public class NamespaceProcessor implements ClientProtocol,
     return true;
   }
 
+  /**
+   * Removes rows of a subtree in batches. Blocks of the files in a batch
+   * are handed to the BlockManagementAgent of this region, which deletes
+   * them in the background, before the rows of the batch are removed.
+   */
+  private class SubtreeDeleter implements Function {
+    private final boolean deleteBlocks;
+    private final BlockManagementAgent blockAgent;
+    private final List<INode> rows = new ArrayList<INode>();
+    private final List<UnlocatedBlock> blocks = new ArrayList<UnlocatedBlock>();
+
+    SubtreeDeleter(boolean deleteBlocks) {
+      this.deleteBlocks = deleteBlocks;
+      this.blockAgent = deleteBlocks ? getBlockManagementAgent() : null;
+    }
+
+    @Override
+    public void apply(INode input) throws IOException {
+      if(!input.isDir() && deleteBlocks &&
+          input.getFileState() != FileState.DELETED) {
+        if(blockAgent == null) {
+          // no agent in this region, let the agent of the file row do it
+          deleteFile(input, true);
+          return;
+        }
+        blocks.addAll(input.getBlocks());
+      }
+      rows.add(input);
+      if(rows.size() >= deleteBatchSize)
+        flush();
+    }
+
+    void flush() throws IOException {
+      // the queue entry is persisted before the rows referring to the blocks
+      // are deleted, otherwise a failure in between would leak the blocks
+      if(!blocks.isEmpty())
+        blockAgent.reclaimBlocksNow(blocks);
+      if(!rows.isEmpty())
+        nodeManager.delete(rows);
+      blocks.clear();
+      rows.clear();
+    }
+  }
+
+  private BlockManagementAgent getBlockManagementAgent() {
+    if(env == null)
+      return null;
+    return (BlockManagementAgent) env.getRegion().getCoprocessorHost()
+        .findCoprocessor(BlockManagementAgent.class.getName());
+  }
+
+  private BlockManagementAgent requireBlockManagementAgent()
+      throws IOException {
+    BlockManagementAgent agent = getBlockManagementAgent();
+    if(agent == null)
+      throw new IOException("BlockManagementAgent is not loaded");
+    return agent;
+  }
+
   @Override // ClientProtocol
   public void finalizeUpgrade() throws IOException {
     throw new IOException("upgrade is not supported");
@@ -463,40 +1045,100 @@ public class NamespaceProcessor implements ClientProtocol,
     if(iNode == null || iNode.isDir()) {
       throw new FileNotFoundException("File does not exist: " + src);
     }
+    if(iNode.isInline()) {
+      throw new InlineFileException("File " + src + " is stored inline, "
+          + "its data should be read from the namespace table");
+    }
 
-    List<LocatedBlock> al = UnlocatedBlock.toLocatedBlocks(iNode.getBlocks(),
-        iNode.getLocations());
+    // decode only the blocks in the requested range; the whole block
+    // columns are read with the row, see BlockIndex
+    BlockIndex index = iNode.getBlockIndex();
+    List<LocatedBlock> al = index.getLocatedBlocks(offset, length);
     boolean underConstruction = (iNode.getFileState().equals(FileState.CLOSED));
 
-    LocatedBlock lastBlock = al.size() == 0 ? null : al.get(al.size()-1);
-    LocatedBlocks lbs = new LocatedBlocks(computeFileLength(al),
-        underConstruction, al, lastBlock, underConstruction);
-    return lbs;
-  }
+    LocatedBlocks lbs = new LocatedBlocks(index.getFileLength(),
+        underConstruction, al, index.getLastBlock(), underConstruction);
 
-  private static long computeFileLength(List<LocatedBlock> al) {
-    // does not matter if underConstruction or not so far.
-    long n = 0;
-    for(LocatedBlock bl : al) {
-        n += bl.getBlockSize();
-    }
-    LOG.info("Block filesize sum is: " + n);
-    return n;
+    // record the access, written by the access time buffer later
+    long now = now();
+    if(accessTimePrecision > 0 &&
+        now > iNode.getAccessTime() + accessTimePrecision)
+      accessTimeBuffer.update(iNode.getRowKey(),
+          iNode.getModificationTime(), now);
+    return lbs;
   }
 
   @Override // ClientProtocol
   public ContentSummary getContentSummary(String path)
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
-    INode node = nodeManager.getINode(path);
+    INode node = nodeManager.getINode(path, false);
     if(node == null) {
       throw new FileNotFoundException("Path does not exist: " + path);
     }
-    if(node.isDir()) {
-      return new ContentSummary(0L, 0L, 1L, node.getNsQuota(), 
-          0L, node.getDsQuota());
+    if(!node.isDir()) {
+      throw new IOException("Path is not a directory: " + path);
+    }
+    DirectoryUsage usage = node.getUsage();
+    if(usage != null) {
+      return new ContentSummary(usage.getLength(), usage.getFileCount(),
+          usage.getDirectoryCount() + 1, node.getNsQuota(),
+          usage.getSpaceConsumed(), node.getDsQuota());
+    }
+
+    // no counters in rows written by older versions, walk the subtree level
+    // by level, scanning directories of a level in parallel
+    long[] summary = {0, 0, 1, node.getNsQuota(), 0, node.getDsQuota()};
+    List<INode> level = Collections.singletonList(node);
+    while(!level.isEmpty()) {
+      List<Callable<SubtreeSummary>> tasks =
+          new ArrayList<Callable<SubtreeSummary>>(level.size());
+      for(final INode dir : level) {
+        tasks.add(new Callable<SubtreeSummary>() {
+          @Override
+          public SubtreeSummary call() throws IOException {
+            SubtreeSummary dirSummary = new SubtreeSummary();
+            // only lengths and replication are summed, blocks are not read
+            nodeManager.map(dir, HdfsFileStatus.EMPTY_NAME,
+                Integer.MAX_VALUE, false, dirSummary);
+            return dirSummary;
+          }
+        });
+      }
+      List<INode> nextLevel = new ArrayList<INode>();
+      for(SubtreeSummary dirSummary : invokeAll(tasks)) {
+        summary[0] += dirSummary.length;
+        summary[1] += dirSummary.fileCount;
+        summary[2] += dirSummary.directories.size();
+        summary[4] += dirSummary.spaceConsumed;
+        nextLevel.addAll(dirSummary.directories);
+      }
+      level = nextLevel;
+    }
+    return new ContentSummary(summary[0], summary[1], summary[2],
+        summary[3], summary[4], summary[5]);
+  }
+
+  /**
+   * Sums up the files of a single directory and collects its
+   * subdirectories.
+   */
+  private static class SubtreeSummary implements Function {
+    private long length;
+    private long fileCount;
+    private long spaceConsumed;
+    private final List<INode> directories = new ArrayList<INode>();
+
+    @Override
+    public void apply(INode input) {
+      if(input.isDir()) {
+        directories.add(input);
+      } else {
+        length += input.getLen();
+        fileCount++;
+        spaceConsumed += input.getLen() * input.getReplication();
+      }
     }
-    throw new IOException("Path is not a directory: " + path);
   }
 
   @Override // ClientProtocol
@@ -514,7 +1156,7 @@ public class NamespaceProcessor implements ClientProtocol,
   @Override // ClientProtocol
   public HdfsFileStatus getFileInfo(String src) throws AccessControlException,
       FileNotFoundException, UnresolvedLinkException, IOException {
-    INode node = nodeManager.getINode(src);
+    INode node = nodeManager.getINode(src, false);
     if(node == null) {
       throw new FileNotFoundException("File does not exist: " + src);
     }
@@ -538,7 +1180,7 @@ public class NamespaceProcessor implements ClientProtocol,
       String src, byte[] startAfter, boolean needLocation)
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
-    INode node = nodeManager.getINode(src);
+    INode node = nodeManager.getINode(src, needLocation);
 
     if(node == null) {
       throw new FileNotFoundException("File does not exist: " + src);
@@ -549,7 +1191,8 @@ public class NamespaceProcessor implements ClientProtocol,
           node.getLocatedFileStatus() : node.getFileStatus() }, 0);
     }
 
-    List<INode> list = nodeManager.getListing(node, startAfter, lsLimit);
+    List<INode> list = nodeManager.getListing(node, startAfter, lsLimit,
+        needLocation);
 
     HdfsFileStatus[] retVal = new HdfsFileStatus[list.size()];
     int i = 0;
@@ -564,7 +1207,7 @@ public class NamespaceProcessor implements ClientProtocol,
   @Override // ClientProtocol
   public long getPreferredBlockSize(String src) throws IOException,
       UnresolvedLinkException {
-    INode inode = nodeManager.getINode(src);
+    INode inode = nodeManager.getINode(src, false);
     if(inode == null) {
       throw new FileNotFoundException("File does not exist: " + src);
     }
@@ -592,56 +1235,134 @@ public class NamespaceProcessor implements ClientProtocol,
       FileNotFoundException, NSQuotaExceededException,
       ParentNotDirectoryException, SafeModeException, UnresolvedLinkException,
       IOException {
-    Path parentPath = new Path(src).getParent();
-    UserGroupInformation ugi = UserGroupInformation.getLoginUser();
-    String clientName = ugi.getShortUserName();
-    String machineName = (ugi.getGroupNames().length == 0) ? "supergroup" : ugi.getGroupNames()[0];
-
-    RowKey key = RowKeyFactory.newInstance(src);
-    INode inode = nodeManager.getINode(key);
-    if(parentPath == null) {
-      //generate root if doesn't exist
-      if(inode == null) {
-        long time = now();
-        inode = new INode(0, true, (short) 0, 0, time, time,
-            masked, clientName, machineName, null,
-            key, 0, 0, null, null, null, null);
-        nodeManager.updateINode(inode);
-      }
+    List<RowKey> keys = getPathKeys(src);
+    List<INode> nodes = nodeManager.getINodes(keys, false);
+    if(nodes.get(nodes.size() - 1) != null) {  // already exists
       return true;
     }
+    createDirectories(keys, nodes, masked, createParent);
+    return true;
+  }
 
-    if(inode != null) {  // already exists
-      return true;
+  /**
+   * @return RowKeys of the path and all of its ancestors, starting from
+   * the root
+   */
+  private static List<RowKey> getPathKeys(String src) throws IOException {
+    LinkedList<RowKey> keys = new LinkedList<RowKey>();
+    for(Path path = new Path(src); path != null; path = path.getParent()) {
+      keys.addFirst(RowKeyFactory.newInstance(path.toString()));
     }
+    return new ArrayList<RowKey>(keys);
+  }
 
-    // create parent directories if requested
-    String parent = parentPath.toString();
-    INode iParent = nodeManager.getINode(parent);
-    if(!createParent && iParent == null) {
-      throw new FileNotFoundException("Parent does not exist: "+parent);
+  /**
+   * @return RowKeys of all ancestors of the path, starting from the root
+   */
+  private static List<RowKey> getAncestorKeys(String src) throws IOException {
+    List<RowKey> keys = getPathKeys(src);
+    return keys.subList(0, keys.size() - 1);
+  }
+
+  /**
+   * Creates the directory of the last key along with its missing ancestors.
+   * Each directory row is written only if it is still absent, so that
+   * a directory created concurrently by another client is neither
+   * overwritten nor counted twice.
+   * @param keys RowKeys of the directory and its ancestors from the root
+   * @param nodes existing INodes of the keys, null for missing ones
+   * @param createParent whether missing ancestors may be created
+   */
+  private void createDirectories(List<RowKey> keys, List<INode> nodes,
+                                 FsPermission masked, boolean createParent)
+      throws IOException {
+    int last = keys.size() - 1;
+    int existing = last - 1;
+    while(existing >= 0 && nodes.get(existing) == null) {
+      existing--;
+    }
+    if(existing >= 0 && !nodes.get(existing).isDir()) {
+      throw new ParentNotDirectoryException("Parent is not directory: " +
+          keys.get(existing).getPath());
     }
-    if(iParent != null && !iParent.isDir()) {
-      throw new ParentNotDirectoryException("Parent is not directory: "+parent);
+    if(!createParent && existing < last - 1) {
+      throw new FileNotFoundException("Parent does not exist: " +
+          keys.get(last - 1).getPath());
     }
-    if(createParent && iParent == null) {
-      //make the parent directories
-      mkdirs(parent, masked, true);
-    } 
+    verifyQuota(nodes.subList(0, existing + 1),
+        new DirectoryUsage(0, last - existing, 0, 0));
 
+    String owner = UserGroupCache.getCallerName();
+    String group = userGroupCache.getPrimaryGroup(owner);
     long time = now();
-    inode = new INode(0, true, (short) 0, 0, time, time,
-        masked, clientName, machineName, null,
-        key, 0, 0, null, null, null, null);
-
-    // add directory to HBase
-    nodeManager.updateINode(inode);
-    return true;
+    for(int i = existing + 1; i <= last; i++) {
+      INode dir = new INode(0, true, (short) 0, 0, time, time,
+          masked, owner, group, null,
+          keys.get(i), 0, 0, null, null, null, null);
+      dir.resetUsage(DirectoryUsage.EMPTY);
+      dir.addUsageDelta(keys.get(i).getPath(), new DirectoryUsage(0, 1, 0, 0));
+      if(nodeManager.createINode(dir, null))
+        continue;
+      // the row exists: created concurrently by another client
+      INode current = nodeManager.getINode(keys.get(i), false);
+      String path = keys.get(i).getPath();
+      if(current == null)
+        throw new IOException("Concurrently modified: " + path);
+      if(current.isDir())
+        continue;
+      if(i == last)
+        throw new FileAlreadyExistsException("File already exists: " + path);
+      throw new ParentNotDirectoryException("Parent is not directory: " +
+          path);
+    }
   }
 
   @Override // ClientProtocol
   public boolean recoverLease(String src, String clientName) throws IOException {
-    throw new IOException("recoverLease is not supported");
+    INode iNode = nodeManager.getINode(src, false);
+    if(iNode == null)
+      throw new FileNotFoundException("File does not exist: " + src);
+    if(iNode.isDir())
+      throw new FileNotFoundException("Path is not a file: " + src);
+    LOG.info("Recovering lease of " + src + " for " + clientName);
+    if(!recoverFile(src))
+      return false;
+    leaseManager.removeLease(src);
+    return true;
+  }
+
+  /**
+   * Close the file abandoned by its writer. The last block is completed
+   * with the length recovered from its replicas by BlockManagementAgent.
+   * @return true if the file is closed, false if block recovery is still
+   * in progress
+   */
+  private boolean recoverFile(String src) throws IOException {
+    INode iNode = nodeManager.getINode(src);
+    if(iNode == null || iNode.getFileState() != FileState.UNDER_CONSTRUCTION)
+      return true;
+
+    List<UnlocatedBlock> blocks = iNode.getBlocks();
+    long time = now();
+    iNode.setState(FileState.CLOSED);
+    iNode.setTimes(time, time);
+    if(blocks.isEmpty() || iNode.isInline()) {
+      addClosedUsage(src, iNode);
+      nodeManager.updateINode(iNode, null);
+      LOG.info("Recovered " + (iNode.isInline() ? "inline" : "empty") +
+          " file: " + src);
+      return true;
+    }
+
+    ExtendedBlock last = requireBlockManagementAgent().recoverBlock(
+        blocks.get(blocks.size() - 1).getBlock());
+    if(last == null)
+      return false;
+    iNode.setLastBlock(last);
+    addClosedUsage(src, iNode);
+    nodeManager.updateINode(iNode, BlockAction.RECOVER);
+    LOG.info("Recovered file: " + src + " | BlockID: " + last.getBlockId());
+    return true;
   }
 
   @Override // ClientProtocol
@@ -678,6 +1399,12 @@ public class NamespaceProcessor implements ClientProtocol,
     }
 
     checkCanRename(src, rootSrcNode, dst, rootDstNode, overwrite);
+    // usage is moved to the new ancestors with the last write of the rename,
+    // which an interrupted rename has not done yet
+    DirectoryUsage usage = rootSrcNode != null ?
+        DirectoryUsage.of(rootSrcNode) : rootDstNode != null &&
+        rootDstNode.getRenameState().getFlag() ?
+            DirectoryUsage.of(rootDstNode) : null;
 
     boolean directoryRename = rootSrcNode != null && rootSrcNode.isDir() ||
         rootDstNode != null && rootDstNode.isDir();
@@ -693,24 +1420,33 @@ public class NamespaceProcessor implements ClientProtocol,
       rootDstNode = null;
     }
 
+    if(rootDstNode == null && usage != null) {
+      // only ancestors of dst, which are not ancestors of src, grow
+      List<RowKey> srcAncestors = getAncestorKeys(src);
+      List<RowKey> dstAncestors = getAncestorKeys(dst);
+      int common = 0;
+      while(common < srcAncestors.size() && common < dstAncestors.size() &&
+          srcAncestors.get(common).getPath().equals(
+              dstAncestors.get(common).getPath())) {
+        common++;
+      }
+      checkQuota(dstAncestors.subList(common, dstAncestors.size()), usage);
+    }
+
+    if(rootDstNode == null &&
+        renameInRegion(rootSrcNode, src, dst, directoryRename, usage)) {
+      moveLeases(src, dst);
+      accessTimeBuffer.remove(src);
+      return;
+    }
+
     // Stage 1: copy into new row with RenameState flag
     if(rootDstNode == null) {
       if(directoryRename) { // first do Stage 1 for all children
-        final URI base = new Path(src).toUri();
-        final URI newBase = URI.create(dst+Path.SEPARATOR);
-
-        List<INode> directories = nodeManager.getDirectories(rootSrcNode);
-        for (INode dir : directories) {
-          // duplicate each INode in subdirectory
-          nodeManager.map(dir, new Function() {
-            @Override
-            public void apply(INode srcNode) throws IOException {
-              String iSrc = srcNode.getRowKey().getPath();
-              String iDst = changeBase(iSrc, base, newBase);
-              copyWithRenameFlag(srcNode, iDst);
-            }
-          });
-        }
+        URI base = new Path(src).toUri();
+        URI newBase = URI.create(dst+Path.SEPARATOR);
+        // duplicate each INode in subdirectories
+        updateSubtree(nodeManager.getDirectories(rootSrcNode), base, newBase);
       }
       rootDstNode = copyWithRenameFlag(rootSrcNode, dst);
     }else {
@@ -731,17 +1467,195 @@ public class NamespaceProcessor implements ClientProtocol,
 
     // Stage 3: remove RenameState flags
     if(directoryRename) { // first do Stage 3 for all children
-      List<INode> directories = nodeManager.getDirectories(rootDstNode);
-      for (INode dir : directories) {
-        nodeManager.map(dir, new Function() {
-          @Override
-          public void apply(INode dstNode) throws IOException {
-            removeRenameFlag(dstNode);
-          }
-        });
-      }
+      updateSubtree(nodeManager.getDirectories(rootDstNode), null, null);
     }
+    moveUsage(rootDstNode, src, dst, usage);
     removeRenameFlag(rootDstNode);
+    moveLeases(src, dst);
+    accessTimeBuffer.remove(src);
+  }
+
+  /**
+   * Move the usage of a renamed subtree from the ancestors of src to those
+   * of dst with the next write of the given node.
+   */
+  private static void moveUsage(INode node, String src, String dst,
+                                DirectoryUsage usage) {
+    if(usage == null)
+      return;
+    node.addUsageDelta(src, usage.negate());
+    node.addUsageDelta(dst, usage);
+  }
+
+  /**
+   * Renames src to dst with a single atomic multi-row mutation, if all rows
+   * of the source subtree and their new rows belong to this region.
+   * No rename flags are needed in this case, since no intermediate state
+   * is ever visible.
+   * @return true if the rename was applied, false if the staged rename
+   * must be used instead
+   */
+  private boolean renameInRegion(INode rootSrcNode, String src, String dst,
+                                 boolean directoryRename, DirectoryUsage usage)
+      throws IOException {
+    if(renameMaxRows <= 0)
+      return false;
+    RegionRenamer renamer = new RegionRenamer(src, dst);
+    if(directoryRename) {
+      for(INode dir : nodeManager.getDirectories(rootSrcNode)) {
+        nodeManager.map(dir, renamer);
+        if(!renamer.local)
+          return false;
+      }
+    }
+    renamer.apply(rootSrcNode);
+    if(!renamer.local)
+      return false;
+    LOG.debug("Renaming " + renamer.srcNodes.size() + " rows of " + src +
+        " atomically within the region");
+    INode rootDstNode = renamer.dstNodes.get(renamer.dstNodes.size() - 1);
+    moveUsage(rootDstNode, src, dst, usage);
+    nodeManager.mutateLocalRows(renamer.dstNodes, renamer.srcNodes);
+    return true;
+  }
+
+  /**
+   * Collects the rows of a subtree along with their renamed copies as long
+   * as all of them belong to this region and their number is within
+   * the configured limit.
+   */
+  private class RegionRenamer implements Function {
+    private final String src;
+    private final String dst;
+    private final URI base;
+    private final URI newBase;
+    private final List<INode> srcNodes = new ArrayList<INode>();
+    private final List<INode> dstNodes = new ArrayList<INode>();
+    private boolean local = true;
+
+    RegionRenamer(String src, String dst) {
+      this.src = src;
+      this.dst = dst;
+      this.base = new Path(src).toUri();
+      this.newBase = URI.create(dst+Path.SEPARATOR);
+    }
+
+    @Override
+    public void apply(INode srcNode) throws IOException {
+      if(!local)
+        return;
+      RowKey srcKey = srcNode.getRowKey();
+      String iSrc = srcKey.getPath();
+      RowKey dstKey = RowKeyFactory.newInstance(
+          iSrc.equals(src) ? dst : changeBase(iSrc, base, newBase));
+      if(srcNodes.size() >= renameMaxRows ||
+          !nodeManager.isLocalRow(srcKey) || !nodeManager.isLocalRow(dstKey)) {
+        local = false;
+        srcNodes.clear();
+        dstNodes.clear();
+        return;
+      }
+      INode dstNode = srcNode.cloneWithNewRowKey(dstKey);
+      dstNode.setRenameState(RenameState.FALSE());
+      srcNodes.add(srcNode);
+      dstNodes.add(dstNode);
+    }
+  }
+
+  /**
+   * Updates children of the given directories for a staged rename.
+   * Directories are processed in parallel, and rows of each directory are
+   * written in batches. If base is given the children are copied under
+   * newBase with the rename flag set (Stage 1), otherwise their rename flag
+   * is removed (Stage 3). Returns when all directories are processed; the
+   * root of the subtree is updated by the caller afterwards, so that
+   * the rename can still be recovered if any of the directories fails.
+   */
+  private void updateSubtree(List<INode> directories,
+                             final URI base, final URI newBase)
+      throws IOException {
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for(final INode dir : directories) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          RenameBatch batch = new RenameBatch(base, newBase);
+          nodeManager.map(dir, batch);
+          batch.flush();
+          return null;
+        }
+      });
+    }
+    invokeAll(tasks);
+  }
+
+  /**
+   * Runs the given tasks on the subtree executor and waits for all of them
+   * to complete.
+   * @return results of the tasks in the order of the tasks
+   * @throws IOException the first failure of the tasks
+   */
+  private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+    List<Future<T>> futures;
+    try {
+      futures = subtreeExecutor.invokeAll(tasks);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted processing subtree");
+    }
+    List<T> results = new ArrayList<T>(futures.size());
+    IOException error = null;
+    for(Future<T> future : futures) {
+      try {
+        results.add(future.get());
+      } catch(ExecutionException e) {
+        if(error == null)
+          error = e.getCause() instanceof IOException ?
+              (IOException) e.getCause() : new IOException(e.getCause());
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted processing subtree");
+      }
+    }
+    if(error != null)
+      throw error;
+    return results;
+  }
+
+  /**
+   * Buffers renamed rows of a directory and writes them in batches.
+   */
+  private class RenameBatch implements Function {
+    private final URI base;
+    private final URI newBase;
+    private final List<INode> nodes = new ArrayList<INode>();
+
+    RenameBatch(URI base, URI newBase) {
+      this.base = base;
+      this.newBase = newBase;
+    }
+
+    @Override
+    public void apply(INode node) throws IOException {
+      if(base != null) {
+        RowKey srcKey = node.getRowKey();
+        String iDst = changeBase(srcKey.getPath(), base, newBase);
+        node = node.cloneWithNewRowKey(RowKeyFactory.newInstance(iDst));
+        node.setRenameState(RenameState.TRUE(srcKey.getKey()));
+      } else {
+        node.setRenameState(RenameState.FALSE());
+      }
+      nodes.add(node);
+      if(nodes.size() >= renameBatchSize)
+        flush();
+    }
+
+    void flush() throws IOException {
+      if(nodes.isEmpty())
+        return;
+      nodeManager.updateINodes(nodes);
+      nodes.clear();
+    }
   }
 
   /**
@@ -787,7 +1701,7 @@ public class NamespaceProcessor implements ClientProtocol,
       IOException {
     String error = null;
     String parent = new Path(dst).getParent().toString();
-    INode parentNode = nodeManager.getINode(parent);
+    INode parentNode = nodeManager.getINode(parent, false);
 
     boolean src_exists = (srcNode != null);
     boolean dst_exists = (dstNode != null);
@@ -851,7 +1765,7 @@ public class NamespaceProcessor implements ClientProtocol,
   @Override // ClientProtocol
   public void renewLease(String clientName) throws AccessControlException,
       IOException {
-    throw new IOException("renewLease is not supported");
+    leaseManager.renewLease(clientName);
   }
 
   @Override // ClientProtocol
@@ -876,7 +1790,7 @@ public class NamespaceProcessor implements ClientProtocol,
     if(username == null && groupname == null)
       return;
     
-    INode node = nodeManager.getINode(src);
+    INode node = nodeManager.getINode(src, false);
 
     if(node == null) {
       throw new FileNotFoundException("File does not exist: " + src);
@@ -891,7 +1805,7 @@ public class NamespaceProcessor implements ClientProtocol,
       throws AccessControlException, FileNotFoundException, SafeModeException,
       UnresolvedLinkException, IOException {
 
-    INode node = nodeManager.getINode(src);
+    INode node = nodeManager.getINode(src, false);
 
     if(node == null) {
       throw new FileNotFoundException("File does not exist: " + src);
@@ -910,7 +1824,7 @@ public class NamespaceProcessor implements ClientProtocol,
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
     
-    INode node = nodeManager.getINode(src);
+    INode node = nodeManager.getINode(src, false);
 
     if(node == null) {
       throw new FileNotFoundException("File does not exist: " + src);
@@ -932,6 +1846,7 @@ public class NamespaceProcessor implements ClientProtocol,
 
     node.setQuota(namespaceQuota, diskspaceQuota);
     nodeManager.updateINode(node);
+    quotaCache.update(node);
   }
 
   @Override // ClientProtocol
@@ -939,7 +1854,7 @@ public class NamespaceProcessor implements ClientProtocol,
       throws AccessControlException, DSQuotaExceededException,
       FileNotFoundException, SafeModeException, UnresolvedLinkException,
       IOException {
-    INode node = nodeManager.getINode(src);
+    INode node = nodeManager.getINode(src, false);
 
     if(node == null) {
       throw new FileNotFoundException("File does not exist: " + src);
@@ -947,7 +1862,11 @@ public class NamespaceProcessor implements ClientProtocol,
     if(node.isDir())
       return false;
 
+    DirectoryUsage oldUsage = DirectoryUsage.of(node);
     node.setReplication(replication);
+    DirectoryUsage delta = DirectoryUsage.of(node).add(oldUsage.negate());
+    checkQuota(getAncestorKeys(src), delta);
+    node.addUsageDelta(src, delta);
     nodeManager.updateINode(node);
     return true;
   }
@@ -962,7 +1881,7 @@ public class NamespaceProcessor implements ClientProtocol,
   public void setTimes(String src, long mtime, long atime)
       throws AccessControlException, FileNotFoundException,
       UnresolvedLinkException, IOException {
-    INode node = nodeManager.getINode(src);
+    INode node = nodeManager.getINode(src, false);
 
     if(node == null) {
       throw new FileNotFoundException("File does not exist: " + src);
@@ -970,21 +1889,27 @@ public class NamespaceProcessor implements ClientProtocol,
     if(node.isDir())
       return;
 
-    node.setTimes(mtime, atime);
-    nodeManager.updateINode(node);
+    // an explicitly set access time replaces the buffered one
+    if(atime != -1)
+      accessTimeBuffer.remove(src);
+    if(!nodeManager.setTimes(node.getRowKey(), mtime, atime))
+      throw new FileNotFoundException("File does not exist: " + src);
   }
 
   @Override // ClientProtocol
   public LocatedBlock updateBlockForPipeline(ExtendedBlock block, String clientName)
       throws IOException {
-    throw new IOException("updateBlockForPipeline is not supported");
+    return requireBlockManagementAgent().updateBlockForPipeline(block);
   }
 
   @Override // ClientProtocol
   public void updatePipeline(
       String clientName, ExtendedBlock oldBlock, ExtendedBlock newBlock, DatanodeID[] newNodes)
       throws IOException {
-    throw new IOException("updatePipeline is not supported");
+    // the new generation stamp and length are stored in the file row
+    // by complete or addBlock
+    requireBlockManagementAgent().updatePipeline(oldBlock, newBlock,
+        newNodes);
   }
  
   private static long now() {
@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.giraffa.INode;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Region side cache recording which directories have a quota set.
+ * Quota checks read rows of the ancestors with a quota only, so that
+ * operations outside of quota directories do not read their ancestors
+ * once the cache is warm. Usage of quota directories is always read
+ * from their rows, since it changes with every operation.
+ * <p>
+ * Entries are updated by quota changes made through this region and
+ * expire after a fixed time to live, which bounds the delay before
+ * a quota set through another region is enforced.
+ */
+class QuotaCache {
+  private final Cache<String, Boolean> quotas;
+
+  QuotaCache(long ttlMs, long maxEntries) {
+    this.quotas = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+        .maximumSize(maxEntries)
+        .build();
+  }
+
+  /**
+   * @return whether the directory has a quota, or null if unknown
+   */
+  Boolean hasQuota(String dir) {
+    return quotas.getIfPresent(dir);
+  }
+
+  /**
+   * Record the quota of the directory read from or written to its row.
+   */
+  void update(INode dir) {
+    if(dir.isDir())
+      quotas.put(dir.getRowKey().getPath(), hasQuota(dir));
+  }
+
+  static boolean hasQuota(INode dir) {
+    return dir.getNsQuota() > 0 || dir.getDsQuota() > 0;
+  }
+}
@@ -0,0 +1,327 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.DirectoryUsage;
+import org.apache.giraffa.FileField;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Journal of the usage counters of directories, kept in the usage family
+ * of the namespace table.
+ * <p>
+ * An operation changing the usage of the ancestors of a path records an
+ * intent cell, holding the path and the change, in a row it mutates, as
+ * part of the same atomic row mutation. Once the mutation succeeds, the
+ * change is written as a delta cell, named by the id of the intent, into
+ * the row of each ancestor, and the intent is removed. Writing a cell of
+ * a given name twice has no further effect, so an intent left by a failure
+ * is simply applied again: a daemon thread of each region periodically
+ * applies the intents of its rows, which are older than its interval.
+ * Deltas are blind Puts of new cells, so busy directories such as the root
+ * take no row lock for a read-modify-write, as Increments do.
+ * <p>
+ * The usage of a directory is the sum of its base cell, written with the
+ * directory, and of its delta cells. The thread of the region folds the
+ * delta cells into the base cell, which lists the deltas it includes, and
+ * then removes them, so that rows of busy directories stay small. The base
+ * cell is rewritten in place only if unchanged since it was read, so a
+ * directory deleted meanwhile, which removes its base cell, is not revived.
+ * Delta cells left in rows without a base cell, e.g. of directories deleted
+ * while their subtree changed, are removed as well. Directories written by
+ * older versions have no base cell, so they have no usage counters.
+ */
+class UsageJournal implements Runnable {
+  private static final Log LOG = LogFactory.getLog(UsageJournal.class);
+
+  // kinds of usage cells, the first byte of their column names
+  static final byte BASE = 'b';
+  static final byte DELTA = 'd';
+  static final byte INTENT = 'i';
+  // the kind, the time of creation and a random number
+  private static final int COLUMN_LENGTH = 1 + 2 * Bytes.SIZEOF_LONG;
+  private static final int USAGE_LENGTH = 4 * Bytes.SIZEOF_LONG;
+  private static final Random RANDOM = new Random();
+
+  private final INodeManager nodeManager;
+  private final long interval;
+  private volatile boolean running;
+  private Thread thread;
+
+  UsageJournal(INodeManager nodeManager, long interval) {
+    this.nodeManager = nodeManager;
+    this.interval = interval;
+  }
+
+  synchronized void start(String name) {
+    running = true;
+    thread = new Thread(this, "UsageJournal-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop the thread. Intents left are applied by the next server of
+   * the region.
+   */
+  synchronized void stop() {
+    running = false;
+    if(thread != null)
+      thread.interrupt();
+    thread = null;
+  }
+
+  @Override // Runnable
+  public void run() {
+    while(running) {
+      try {
+        Thread.sleep(interval);
+      } catch(InterruptedException e) {
+        // check running
+      }
+      if(running)
+        replay();
+    }
+  }
+
+  /**
+   * Apply the intents left in the rows of the region, fold delta cells
+   * into base cells and remove delta cells of deleted directories.
+   */
+  void replay() {
+    long staleBefore = System.currentTimeMillis() - interval;
+    try {
+      ResultScanner rs = nodeManager.getUsageScanner();
+      try {
+        for(Result result : rs) {
+          replay(result, staleBefore);
+        }
+      } finally {
+        rs.close();
+      }
+    } catch(IOException e) {
+      LOG.warn("Failed to replay the usage journal", e);
+    }
+  }
+
+  private void replay(Result result, long staleBefore) throws IOException {
+    byte[] row = result.getRow();
+    Map<byte[], byte[]> intents =
+        new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+    KeyValue base = null;
+    List<KeyValue> deltas = new ArrayList<KeyValue>();
+    for(KeyValue kv : result.raw()) {
+      byte kind = kv.getQualifier()[0];
+      if(kind == INTENT) {
+        // younger intents are being applied by their operations
+        if(kv.getTimestamp() < staleBefore)
+          intents.put(kv.getQualifier(), kv.getValue());
+      } else if(kind == BASE) {
+        base = kv;
+      } else {
+        deltas.add(kv);
+      }
+    }
+    if(!intents.isEmpty())
+      nodeManager.applyIntents(row, intents);
+    if(!deltas.isEmpty())
+      fold(row, base, deltas);
+  }
+
+  /**
+   * Add the deltas to the base cell and remove them from the row.
+   * Folding runs only in the region of the row, by a single thread.
+   */
+  private void fold(byte[] row, KeyValue base, List<KeyValue> deltas)
+      throws IOException {
+    HRegion region = nodeManager.getRegion();
+    byte[] family = FileField.getUsage();
+    Delete delete = new Delete(row);
+    if(base == null) {
+      for(KeyValue delta : deltas) {
+        delete.deleteColumns(family, delta.getQualifier(),
+            INodeManager.ALL_VERSIONS);
+      }
+      region.delete(delete);
+      return;
+    }
+    SortedSet<byte[]> included = getIncluded(base.getValue());
+    DirectoryUsage usage = toUsage(base.getValue());
+    List<byte[]> columns = new ArrayList<byte[]>(deltas.size());
+    boolean folded = false;
+    for(KeyValue delta : deltas) {
+      byte[] column = delta.getQualifier();
+      // deltas included before are removed, but still listed until then
+      if(!included.contains(column)) {
+        usage = usage.add(toUsage(delta.getValue()));
+        folded = true;
+      }
+      columns.add(column);
+      delete.deleteColumns(family, column, INodeManager.ALL_VERSIONS);
+    }
+    if(folded) {
+      Put put = new Put(row);
+      put.add(family, base.getQualifier(),
+          Math.max(base.getTimestamp() + 1, System.currentTimeMillis()),
+          toBytes(usage, concat(columns)));
+      if(!region.checkAndMutate(row, family, base.getQualifier(),
+          CompareOp.EQUAL, new BinaryComparator(base.getValue()), put, true))
+        return; // deleted meanwhile
+    }
+    region.delete(delete);
+  }
+
+  /**
+   * @return a new unique column name of a usage cell of the given kind
+   */
+  static byte[] newColumn(byte kind, long ts) {
+    byte[] column = new byte[COLUMN_LENGTH];
+    column[0] = kind;
+    Bytes.putLong(column, 1, ts);
+    Bytes.putLong(column, 1 + Bytes.SIZEOF_LONG, RANDOM.nextLong());
+    return column;
+  }
+
+  /**
+   * @return name of the delta cell written by the intent, which has the id
+   * of the intent
+   */
+  static byte[] getDeltaColumn(byte[] intentColumn) {
+    byte[] column = intentColumn.clone();
+    column[0] = DELTA;
+    return column;
+  }
+
+  static byte[] newIntent(String path, DirectoryUsage delta) {
+    return toBytes(delta, Bytes.toBytes(path));
+  }
+
+  static String getIntentPath(byte[] intent) {
+    return Bytes.toString(intent, USAGE_LENGTH, intent.length - USAGE_LENGTH);
+  }
+
+  static byte[] getIntentDelta(byte[] intent) {
+    return Arrays.copyOf(intent, USAGE_LENGTH);
+  }
+
+  static byte[] toBytes(DirectoryUsage usage) {
+    return toBytes(usage, new byte[0]);
+  }
+
+  private static byte[] toBytes(DirectoryUsage usage, byte[] tail) {
+    byte[] value = new byte[USAGE_LENGTH + tail.length];
+    int offset = Bytes.putLong(value, 0, usage.getFileCount());
+    offset = Bytes.putLong(value, offset, usage.getDirectoryCount());
+    offset = Bytes.putLong(value, offset, usage.getLength());
+    offset = Bytes.putLong(value, offset, usage.getSpaceConsumed());
+    Bytes.putBytes(value, offset, tail, 0, tail.length);
+    return value;
+  }
+
+  private static DirectoryUsage toUsage(byte[] value) {
+    return new DirectoryUsage(Bytes.toLong(value, 0),
+        Bytes.toLong(value, Bytes.SIZEOF_LONG),
+        Bytes.toLong(value, 2 * Bytes.SIZEOF_LONG),
+        Bytes.toLong(value, 3 * Bytes.SIZEOF_LONG));
+  }
+
+  private static byte[] concat(List<byte[]> columns) {
+    byte[] bytes = new byte[columns.size() * COLUMN_LENGTH];
+    for(int i = 0; i < columns.size(); i++) {
+      Bytes.putBytes(bytes, i * COLUMN_LENGTH, columns.get(i), 0,
+          COLUMN_LENGTH);
+    }
+    return bytes;
+  }
+
+  /**
+   * @return names of the delta cells included in the base cell
+   */
+  private static SortedSet<byte[]> getIncluded(byte[] base) {
+    SortedSet<byte[]> included = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+    for(int offset = USAGE_LENGTH; offset < base.length;
+        offset += COLUMN_LENGTH) {
+      included.add(Arrays.copyOfRange(base, offset, offset + COLUMN_LENGTH));
+    }
+    return included;
+  }
+
+  /**
+   * Sum up the usage cells of a directory row.
+   * @return usage of the directory, or null if the row has no base cell
+   */
+  static DirectoryUsage getUsage(Result result) {
+    NavigableMap<byte[], byte[]> cells =
+        result.getFamilyMap(FileField.getUsage());
+    if(cells == null)
+      return null;
+    byte[] base = null;
+    for(Map.Entry<byte[], byte[]> cell : cells.entrySet()) {
+      if(cell.getKey()[0] == BASE)
+        base = cell.getValue();
+    }
+    if(base == null)
+      return null;
+    SortedSet<byte[]> included = getIncluded(base);
+    DirectoryUsage usage = toUsage(base);
+    for(Map.Entry<byte[], byte[]> cell : cells.entrySet()) {
+      if(cell.getKey()[0] == DELTA && !included.contains(cell.getKey()))
+        usage = usage.add(toUsage(cell.getValue()));
+    }
+    return usage;
+  }
+
+  /**
+   * @return names of the base and delta cells of the row, which are removed
+   * with the row, unlike intents, or null if the row has no usage cells or
+   * they are not read
+   */
+  static List<byte[]> getColumns(Result result) {
+    NavigableMap<byte[], byte[]> cells =
+        result.getFamilyMap(FileField.getUsage());
+    if(cells == null || cells.isEmpty())
+      return null;
+    List<byte[]> columns = new ArrayList<byte[]>();
+    for(byte[] column : cells.keySet()) {
+      if(column[0] != INTENT)
+        columns.add(column);
+    }
+    return columns;
+  }
+}
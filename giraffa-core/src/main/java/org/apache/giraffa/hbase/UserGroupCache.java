@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.giraffa.GiraffaConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.ipc.RequestContext;
+import org.apache.hadoop.hbase.security.User;
+import org.apache.hadoop.security.Groups;
+import org.apache.hadoop.security.UserGroupInformation;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Cache of group memberships of the callers of namespace operations,
+ * shared by all regions of a region server.
+ * <p>
+ * Resolving groups may fork a shell command or query a directory service,
+ * so it is done once per user rather than on every create or mkdirs.
+ * Groups are resolved again in the background once they are older than
+ * the refresh interval, while the stale groups keep being returned,
+ * so that only the first request of a user waits for the resolution.
+ * Users without requests within the expiry time are evicted.
+ */
+class UserGroupCache {
+  private static final Log LOG = LogFactory.getLog(UserGroupCache.class);
+
+  private static final Map<Object, UserGroupCache> CACHES =
+      new IdentityHashMap<Object, UserGroupCache>();
+
+  /** Group of files created by users, who are not members of any group. */
+  static final String DEFAULT_GROUP = "supergroup";
+
+  private final Object server;
+  private final Groups groups;
+  private final ExecutorService refresher;
+  private final LoadingCache<String, String> primaryGroups;
+  private int references;
+
+  private UserGroupCache(Object server, Configuration conf) {
+    this.server = server;
+    this.groups = Groups.getUserToGroupsMappingService(conf);
+    this.refresher = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("UserGroupCache-" + server).build());
+    this.primaryGroups = CacheBuilder.newBuilder()
+        .refreshAfterWrite(conf.getLong(
+            GiraffaConfiguration.GRFA_GROUP_CACHE_REFRESH_KEY,
+            GiraffaConfiguration.GRFA_GROUP_CACHE_REFRESH_DEFAULT),
+            TimeUnit.MILLISECONDS)
+        .expireAfterAccess(conf.getLong(
+            GiraffaConfiguration.GRFA_GROUP_CACHE_EXPIRE_KEY,
+            GiraffaConfiguration.GRFA_GROUP_CACHE_EXPIRE_DEFAULT),
+            TimeUnit.MILLISECONDS)
+        .maximumSize(conf.getLong(
+            GiraffaConfiguration.GRFA_GROUP_CACHE_SIZE_KEY,
+            GiraffaConfiguration.GRFA_GROUP_CACHE_SIZE_DEFAULT))
+        .build(new CacheLoader<String, String>() {
+          @Override
+          public String load(String user) {
+            return resolvePrimaryGroup(user);
+          }
+
+          @Override
+          public ListenableFuture<String> reload(final String user,
+                                                 String oldGroup) {
+            ListenableFutureTask<String> task = ListenableFutureTask.create(
+                new Callable<String>() {
+                  @Override
+                  public String call() {
+                    return resolvePrimaryGroup(user);
+                  }
+                });
+            refresher.execute(task);
+            return task;
+          }
+        });
+  }
+
+  /**
+   * Get the group cache of the region server hosting the region.
+   * Each call must be paired with a call to {@link #release()}.
+   */
+  static UserGroupCache acquire(RegionCoprocessorEnvironment env) {
+    Object server = env.getRegionServerServices();
+    if(server == null)
+      server = env.getRegion();
+    synchronized(CACHES) {
+      UserGroupCache cache = CACHES.get(server);
+      if(cache == null) {
+        cache = new UserGroupCache(server, env.getConfiguration());
+        CACHES.put(server, cache);
+      }
+      cache.references++;
+      return cache;
+    }
+  }
+
+  /**
+   * Release the group cache, stopping it when no region uses it.
+   */
+  void release() {
+    synchronized(CACHES) {
+      if(--references > 0)
+        return;
+      CACHES.remove(server);
+      refresher.shutdownNow();
+    }
+  }
+
+  /**
+   * @return short name of the user of the current RPC request,
+   * or of the current user if not called within a request
+   */
+  static String getCallerName() throws IOException {
+    User user = RequestContext.getRequestUser();
+    if(user != null)
+      return user.getShortName();
+    return UserGroupInformation.getCurrentUser().getShortUserName();
+  }
+
+  /**
+   * @return the first group of the user, or {@link #DEFAULT_GROUP}
+   * if the user is not a member of any group
+   */
+  String getPrimaryGroup(String user) {
+    return primaryGroups.getUnchecked(user);
+  }
+
+  private String resolvePrimaryGroup(String user) {
+    List<String> userGroups;
+    try {
+      userGroups = groups.getGroups(user);
+    } catch(IOException e) {
+      LOG.debug("No groups found for user " + user, e);
+      userGroups = Collections.emptyList();
+    }
+    return userGroups.isEmpty() ? DEFAULT_GROUP : userGroups.get(0);
+  }
+}
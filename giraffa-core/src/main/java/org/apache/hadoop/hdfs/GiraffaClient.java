@@ -18,11 +18,18 @@
 package org.apache.hadoop.hdfs;
 
 import java.io.IOException;
+import java.util.EnumSet;
 
+import org.apache.giraffa.AsyncNamespaceService;
 import org.apache.giraffa.GiraffaConfiguration;
 import org.apache.giraffa.NamespaceService;
+import org.apache.giraffa.hbase.NamespaceAgent;
 import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.CreateFlag;
 import org.apache.hadoop.fs.FileSystem.Statistics;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.apache.hadoop.io.EnumSetWritable;
 
 /**
  * GiraffaClient is an extension of DFSClient
@@ -46,6 +53,67 @@ public class GiraffaClient extends DFSClient {
     return (NamespaceService) this.namenode;
   }
 
+  /**
+   * Get file statuses of multiple paths in a single batch.
+   * @return statuses in the order of the given paths,
+   *         null for paths that do not exist
+   */
+  public HdfsFileStatus[] getFileInfos(String[] srcs) throws IOException {
+    checkOpen();
+    return getNamespaceService().getFileInfos(srcs);
+  }
+
+  /**
+   * Create a file in the namespace without opening a block output stream.
+   * The content of the file is then stored by
+   * {@link #completeInlineFile(String, byte[])}.
+   */
+  public void createInlineFile(String src, FsPermission masked,
+                               EnumSet<CreateFlag> flag, short replication,
+                               long blockSize) throws IOException {
+    checkOpen();
+    getNamespaceService().create(src, masked, getClientName(),
+        new EnumSetWritable<CreateFlag>(flag), true, replication, blockSize);
+  }
+
+  /**
+   * Store the whole content of a created file in the namespace
+   * and close the file.
+   */
+  public void completeInlineFile(String src, byte[] data) throws IOException {
+    checkOpen();
+    getNamespaceService().completeInlineFile(src, getClientName(), data);
+  }
+
+  /**
+   * Get the content of a file stored in the namespace.
+   * @return file data or null if the file is stored in blocks
+   */
+  public byte[] getInlineData(String src) throws IOException {
+    checkOpen();
+    return getNamespaceService().getInlineData(src);
+  }
+
+  /**
+   * Returns true if the configured {@link NamespaceService} supports
+   * the asynchronous namespace service.
+   */
+  public boolean hasAsyncNamespaceService() {
+    return getNamespaceService() instanceof NamespaceAgent;
+  }
+
+  /**
+   * Returns asynchronous namespace service if it is supported by
+   * the configured {@link NamespaceService}.
+   */
+  public AsyncNamespaceService getAsyncNamespaceService() throws IOException {
+    NamespaceService namespace = getNamespaceService();
+    if(!hasAsyncNamespaceService())
+      throw new IOException("asynchronous namespace is not supported by "
+          + namespace.getClass().getName());
+    return ((NamespaceAgent) namespace).getAsyncService();
+  }
+
   public static void format(GiraffaConfiguration conf) throws IOException {
     NamespaceService namespace = conf.newNamespaceService();
     namespace.format(conf);
@@ -63,6 +131,11 @@ public class GiraffaClient extends DFSClient {
     super.setQuota(src, namespaceQuota, diskspaceQuota);
   }
 
+  @Override // DFSClient
+  public void concat(String trg, String[] srcs) throws IOException {
+    super.concat(trg, srcs);
+  }
+
   @Override // DFSClient
   public void close() throws IOException {
     getNamespaceService().close();
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Regression benchmark for the throughput of namespace deletes.
+ * Measures a recursive delete of a directory with many files, and
+ * a loop deleting and recreating the same path, which exercises ordering
+ * of delete markers and puts within the same millisecond.
+ * <p>
+ * Usage: DeleteBenchmark [numFiles] [numRecreates]
+ */
+public class DeleteBenchmark {
+  private static final HBaseTestingUtility UTIL =
+      GiraffaTestUtils.getHBaseTestingUtility();
+
+  public static void main(String[] args) throws Exception {
+    int numFiles = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int numRecreates = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+    System.setProperty(HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    MiniHBaseCluster cluster = UTIL.startMiniCluster(1);
+    try {
+      GiraffaConfiguration conf =
+          new GiraffaConfiguration(UTIL.getConfiguration());
+      GiraffaTestUtils.setGiraffaURI(conf);
+      GiraffaFileSystem.format(conf, false);
+      GiraffaFileSystem grfs = (GiraffaFileSystem) FileSystem.get(conf);
+      try {
+        runRecursiveDelete(grfs, numFiles);
+        runDeleteAndRecreate(grfs, numRecreates);
+      } finally {
+        grfs.close();
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static void runRecursiveDelete(GiraffaFileSystem grfs, int numFiles)
+      throws IOException {
+    Path dir = new Path("/benchmark/delete");
+    for(int i = 0; i < numFiles; i++) {
+      grfs.create(new Path(dir, "file" + i)).close();
+    }
+    long start = Time.now();
+    if(!grfs.delete(dir, true))
+      throw new IOException("Failed to delete " + dir);
+    report("Recursive delete of " + numFiles + " files", numFiles,
+        Time.now() - start);
+  }
+
+  private static void runDeleteAndRecreate(GiraffaFileSystem grfs,
+                                           int numRecreates)
+      throws IOException {
+    Path dir = new Path("/benchmark/recreate");
+    long start = Time.now();
+    for(int i = 0; i < numRecreates; i++) {
+      if(!grfs.mkdirs(dir))
+        throw new IOException("Failed to create " + dir);
+      if(!grfs.delete(dir, true))
+        throw new IOException("Failed to delete " + dir);
+    }
+    if(!grfs.mkdirs(dir) || !grfs.getFileStatus(dir).isDirectory())
+      throw new IOException("Recreated directory is not visible: " + dir);
+    report("Delete and recreate " + numRecreates + " times", numRecreates,
+        Time.now() - start);
+  }
+
+  private static void report(String name, int ops, long millis) {
+    System.out.println(name + ": " + millis + " ms, "
+        + (millis == 0 ? ops : ops * 1000L / millis) + " ops/sec");
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests access times updated by reads through the access time buffer.
+ */
+public class TestAccessTime {
+  private static final long FLUSH_INTERVAL = 100;
+  private static MiniHBaseCluster cluster;
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private GiraffaFileSystem grfs;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    UTIL.getConfiguration().setLong(
+        GiraffaConfiguration.GRFA_ACCESS_TIME_PRECISION_KEY, 1);
+    UTIL.getConfiguration().setLong(
+        GiraffaConfiguration.GRFA_ACCESS_TIME_FLUSH_INTERVAL_KEY,
+        FLUSH_INTERVAL);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    GiraffaConfiguration conf =
+        new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+  }
+
+  @After
+  public void after() throws IOException {
+    if(grfs != null) grfs.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws IOException {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  private void writeFile(Path file) throws IOException {
+    FSDataOutputStream out = grfs.create(file);
+    out.write(new byte[10]);
+    out.close();
+  }
+
+  private void readFile(Path file) throws IOException {
+    grfs.open(file).close();
+  }
+
+  @Test
+  public void testOpenUpdatesAccessTime() throws Exception {
+    Path file = new Path("/accessed");
+    writeFile(file);
+    grfs.setTimes(file, -1, 0);
+    long mtime = grfs.getFileStatus(file).getModificationTime();
+    assertEquals(0, grfs.getFileStatus(file).getAccessTime());
+
+    readFile(file);
+    long deadline = System.currentTimeMillis() + 50 * FLUSH_INTERVAL;
+    while(grfs.getFileStatus(file).getAccessTime() == 0 &&
+        System.currentTimeMillis() < deadline) {
+      Thread.sleep(FLUSH_INTERVAL);
+    }
+    FileStatus status = grfs.getFileStatus(file);
+    assertTrue(status.getAccessTime() > 0);
+    assertEquals(mtime, status.getModificationTime());
+    assertEquals(10, status.getLen());
+  }
+
+  @Test
+  public void testSetTimesOverridesAccess() throws Exception {
+    Path file = new Path("/set");
+    writeFile(file);
+    readFile(file);
+    grfs.setTimes(file, 25, 30);
+    Thread.sleep(5 * FLUSH_INTERVAL);
+    FileStatus status = grfs.getFileStatus(file);
+    assertEquals(30, status.getAccessTime());
+    assertEquals(25, status.getModificationTime());
+  }
+
+  @Test
+  public void testDeletedFileIsNotRecreated() throws Exception {
+    Path dir = new Path("/dir");
+    Path file = new Path(dir, "deleted");
+    writeFile(file);
+    readFile(file);
+    assertTrue(grfs.delete(file, false));
+    Thread.sleep(5 * FLUSH_INTERVAL);
+    assertFalse(grfs.exists(file));
+    assertEquals(0, grfs.listStatus(dir).length);
+  }
+}
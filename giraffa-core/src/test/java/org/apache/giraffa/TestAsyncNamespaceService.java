@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests asynchronous namespace operations.
+ */
+public class TestAsyncNamespaceService {
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private static final int NUM_FILES = 100;
+  private static MiniHBaseCluster cluster;
+  private GiraffaFileSystem grfs;
+  private AsyncNamespaceService async;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    GiraffaConfiguration conf =
+        new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+    async = grfs.grfaClient.getAsyncNamespaceService();
+  }
+
+  @After
+  public void after() throws IOException {
+    if(grfs != null) grfs.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  @Test
+  public void testManyOperationsInFlight() throws Exception {
+    FsPermission perm = FsPermission.getDefault();
+    List<ListenableFuture<Boolean>> dirs =
+        new ArrayList<ListenableFuture<Boolean>>();
+    List<ListenableFuture<Void>> files =
+        new ArrayList<ListenableFuture<Void>>();
+    for(int i = 0; i < NUM_FILES; i++) {
+      dirs.add(async.mkdirs("/dirs/dir" + i, perm, true));
+      files.add(async.create("/files/file" + i, perm, "client",
+          EnumSet.of(CreateFlag.CREATE), true, (short) 3, 512));
+    }
+    for(Boolean created : Futures.allAsList(dirs).get())
+      assertTrue(created);
+    Futures.allAsList(files).get();
+
+    List<ListenableFuture<HdfsFileStatus>> statuses =
+        new ArrayList<ListenableFuture<HdfsFileStatus>>();
+    for(int i = 0; i < NUM_FILES; i++) {
+      statuses.add(async.getFileInfo("/dirs/dir" + i));
+      statuses.add(async.getFileInfo("/files/file" + i));
+    }
+    List<HdfsFileStatus> results = Futures.allAsList(statuses).get();
+    for(int i = 0; i < NUM_FILES; i++) {
+      assertNotNull(results.get(2 * i));
+      assertTrue(results.get(2 * i).isDir());
+      assertNotNull(results.get(2 * i + 1));
+      assertFalse(results.get(2 * i + 1).isDir());
+    }
+
+    DirectoryListing listing = async.getListing("/dirs", null, false).get();
+    assertEquals(NUM_FILES, listing.getPartialListing().length);
+
+    assertTrue(async.delete("/files", true).get());
+    try {
+      async.getFileInfo("/files/file0").get();
+      fail("deleted file should not be found");
+    } catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    ListenableFuture<Boolean> future =
+        async.mkdirs("/missing/dir", FsPermission.getDefault(), false);
+    try {
+      future.get();
+      fail("mkdirs without parent should fail");
+    } catch(ExecutionException e) {
+      assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+  }
+}
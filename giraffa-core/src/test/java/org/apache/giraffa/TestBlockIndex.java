@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.giraffa.GiraffaConstants.FileState;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.ExtendedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests decoding of block ranges with {@link BlockIndex}.
+ */
+public class TestBlockIndex {
+  private static final int NUM_BLOCKS = 10;
+  private static final long BLOCK_SIZE = 100;
+  private BlockIndex index;
+
+  @Before
+  public void before() throws IOException {
+    List<UnlocatedBlock> blocks = new ArrayList<UnlocatedBlock>();
+    List<DatanodeInfo[]> locations = new ArrayList<DatanodeInfo[]>();
+    for(int i = 0; i < NUM_BLOCKS; i++) {
+      blocks.add(new UnlocatedBlock(
+          new ExtendedBlock("pool", i, BLOCK_SIZE, 1000 + i),
+          i * BLOCK_SIZE, false));
+      locations.add(new DatanodeInfo[0]);
+    }
+    index = new BlockIndex(null,
+        GiraffaPBHelper.unlocatedBlocksToBytes(blocks),
+        GiraffaPBHelper.blockLocationsToBytes(locations));
+  }
+
+  private static void checkBlocks(List<LocatedBlock> blocks, long... ids) {
+    assertEquals(ids.length, blocks.size());
+    for(int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], blocks.get(i).getBlock().getBlockId());
+      assertEquals(ids[i] * BLOCK_SIZE, blocks.get(i).getStartOffset());
+    }
+  }
+
+  @Test
+  public void testRange() throws IOException {
+    assertEquals(NUM_BLOCKS, index.size());
+    assertEquals(NUM_BLOCKS * BLOCK_SIZE, index.getFileLength());
+    assertEquals(NUM_BLOCKS - 1, index.getLastBlock().getBlock().getBlockId());
+    checkBlocks(index.getLocatedBlocks(250, 100), 2, 3);
+    checkBlocks(index.getLocatedBlocks(300, 100), 3);
+    checkBlocks(index.getLocatedBlocks(0, 0), 0);
+    checkBlocks(index.getLocatedBlocks(950, 1000), 9);
+    checkBlocks(index.getLocatedBlocks(0, Long.MAX_VALUE),
+        0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    assertTrue(index.getLocatedBlocks(1000, 10).isEmpty());
+  }
+
+  @Test
+  public void testStoredIndex() throws IOException {
+    BlockIndex stored = new BlockIndex(index.getIndexBytes(),
+        index.getBlocksBytes(), index.getLocationsBytes());
+    assertArrayEquals(BlockIndex.build(index.getBlocksBytes(),
+        index.getLocationsBytes()), stored.getIndexBytes());
+    checkBlocks(stored.getLocatedBlocks(550, 1), 5);
+    assertEquals(NUM_BLOCKS, stored.getBlocks().size());
+    assertEquals(NUM_BLOCKS, stored.getLocations().size());
+  }
+
+  @Test
+  public void testDecodedBlocks() throws IOException {
+    INode node = new INode(0, false, (short) 1, BLOCK_SIZE, 0, 0, null,
+        null, null, null, null, 0, 0, FileState.CLOSED, null, null, null);
+    node.setBlockIndex(index);
+    node.markClean();
+    // reading the blocks does not mark them modified
+    List<UnlocatedBlock> blocks = node.getBlocks();
+    List<DatanodeInfo[]> locations = node.getLocations();
+    assertTrue(node.getDirtyFields().isEmpty());
+    // blocks changed in place are serialized from the decoded lists
+    blocks.remove(NUM_BLOCKS - 1);
+    locations.remove(NUM_BLOCKS - 1);
+    assertNull(node.getBlockIndexBytes());
+    assertEquals(NUM_BLOCKS - 1, new BlockIndex(null,
+        node.getBlocksBytes(), node.getLocationsBytes()).size());
+    node.setBlocks(blocks);
+    assertTrue(node.getDirtyFields().contains(FileField.BLOCK));
+  }
+
+  @Test
+  public void testNoBlocks() throws IOException {
+    BlockIndex empty = new BlockIndex(null, null, null);
+    assertEquals(0, empty.size());
+    assertEquals(0, empty.getFileLength());
+    assertNull(empty.getLastBlock());
+    assertTrue(empty.getLocatedBlocks(0, 100).isEmpty());
+  }
+}
@@ -19,18 +19,23 @@ package org.apache.giraffa;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
 import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -44,6 +49,8 @@ public class TestBlockManagement {
   public static void beforeClass() throws Exception {
     System.setProperty(
         HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY, GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    UTIL.getConfiguration().setLong(
+        GiraffaConfiguration.GRFA_BLOCK_RECLAIM_INTERVAL_KEY, 100L);
     cluster = UTIL.startMiniCluster(1);
   }
 
@@ -84,6 +91,70 @@ public class TestBlockManagement {
     assertTrue(grfs.delete(file, false));
   }
 
+  @Test
+  public void testBlockLocationsRange() throws IOException {
+    Path file = new Path("/ranged.txt");
+    FSDataOutputStream out = grfs.create(file, true, 5000, (short) 3, 512);
+    for(int i = 0; i < 2000; i++) {
+      out.write('A');
+    }
+    out.close();
+
+    LocatedBlocks all = grfs.grfaClient.getLocatedBlocks("/ranged.txt", 0);
+    assertEquals(4, all.locatedBlockCount());
+    assertEquals(2000, all.getFileLength());
+    LocatedBlocks range =
+        grfs.grfaClient.getLocatedBlocks("/ranged.txt", 1000, 100);
+    assertEquals(2, range.locatedBlockCount());
+    assertEquals(512, range.get(0).getStartOffset());
+    assertEquals(1024, range.get(1).getStartOffset());
+    assertEquals(1536, range.getLastLocatedBlock().getStartOffset());
+    assertEquals(2000, range.getFileLength());
+
+    FSDataInputStream in = grfs.open(file, 5000);
+    byte[] buf = new byte[100];
+    in.readFully(1900, buf);
+    assertEquals('A', buf[99]);
+    in.close();
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testRecursiveDeleteReclaimsBlocks()
+      throws IOException, InterruptedException {
+    Path dir = new Path("/reclaimed");
+    List<Path> blockFiles = new ArrayList<Path>();
+    for(int i = 0; i < 3; i++) {
+      Path file = new Path(dir, "sub" + i + "/file");
+      FSDataOutputStream out = grfs.create(file, true, 5000, (short) 3, 512);
+      for(int j = 0; j < 1000; j++) {
+        out.write('A');
+      }
+      out.close();
+      for(LocatedBlock block : grfs.grfaClient.getLocatedBlocks(
+          file.toUri().getPath(), 0).getLocatedBlocks()) {
+        blockFiles.add(new Path("/giraffa/finalized/g"
+            + block.getBlock().getBlockName()));
+      }
+    }
+    assertEquals(6, blockFiles.size());
+    FileSystem hdfs = UTIL.getDFSCluster().getFileSystem();
+    for(Path blockFile : blockFiles) {
+      assertTrue(hdfs.exists(blockFile));
+    }
+
+    assertTrue(grfs.delete(dir, true));
+    assertFalse(grfs.exists(dir));
+
+    // blocks are deleted in the background
+    for(Path blockFile : blockFiles) {
+      for(int i = 0; i < 100 && hdfs.exists(blockFile); i++) {
+        Thread.sleep(100);
+      }
+      assertFalse(hdfs.exists(blockFile));
+    }
+  }
+
   @Test
   public void testWriteRead() throws IOException {
     Path file = new Path("giraffa.txt");
@@ -17,22 +17,50 @@
  */
 package org.apache.giraffa;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.giraffa.hbase.INodeManager;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.ParentNotDirectoryException;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.protocol.AlreadyBeingCreatedException;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.protocol.NSQuotaExceededException;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.security.UserGroupInformation;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import static org.apache.giraffa.GiraffaTestUtils.printFileStatus;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -149,6 +177,186 @@ public class TestGiraffaFS {
     assertEquals(0, files.length);
   }
 
+  @Test
+  public void testCreateWithMissingAncestors() throws IOException {
+    Path file = new Path("/p0/p1/p2/p3/p4/p5/p6/p7/file");
+    grfs.create(file).close();
+    assertTrue(grfs.getFileStatus(file).isFile());
+    for(Path dir = file.getParent(); dir != null; dir = dir.getParent()) {
+      assertTrue(grfs.getFileStatus(dir).isDirectory());
+    }
+  }
+
+  @Test(expected = ParentNotDirectoryException.class)
+  public void testMkdirsUnderFile() throws IOException {
+    grfs.create(new Path("p0/file")).close();
+    grfs.mkdirs(new Path("p0/file/p1/p2"));
+  }
+
+  @Test
+  public void testConcurrentCreate() throws Exception {
+    final Path file = new Path("/race/d1/d2/file");
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger rejected = new AtomicInteger();
+    final AtomicReference<IOException> failure =
+        new AtomicReference<IOException>();
+    Thread[] creators = new Thread[8];
+    for(int i = 0; i < creators.length; i++) {
+      creators[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            grfs.create(file, false).close();
+            created.incrementAndGet();
+          } catch(FileAlreadyExistsException e) {
+            rejected.incrementAndGet();
+          } catch(IOException e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      creators[i].start();
+    }
+    for(Thread creator : creators)
+      creator.join();
+    if(failure.get() != null)
+      throw failure.get();
+    assertEquals(1, created.get());
+    assertEquals(creators.length - 1, rejected.get());
+    assertUsage(grfs.getContentSummary(new Path("/race")), 0, 1, 3, 0);
+  }
+
+  @Test
+  public void testContentSummary() throws IOException {
+    Path root = new Path("summary");
+    for(int d = 0; d < 3; d++) {
+      Path dir = new Path(root, "d" + d + "/sub");
+      for(int f = 0; f < 2; f++) {
+        FSDataOutputStream out = grfs.create(new Path(dir, "f" + f), true,
+            4096, (short) 2, 512);
+        out.write(new byte[100]);
+        out.close();
+      }
+    }
+    ContentSummary summary = grfs.getContentSummary(root);
+    assertEquals(600, summary.getLength());
+    assertEquals(6, summary.getFileCount());
+    assertEquals(7, summary.getDirectoryCount());
+    assertEquals(1200, summary.getSpaceConsumed());
+  }
+
+  @Test
+  public void testUsageCountersFollowMutations() throws IOException {
+    Path a = new Path("/usage/a");
+    Path b = new Path("/usage/b");
+    grfs.mkdirs(new Path(a, "sub"));
+    grfs.mkdirs(b);
+    for(int f = 0; f < 3; f++) {
+      FSDataOutputStream out = grfs.create(new Path(a, "sub/f" + f), true,
+          4096, (short) 3, 512);
+      out.write(new byte[10]);
+      out.close();
+    }
+    assertUsage(grfs.getContentSummary(a), 30, 3, 2, 90);
+
+    assertTrue(grfs.delete(new Path(a, "sub/f0"), false));
+    assertTrue(grfs.setReplication(new Path(a, "sub/f1"), (short) 1));
+    assertUsage(grfs.getContentSummary(a), 20, 2, 2, 40);
+
+    assertTrue(grfs.rename(new Path(a, "sub"), new Path(b, "sub")));
+    assertUsage(grfs.getContentSummary(a), 0, 0, 1, 0);
+    assertUsage(grfs.getContentSummary(b), 20, 2, 2, 40);
+    assertUsage(grfs.getContentSummary(new Path("/usage")), 20, 2, 4, 40);
+
+    assertTrue(grfs.delete(new Path(b, "sub"), true));
+    assertUsage(grfs.getContentSummary(new Path("/usage")), 0, 0, 3, 0);
+  }
+
+  @Test
+  public void testNamespaceQuota() throws IOException {
+    Path dir = new Path("/quota/ns");
+    grfs.mkdirs(dir);
+    // the directory itself counts against its quota
+    grfs.grfaClient.setQuota(dir.toString(), 3, HdfsConstants.QUOTA_DONT_SET);
+    grfs.create(new Path(dir, "f1")).close();
+    grfs.mkdirs(new Path(dir, "d1"));
+    try {
+      grfs.create(new Path(dir, "f2")).close();
+      fail("Created a file exceeding the namespace quota");
+    } catch(NSQuotaExceededException e) {
+      // expected
+    }
+    try {
+      grfs.mkdirs(new Path(dir, "d1/d2"));
+      fail("Created a directory exceeding the namespace quota");
+    } catch(NSQuotaExceededException e) {
+      // expected
+    }
+    assertFalse(grfs.exists(new Path(dir, "f2")));
+
+    grfs.grfaClient.setQuota(dir.toString(), HdfsConstants.QUOTA_RESET,
+        HdfsConstants.QUOTA_DONT_SET);
+    grfs.create(new Path(dir, "f2")).close();
+  }
+
+  @Test
+  public void testDiskspaceQuota() throws IOException {
+    Path dir = new Path("/quota/ds");
+    grfs.mkdirs(dir);
+    grfs.grfaClient.setQuota(dir.toString(), HdfsConstants.QUOTA_DONT_SET,
+        1000);
+    FSDataOutputStream out =
+        grfs.create(new Path(dir, "f1"), true, 4096, (short) 1, 512);
+    out.write(new byte[600]);
+    out.close();
+    // the next block would exceed the quota
+    try {
+      out = grfs.create(new Path(dir, "f2"), true, 4096, (short) 1, 512);
+      out.write(new byte[100]);
+      out.close();
+      fail("Allocated a block exceeding the disk space quota");
+    } catch(IOException e) {
+      // expected
+    }
+  }
+
+  private static void assertUsage(ContentSummary summary, long length,
+      long fileCount, long directoryCount, long spaceConsumed) {
+    assertEquals(length, summary.getLength());
+    assertEquals(fileCount, summary.getFileCount());
+    assertEquals(directoryCount, summary.getDirectoryCount());
+    assertEquals(spaceConsumed, summary.getSpaceConsumed());
+  }
+
+  @Test
+  public void testDeleteAndRecreate() throws IOException {
+    Path dir = new Path("recreated");
+    Path file = new Path(dir, "file");
+    for(int i = 0; i < 20; i++) {
+      grfs.create(file).close();
+      assertTrue(grfs.delete(dir, true));
+      assertFalse(grfs.exists(file));
+      assertTrue(grfs.mkdirs(dir));
+      assertTrue(grfs.getFileStatus(dir).isDirectory());
+    }
+  }
+
+  @Test
+  public void testDeleteAndRecreateDirectoryUsage() throws IOException {
+    Path dir = new Path("/recreatedUsage/dir");
+    for(int i = 0; i < 20; i++) {
+      assertTrue(grfs.mkdirs(new Path(dir, "sub")));
+      FSDataOutputStream out = grfs.create(new Path(dir, "sub/file"), true,
+          4096, (short) 3, 512);
+      out.write(new byte[10]);
+      out.close();
+      assertUsage(grfs.getContentSummary(dir), 10, 1, 2, 30);
+      assertTrue(grfs.delete(dir, true));
+    }
+    assertUsage(grfs.getContentSummary(new Path("/recreatedUsage")),
+        0, 0, 1, 0);
+  }
+
   @Test
   public void testDeletionNonRecursiveNoChildren() throws IOException {
     grfs.mkdirs(new Path("folder"));
@@ -221,6 +429,28 @@ public class TestGiraffaFS {
     assertEquals(0644, files[0].getPermission().toShort());
   }
 
+  @Test
+  public void testOwnerIsCaller() throws Exception {
+    final Path dir = new Path("/owned/dir");
+    final Path file = new Path(dir, "file");
+    UserGroupInformation user = UserGroupInformation.createUserForTesting(
+        "giraffa-test-user", new String[] {"giraffa-test-group"});
+    user.doAs(new PrivilegedExceptionAction<Void>() {
+      @Override
+      public Void run() throws IOException {
+        FileSystem fs = FileSystem.newInstance(grfs.getUri(), grfs.getConf());
+        try {
+          fs.create(file).close();
+        } finally {
+          fs.close();
+        }
+        return null;
+      }
+    });
+    assertEquals("giraffa-test-user", grfs.getFileStatus(dir).getOwner());
+    assertEquals("giraffa-test-user", grfs.getFileStatus(file).getOwner());
+  }
+
   @Test
   public void testSimpleGetFileInfo() throws IOException {
     grfs.mkdirs(new Path("folder2"));
@@ -233,6 +463,234 @@ public class TestGiraffaFS {
     assertEquals("folder2", fileStat.getPath().getName());
   }
 
+  @Test
+  public void testBatchGetFileInfo() throws IOException {
+    grfs.mkdirs(new Path("folder3"));
+    grfs.create(new Path("folder3/file3")).close();
+    Path[] paths = {new Path("folder3"), new Path("missing"),
+        new Path("folder3/file3")};
+    FileStatus[] stats = grfs.getFileStatus(paths);
+    assertEquals(paths.length, stats.length);
+    assertTrue(stats[0].isDirectory());
+    assertEquals("folder3", stats[0].getPath().getName());
+    assertNull(stats[1]);
+    assertFalse(stats[2].isDirectory());
+    assertEquals("file3", stats[2].getPath().getName());
+  }
+
+  @Test
+  public void testAppend() throws IOException {
+    Path file = new Path("/append/file");
+    byte[] data = new byte[3000];
+    for(int i = 0; i < data.length; i++)
+      data[i] = (byte) i;
+
+    FSDataOutputStream out = grfs.create(file, true, 4096, (short) 1, 1024);
+    out.write(data, 0, 600);
+    out.close();
+    // into the last block, which is not full
+    out = grfs.append(file);
+    out.write(data, 600, 400);
+    out.close();
+    // over the block boundary
+    out = grfs.append(file);
+    out.write(data, 1000, 1048);
+    out.close();
+    // after a full last block
+    out = grfs.append(file);
+    out.write(data, 2048, 952);
+    out.close();
+
+    FileStatus status = grfs.getFileStatus(file);
+    assertEquals(data.length, status.getLen());
+    assertEquals(3, grfs.getFileBlockLocations(status, 0, data.length).length);
+    byte[] read = new byte[data.length];
+    FSDataInputStream in = grfs.open(file);
+    in.readFully(0, read);
+    in.close();
+    assertArrayEquals(data, read);
+    assertUsage(grfs.getContentSummary(new Path("/append")),
+        data.length, 1, 1, data.length);
+  }
+
+  @Test
+  public void testAttributeUpdatesKeepBlocks() throws IOException {
+    Path file = new Path("/attributes/file");
+    byte[] data = new byte[2500];
+    for(int i = 0; i < data.length; i++)
+      data[i] = (byte) i;
+    FSDataOutputStream out = grfs.create(file, true, 4096, (short) 1, 1024);
+    out.write(data);
+    out.close();
+
+    // attributes are read without blocks, which are loaded for the update
+    grfs.setPermission(file, new FsPermission((short) 0600));
+    grfs.setOwner(file, "owner", "group");
+    assertTrue(grfs.setReplication(file, (short) 1));
+
+    FileStatus status = grfs.getFileStatus(file);
+    assertEquals(data.length, status.getLen());
+    assertEquals(0600, status.getPermission().toShort());
+    assertEquals("owner", status.getOwner());
+    assertEquals(3, grfs.getFileBlockLocations(status, 0, data.length).length);
+    byte[] read = new byte[data.length];
+    FSDataInputStream in = grfs.open(file);
+    in.readFully(0, read);
+    in.close();
+    assertArrayEquals(data, read);
+  }
+
+  /**
+   * Client of the namespace table of the test cluster.
+   */
+  private static HTable openNamespaceTable() throws IOException {
+    Configuration conf = UTIL.getConfiguration();
+    return new HTable(conf, conf.get(GiraffaConfiguration.GRFA_TABLE_NAME_KEY,
+        GiraffaConfiguration.GRFA_TABLE_NAME_DEFAULT));
+  }
+
+  /**
+   * INodeManager writing through a client of the namespace table,
+   * as a processor of another region does.
+   */
+  private static INodeManager newRemoteNodeManager() {
+    final Configuration conf = UTIL.getConfiguration();
+    CoprocessorEnvironment env = (CoprocessorEnvironment)
+        Proxy.newProxyInstance(CoprocessorEnvironment.class.getClassLoader(),
+            new Class<?>[] {CoprocessorEnvironment.class},
+            new InvocationHandler() {
+              @Override
+              public Object invoke(Object proxy, Method method, Object[] args)
+                  throws IOException {
+                if(method.getName().equals("getTable"))
+                  return new HTable(conf, (TableName) args[0]);
+                if(method.getName().equals("getConfiguration"))
+                  return conf;
+                return null;
+              }
+            });
+    return new INodeManager(conf, env);
+  }
+
+  @Test
+  public void testAttributeUpdateWritesDirtyColumns() throws IOException {
+    Path file = new Path("/attributes/dirty");
+    FSDataOutputStream out = grfs.create(file, true, 4096, (short) 1, 1024);
+    out.write(new byte[1500]);
+    out.close();
+
+    HTable nsTable = openNamespaceTable();
+    try {
+      Get get = new Get(RowKeyFactory.newInstance(file.toString()).getKey());
+      Result before = nsTable.get(get);
+      grfs.setPermission(file, new FsPermission((short) 0600));
+      Result after = nsTable.get(get);
+      assertEquals(before.size(), after.size());
+      for(KeyValue kv : after.raw()) {
+        KeyValue old = before.getColumnLatest(kv.getFamily(),
+            kv.getQualifier());
+        assertNotNull(old);
+        if(Bytes.equals(FileField.getPermissions(), kv.getQualifier()))
+          assertTrue(kv.getTimestamp() > old.getTimestamp());
+        else
+          assertEquals("Rewritten column " + Bytes.toString(kv.getQualifier()),
+              old.getTimestamp(), kv.getTimestamp());
+      }
+    } finally {
+      nsTable.close();
+    }
+  }
+
+  @Test
+  public void testPartialUpdateOfDeletedRow() throws IOException {
+    Path file = new Path("/attributes/deleted");
+    grfs.create(file).close();
+
+    INodeManager nodeManager = newRemoteNodeManager();
+    HTable nsTable = openNamespaceTable();
+    try {
+      INode node = nodeManager.getINode(file.toString(), false);
+      assertNotNull(node);
+      assertTrue(grfs.delete(file, false));
+      node.setPermission(new FsPermission((short) 0600));
+      try {
+        nodeManager.updateINode(node);
+        fail("Update of a deleted file must fail");
+      } catch(FileNotFoundException e) {
+        // expected
+      }
+      assertFalse(grfs.exists(file));
+      Get get = new Get(RowKeyFactory.newInstance(file.toString()).getKey());
+      assertFalse(nsTable.get(get).containsColumn(
+          FileField.getFileAttributes(), FileField.getPermissions()));
+    } finally {
+      nsTable.close();
+      nodeManager.close();
+    }
+  }
+
+  @Test
+  public void testConcat() throws IOException {
+    Path dir = new Path("/concat");
+    Path trg = new Path(dir, "trg");
+    Path[] srcs = {new Path(dir, "src1"), new Path(dir, "src2")};
+    byte[] data = new byte[2548];
+    for(int i = 0; i < data.length; i++)
+      data[i] = (byte) i;
+
+    FSDataOutputStream out = grfs.create(trg, true, 4096, (short) 1, 1024);
+    out.write(data, 0, 1024);
+    out.close();
+    out = grfs.create(srcs[0], true, 4096, (short) 1, 1024);
+    out.write(data, 1024, 1024);
+    out.close();
+    out = grfs.create(srcs[1], true, 4096, (short) 1, 1024);
+    out.write(data, 2048, 500);
+    out.close();
+
+    grfs.concat(trg, srcs);
+    assertFalse(grfs.exists(srcs[0]));
+    assertFalse(grfs.exists(srcs[1]));
+    FileStatus status = grfs.getFileStatus(trg);
+    assertEquals(data.length, status.getLen());
+    assertEquals(3, grfs.getFileBlockLocations(status, 0, data.length).length);
+    byte[] read = new byte[data.length];
+    FSDataInputStream in = grfs.open(trg);
+    in.readFully(0, read);
+    in.close();
+    assertArrayEquals(data, read);
+    assertUsage(grfs.getContentSummary(dir), data.length, 1, 1, data.length);
+  }
+
+  @Test
+  public void testRecoverLease() throws Exception {
+    Path file = new Path("/abandoned");
+    FSDataOutputStream out = grfs.create(file);
+    out.write(new byte[100]);
+    out.hflush();
+
+    // another client cannot overwrite the file while the lease is held
+    FileSystem other = FileSystem.newInstance(grfs.getConf());
+    try {
+      other.create(file, true);
+      fail("Expected AlreadyBeingCreatedException");
+    } catch(AlreadyBeingCreatedException e) {
+      // expected
+    } finally {
+      other.close();
+    }
+
+    long deadline = System.currentTimeMillis() + 60000;
+    while(!grfs.recoverLease(file)) {
+      assertTrue("Lease is not recovered",
+          System.currentTimeMillis() < deadline);
+      Thread.sleep(1000);
+    }
+    assertEquals(100, grfs.getFileStatus(file).getLen());
+    assertEquals(100, grfs.getContentSummary(new Path("/")).getLength());
+    assertTrue(grfs.recoverLease(file));
+  }
+
   public static void main(String[] args) throws Exception {
     TestGiraffaFS test = new TestGiraffaFS();
     GiraffaConfiguration conf =
@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests small files stored in the namespace table.
+ */
+public class TestInlineFiles {
+  private static final int THRESHOLD = 1024;
+  private static MiniHBaseCluster cluster;
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private GiraffaFileSystem grfs;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    GiraffaConfiguration conf =
+        new GiraffaConfiguration(UTIL.getConfiguration());
+    conf.setInt(GiraffaConfiguration.GRFA_CLIENT_INLINE_THRESHOLD_KEY,
+        THRESHOLD);
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+  }
+
+  @After
+  public void after() throws IOException {
+    if(grfs != null) grfs.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws IOException {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  private static byte[] newData(int length) {
+    byte[] data = new byte[length];
+    for(int i = 0; i < length; i++) {
+      data[i] = (byte) ('A' + i % 26);
+    }
+    return data;
+  }
+
+  private void writeFile(Path file, byte[] data) throws IOException {
+    FSDataOutputStream out = grfs.create(file, true, 5000, (short) 3, 512);
+    out.write(data);
+    out.close();
+  }
+
+  private void checkFile(Path file, byte[] data) throws IOException {
+    assertEquals(data.length, grfs.getFileStatus(file).getLen());
+    byte[] read = new byte[data.length];
+    FSDataInputStream in = grfs.open(file, 5000);
+    in.readFully(read);
+    assertEquals(-1, in.read());
+    in.close();
+    assertArrayEquals(data, read);
+  }
+
+  @Test
+  public void testSmallFile() throws IOException {
+    Path file = new Path("/small");
+    byte[] data = newData(THRESHOLD);
+    writeFile(file, data);
+    checkFile(file, data);
+    assertArrayEquals(data, grfs.grfaClient.getInlineData("/small"));
+    try {
+      grfs.grfaClient.getLocatedBlocks("/small", 0, THRESHOLD);
+      assertTrue("inline file should have no blocks", false);
+    } catch(IOException e) {
+      // expected
+    }
+    assertTrue(grfs.delete(file, false));
+    assertFalse(grfs.exists(file));
+  }
+
+  @Test
+  public void testLargeFile() throws IOException {
+    Path file = new Path("/large");
+    byte[] data = newData(THRESHOLD + 1);
+    writeFile(file, data);
+    checkFile(file, data);
+    assertNull(grfs.grfaClient.getInlineData("/large"));
+    assertEquals(3, grfs.grfaClient.getLocatedBlocks("/large", 0,
+        data.length).locatedBlockCount());
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    Path file = new Path("/empty");
+    writeFile(file, new byte[0]);
+    checkFile(file, new byte[0]);
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testOverwrite() throws IOException {
+    Path file = new Path("/overwritten");
+    writeFile(file, newData(2000));
+    byte[] data = newData(100);
+    writeFile(file, data);
+    checkFile(file, data);
+    writeFile(file, newData(2000));
+    checkFile(file, newData(2000));
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testRename() throws IOException {
+    Path src = new Path("/dir/src");
+    Path dst = new Path("/dir/dst");
+    byte[] data = newData(300);
+    writeFile(src, data);
+    assertTrue(grfs.rename(src, dst));
+    assertFalse(grfs.exists(src));
+    checkFile(dst, data);
+    assertTrue(grfs.delete(new Path("/dir"), true));
+  }
+
+  @Test
+  public void testReadWithoutThreshold() throws IOException {
+    Path file = new Path("/unaware");
+    byte[] data = newData(200);
+    writeFile(file, data);
+    // a client, which does not write inline files, still reads them
+    GiraffaConfiguration conf = new GiraffaConfiguration(grfs.getConf());
+    conf.setInt(GiraffaConfiguration.GRFA_CLIENT_INLINE_THRESHOLD_KEY, 0);
+    FileSystem reader = FileSystem.newInstance(conf);
+    try {
+      byte[] read = new byte[data.length];
+      FSDataInputStream in = reader.open(file, 5000);
+      in.readFully(read);
+      in.close();
+      assertArrayEquals(data, read);
+    } finally {
+      reader.close();
+    }
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testHflush() throws IOException {
+    Path file = new Path("/flushed");
+    byte[] data = newData(100);
+    FSDataOutputStream out = grfs.create(file, true, 5000, (short) 3, 512);
+    out.write(data);
+    out.hflush();
+    out.close();
+    // flushed data must be in blocks, the row is not written until close
+    assertNull(grfs.grfaClient.getInlineData("/flushed"));
+    checkFile(file, data);
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testSeekAndPositionedRead() throws IOException {
+    Path file = new Path("/seek");
+    byte[] data = newData(500);
+    writeFile(file, data);
+    FSDataInputStream in = grfs.open(file, 5000);
+    in.seek(100);
+    assertEquals(100, in.getPos());
+    assertEquals(data[100], (byte) in.read());
+    byte[] part = new byte[50];
+    in.readFully(400, part);
+    assertEquals(data[400], part[0]);
+    assertEquals(data[449], part[49]);
+    assertEquals(101, in.getPos());
+    in.close();
+    assertNotNull(grfs.grfaClient.getInlineData("/seek"));
+    assertTrue(grfs.delete(file, false));
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests listing of directories spanning multiple listing pages.
+ */
+public class TestListingIterator {
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private static final int LS_LIMIT = 10;
+  private static final int NUM_FILES = 35;
+  private static MiniHBaseCluster cluster;
+  private GiraffaFileSystem grfs;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    UTIL.getConfiguration().setInt(
+        GiraffaConfiguration.GRFA_LIST_LIMIT_KEY, LS_LIMIT);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    GiraffaConfiguration conf =
+        new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+  }
+
+  @After
+  public void after() throws IOException {
+    if(grfs != null) grfs.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  private static String fileName(int i) {
+    return String.format("file%03d", i);
+  }
+
+  @Test
+  public void testMultiPageListing() throws IOException {
+    Path dir = new Path("/dir");
+    grfs.mkdirs(dir);
+    for(int i = 0; i < NUM_FILES; i++)
+      grfs.create(new Path(dir, fileName(i))).close();
+
+    RemoteIterator<FileStatus> it = grfs.listStatusIterator(dir);
+    for(int i = 0; i < NUM_FILES; i++) {
+      assertEquals(fileName(i), it.next().getPath().getName());
+    }
+    assertFalse(it.hasNext());
+    try {
+      it.next();
+      fail("iterator should be exhausted");
+    } catch(NoSuchElementException e) {
+      // expected
+    }
+
+    FileStatus[] statuses = grfs.listStatus(dir);
+    assertEquals(NUM_FILES, statuses.length);
+    for(int i = 0; i < NUM_FILES; i++)
+      assertEquals(fileName(i), statuses[i].getPath().getName());
+  }
+
+  @Test
+  public void testEmptyDirectory() throws IOException {
+    Path dir = new Path("/empty");
+    grfs.mkdirs(dir);
+    assertFalse(grfs.listStatusIterator(dir).hasNext());
+    assertEquals(0, grfs.listStatus(dir).length);
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void testMissingDirectory() throws IOException {
+    grfs.listStatusIterator(new Path("/missing"));
+  }
+}
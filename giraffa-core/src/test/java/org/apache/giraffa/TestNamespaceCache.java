@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the client side namespace cache of NamespaceAgent.
+ */
+public class TestNamespaceCache {
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private static final FsPermission PERM_A = new FsPermission((short) 0644);
+  private static final FsPermission PERM_B = new FsPermission((short) 0600);
+  private static MiniHBaseCluster cluster;
+  private GiraffaConfiguration conf;
+  private GiraffaFileSystem grfs;
+  private GiraffaFileSystem other;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    conf = new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    conf.setBoolean(GiraffaConfiguration.GRFA_CLIENT_CACHE_ENABLED_KEY, true);
+    // long enough for entries not to expire during a test
+    conf.setLong(GiraffaConfiguration.GRFA_CLIENT_CACHE_TTL_KEY, 600000L);
+    GiraffaFileSystem.format(conf, false);
+  }
+
+  @After
+  public void after() throws IOException {
+    if(grfs != null) grfs.close();
+    if(other != null) other.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  private void open(boolean useToken) throws IOException {
+    conf.setBoolean(GiraffaConfiguration.GRFA_CLIENT_CACHE_TOKEN_KEY, useToken);
+    grfs = (GiraffaFileSystem) FileSystem.newInstance(conf);
+    other = (GiraffaFileSystem) FileSystem.newInstance(conf);
+  }
+
+  @Test
+  public void testLocalInvalidation() throws IOException {
+    open(false);
+    Path dir = new Path("/dir");
+    Path file = new Path(dir, "file");
+    grfs.mkdirs(dir);
+    assertEquals(0, grfs.listStatus(dir).length);
+    grfs.create(file).close();
+    assertEquals(1, grfs.listStatus(dir).length);
+
+    grfs.setPermission(file, PERM_A);
+    assertEquals(PERM_A, grfs.getFileStatus(file).getPermission());
+    grfs.setPermission(file, PERM_B);
+    assertEquals(PERM_B, grfs.getFileStatus(file).getPermission());
+
+    Path renamed = new Path("/renamed");
+    assertTrue(grfs.rename(dir, renamed));
+    assertFalse(grfs.exists(file));
+    assertTrue(grfs.exists(new Path(renamed, "file")));
+
+    assertTrue(grfs.delete(renamed, true));
+    assertFalse(grfs.exists(new Path(renamed, "file")));
+    assertEquals(0, grfs.listStatus(new Path("/")).length);
+  }
+
+  @Test
+  public void testRemoteChangeWithinTtl() throws IOException {
+    open(false);
+    Path file = new Path("/file");
+    grfs.create(file).close();
+    grfs.setPermission(file, PERM_A);
+    assertEquals(PERM_A, grfs.getFileStatus(file).getPermission());
+
+    other.setPermission(file, PERM_B);
+    // not re-validated until the entry expires
+    assertEquals(PERM_A, grfs.getFileStatus(file).getPermission());
+  }
+
+  @Test
+  public void testConsistencyToken() throws IOException {
+    open(true);
+    Path file = new Path("/file");
+    grfs.create(file).close();
+    grfs.setPermission(file, PERM_A);
+    assertEquals(PERM_A, grfs.getFileStatus(file).getPermission());
+
+    other.setPermission(file, PERM_B);
+    assertEquals(PERM_B, grfs.getFileStatus(file).getPermission());
+
+    other.delete(file, false);
+    assertFalse(grfs.exists(file));
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.hdfs.protocol.LocatedBlocks;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests files, whose first block is allocated by create.
+ */
+public class TestPreallocatedBlock {
+  private static MiniHBaseCluster cluster;
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private GiraffaFileSystem grfs;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    UTIL.getConfiguration().setBoolean(
+        GiraffaConfiguration.GRFA_PREALLOCATE_BLOCK_KEY, true);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    GiraffaConfiguration conf =
+        new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+  }
+
+  @After
+  public void after() throws IOException {
+    if(grfs != null) grfs.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws IOException {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  private void writeFile(Path file, int length) throws IOException {
+    FSDataOutputStream out = grfs.create(file, true, 5000, (short) 3, 512);
+    for(int i = 0; i < length; i++) {
+      out.write('A');
+    }
+    out.close();
+  }
+
+  private void checkFile(Path file, int length) throws IOException {
+    assertEquals(length, grfs.getFileStatus(file).getLen());
+    FSDataInputStream in = grfs.open(file, 5000);
+    for(int i = 0; i < length; i++) {
+      assertEquals('A', in.readByte());
+    }
+    assertEquals(-1, in.read());
+    in.close();
+  }
+
+  @Test
+  public void testSingleBlockFile() throws IOException {
+    Path file = new Path("/single");
+    writeFile(file, 300);
+    checkFile(file, 300);
+    LocatedBlocks blocks =
+        grfs.grfaClient.getLocatedBlocks("/single", 0, 300);
+    assertEquals(1, blocks.locatedBlockCount());
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testMultiBlockFile() throws IOException {
+    Path file = new Path("/multi");
+    writeFile(file, 2000);
+    checkFile(file, 2000);
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    Path file = new Path("/empty");
+    writeFile(file, 0);
+    checkFile(file, 0);
+    LocatedBlocks blocks = grfs.grfaClient.getLocatedBlocks("/empty", 0, 0);
+    assertEquals(0, blocks.locatedBlockCount());
+    assertTrue(grfs.delete(file, false));
+  }
+
+  @Test
+  public void testOverwrite() throws IOException {
+    Path file = new Path("/overwritten");
+    writeFile(file, 2000);
+    writeFile(file, 100);
+    checkFile(file, 100);
+    assertTrue(grfs.delete(file, false));
+  }
+}
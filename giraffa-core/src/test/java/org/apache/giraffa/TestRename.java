@@ -544,4 +544,20 @@ public class TestRename {
     createTestFile("/x/y/a/b/c/2", 'y');
     renameDir("/x/y/a", "/x/y/a/newA", false);
   }
+
+  @Test
+  public void testDirRenameInRegionLeavesNoRenameFlags() throws IOException {
+    grfs.mkdirs(new Path("/a/b/c"));
+    createTestFile("/a/1", 't');
+    createTestFile("/a/b/1", 'v');
+    createTestFile("/a/b/c/1", 'x');
+    renameDir("/a", "/newA", false);
+    for(String path : new String[] {"/newA", "/newA/1", "/newA/b",
+        "/newA/b/1", "/newA/b/c", "/newA/b/c/1"}) {
+      INode node = nodeManager.getINode(path);
+      assertTrue(path + " not found", node != null);
+      assertFalse(path + " has rename flag",
+          node.getRenameState().getFlag());
+    }
+  }
 }
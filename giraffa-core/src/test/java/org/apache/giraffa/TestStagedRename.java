@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.giraffa.hbase.INodeManager;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.HBaseCommonTestingUtility;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.hbase.coprocessor.CoprocessorHost;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests directory rename through the staged protocol with batched and
+ * parallel updates of the subtree, bypassing the atomic in-region rename.
+ */
+public class TestStagedRename {
+  private static final int DIRS = 5;
+  private static final int FILES = 5;
+
+  private static MiniHBaseCluster cluster;
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private GiraffaFileSystem grfs;
+  private INodeManager nodeManager;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseCommonTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    Configuration conf = UTIL.getConfiguration();
+    conf.setInt(GiraffaConfiguration.GRFA_RENAME_ATOMIC_MAX_ROWS_KEY, 0);
+    conf.setInt(GiraffaConfiguration.GRFA_RENAME_BATCH_SIZE_KEY, 2);
+    conf.setInt(GiraffaConfiguration.GRFA_SUBTREE_THREADS_KEY, 3);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    GiraffaConfiguration conf =
+        new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+    CoprocessorEnvironment env = new CoprocessorHost.Environment(
+        null, 0, 0, cluster.getConfiguration());
+    nodeManager = new INodeManager(conf, env);
+  }
+
+  @After
+  public void after() throws IOException {
+    if(grfs != null) grfs.close();
+    if(nodeManager != null) nodeManager.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws IOException {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  private void createTestFile(Path path, char c) throws IOException {
+    FSDataOutputStream out = grfs.create(path, true, 5000, (short) 3, 512);
+    out.write(c);
+    out.close();
+  }
+
+  private char readFile(Path path) throws IOException {
+    FSDataInputStream input = grfs.open(path);
+    try {
+      return (char) input.read();
+    } finally {
+      input.close();
+    }
+  }
+
+  private void assertRenamed(Path path) throws IOException {
+    INode node = nodeManager.getINode(path.toUri().getPath());
+    assertTrue(path + " not found", node != null);
+    assertFalse(path + " has rename flag", node.getRenameState().getFlag());
+  }
+
+  @Test
+  public void testDirRenameInBatches() throws IOException {
+    Path src = new Path("/src");
+    Path dst = new Path("/dst");
+    for(int d = 0; d < DIRS; d++) {
+      Path dir = new Path(src, "d" + d + "/sub");
+      grfs.mkdirs(dir);
+      for(int f = 0; f < FILES; f++) {
+        createTestFile(new Path(dir, "f" + f), (char) ('a' + f));
+      }
+    }
+
+    assertTrue(grfs.rename(src, dst));
+    assertFalse(grfs.exists(src));
+    assertRenamed(dst);
+    for(int d = 0; d < DIRS; d++) {
+      assertRenamed(new Path(dst, "d" + d));
+      Path dir = new Path(dst, "d" + d + "/sub");
+      assertRenamed(dir);
+      assertEquals(FILES, grfs.listStatus(dir).length);
+      for(int f = 0; f < FILES; f++) {
+        Path file = new Path(dir, "f" + f);
+        assertRenamed(file);
+        assertEquals((char) ('a' + f), readFile(file));
+      }
+    }
+  }
+}
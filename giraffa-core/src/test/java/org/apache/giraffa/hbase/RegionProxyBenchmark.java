@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.hadoop.hdfs.protocol.ClientProtocol;
+import org.apache.hadoop.hdfs.protocol.proto.ClientNamenodeProtocolProtos.ClientNamenodeProtocol;
+import org.apache.hadoop.hdfs.protocolPB.ClientNamenodeProtocolPB;
+import org.apache.hadoop.hdfs.protocolPB.ClientNamenodeProtocolTranslatorPB;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcController;
+
+/**
+ * Microbenchmark for the per-call overhead of the client side
+ * ClientProtocol proxy used by {@link NamespaceAgent}.
+ * Compares building a reflective proxy on every call, which is how
+ * NamespaceAgent used to dispatch calls, with a cached proxy dispatching
+ * directly through {@link ClientNamenodeProtocolStubPB}.
+ * The rpc channel is replaced with a stub returning empty responses, so
+ * that only the client side dispatch is measured.
+ * <p>
+ * Usage: RegionProxyBenchmark [numCalls]
+ */
+public class RegionProxyBenchmark {
+  private static final String SRC = "/benchmark/file";
+
+  /** Rpc channel, which returns default response without remote call. */
+  private static final BlockingRpcChannel CHANNEL = new BlockingRpcChannel() {
+    @Override
+    public Message callBlockingMethod(MethodDescriptor method,
+        RpcController controller, Message request, Message responsePrototype) {
+      return responsePrototype;
+    }
+  };
+
+  /** Creates the proxy the way NamespaceAgent did before caching. */
+  private static ClientProtocol newReflectiveProxy() {
+    final ClientNamenodeProtocol.BlockingInterface stub =
+        ClientNamenodeProtocol.newBlockingStub(CHANNEL);
+    InvocationHandler handler = new InvocationHandler(){
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args)
+          throws Throwable {
+        try {
+          return method.invoke(stub, args);
+        } catch(InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    };
+    Class<ClientNamenodeProtocolPB> classObj = ClientNamenodeProtocolPB.class;
+    ClientNamenodeProtocolPB clientPB =
+        (ClientNamenodeProtocolPB) Proxy.newProxyInstance(
+            classObj.getClassLoader(), new Class[]{classObj}, handler);
+    return new ClientNamenodeProtocolTranslatorPB(clientPB);
+  }
+
+  private static ClientProtocol newDirectProxy() {
+    return new ClientNamenodeProtocolTranslatorPB(
+        new ClientNamenodeProtocolStubPB(
+            ClientNamenodeProtocol.newBlockingStub(CHANNEL)));
+  }
+
+  private static long runUncached(int numCalls) throws IOException {
+    long start = System.nanoTime();
+    for(int i = 0; i < numCalls; i++) {
+      newReflectiveProxy().getFileInfo(SRC);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long runCached(ClientProtocol proxy, int numCalls)
+      throws IOException {
+    long start = System.nanoTime();
+    for(int i = 0; i < numCalls; i++) {
+      proxy.getFileInfo(SRC);
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, long nanos, int numCalls) {
+    System.out.println(String.format("%-28s %10.1f ns/call",
+        name, (double) nanos / numCalls));
+  }
+
+  public static void main(String[] args) throws IOException {
+    int numCalls = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    ClientProtocol reflective = newReflectiveProxy();
+    ClientProtocol direct = newDirectProxy();
+
+    // warm up
+    runUncached(numCalls / 10);
+    runCached(reflective, numCalls / 10);
+    runCached(direct, numCalls / 10);
+
+    report("new reflective proxy", runUncached(numCalls), numCalls);
+    report("cached reflective proxy",
+        runCached(reflective, numCalls), numCalls);
+    report("cached direct proxy", runCached(direct, numCalls), numCalls);
+  }
+}
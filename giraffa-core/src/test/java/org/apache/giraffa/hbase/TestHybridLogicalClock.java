@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.util.Time;
+import org.junit.Test;
+
+/**
+ * Tests timestamps generated by {@link HybridLogicalClock}.
+ */
+public class TestHybridLogicalClock {
+
+  @Test
+  public void testMonotonic() {
+    HybridLogicalClock clock = new HybridLogicalClock();
+    long start = Time.now();
+    long prev = clock.next();
+    assertTrue(prev >= start);
+    for(int i = 0; i < 100000; i++) {
+      long ts = clock.next();
+      assertTrue(ts > prev);
+      prev = ts;
+    }
+    assertTrue(clock.current() == prev);
+  }
+
+  @Test
+  public void testUpdate() {
+    HybridLogicalClock clock = new HybridLogicalClock();
+    long future = Time.now() + 60000;
+    clock.update(future);
+    assertTrue(clock.next() > future);
+    // observing an older timestamp does not move the clock back
+    clock.update(0);
+    assertTrue(clock.next() > future + 1);
+  }
+}
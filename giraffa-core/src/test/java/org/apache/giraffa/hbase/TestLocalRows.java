@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.giraffa.FileField;
+import org.apache.giraffa.GiraffaConfiguration;
+import org.apache.giraffa.GiraffaFileSystem;
+import org.apache.giraffa.GiraffaTestUtils;
+import org.apache.giraffa.INode;
+import org.apache.giraffa.RowKeyFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that INodeManager serves rows of its region directly from the
+ * region, rows of other regions through the table client, and falls back
+ * to the table client when its region no longer serves.
+ * The region of the manager is a standalone region holding a copy of the
+ * row of a single file.
+ */
+public class TestLocalRows {
+  private static final String LOCAL = "/local";
+  private static final String REMOTE = "/remote";
+  private static MiniHBaseCluster cluster;
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private GiraffaConfiguration conf;
+  private GiraffaFileSystem grfs;
+  private HTable nsTable;
+  private HRegion region;
+  private final AtomicInteger tableCalls = new AtomicInteger();
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    conf = new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+    nsTable = new HTable(conf, conf.get(
+        GiraffaConfiguration.GRFA_TABLE_NAME_KEY,
+        GiraffaConfiguration.GRFA_TABLE_NAME_DEFAULT));
+    grfs.create(new Path(LOCAL)).close();
+    grfs.create(new Path(REMOTE)).close();
+
+    // a region holding only the row of the local file
+    byte[] key = RowKeyFactory.newInstance(LOCAL).getKey();
+    HTableDescriptor htd = new HTableDescriptor(TableName.valueOf("local"));
+    htd.addFamily(new HColumnDescriptor(FileField.getFileAttributes()));
+    htd.addFamily(new HColumnDescriptor(FileField.getUsage()));
+    HRegionInfo info = new HRegionInfo(htd.getTableName(), key,
+        Bytes.add(key, new byte[] {0}));
+    region = HRegion.createHRegion(info,
+        new Path(UTIL.getDataTestDir(), "local"), conf, htd);
+    Put put = new Put(key);
+    for(KeyValue kv : nsTable.get(new Get(key)).raw()) {
+      put.add(kv);
+    }
+    region.put(put);
+  }
+
+  @After
+  public void after() throws IOException {
+    if(region != null && !region.isClosed()) HRegion.closeHRegion(region);
+    if(nsTable != null) nsTable.close();
+    if(grfs != null) grfs.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws IOException {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  /**
+   * Environment of the standalone region, whose table client counts
+   * the calls it forwards to the namespace table.
+   */
+  private RegionCoprocessorEnvironment newEnvironment() {
+    final HTableInterface table = (HTableInterface) Proxy.newProxyInstance(
+        HTableInterface.class.getClassLoader(),
+        new Class<?>[] {HTableInterface.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args)
+              throws Throwable {
+            // the namespace table is shared with the test
+            if(method.getName().equals("close"))
+              return null;
+            tableCalls.incrementAndGet();
+            try {
+              return method.invoke(nsTable, args);
+            } catch(InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+    return (RegionCoprocessorEnvironment) Proxy.newProxyInstance(
+        RegionCoprocessorEnvironment.class.getClassLoader(),
+        new Class<?>[] {RegionCoprocessorEnvironment.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if(method.getName().equals("getRegion"))
+              return region;
+            if(method.getName().equals("getTable"))
+              return table;
+            if(method.getName().equals("getConfiguration"))
+              return conf;
+            return null;
+          }
+        });
+  }
+
+  private static Get newPermissionGet() throws IOException {
+    Get get = new Get(RowKeyFactory.newInstance(LOCAL).getKey());
+    get.addColumn(FileField.getFileAttributes(), FileField.getPermissions());
+    return get;
+  }
+
+  @Test
+  public void testLocalRowsAreServedByRegion() throws IOException {
+    INodeManager nodeManager = new INodeManager(conf, newEnvironment());
+    try {
+      INode node = nodeManager.getINode(LOCAL);
+      assertNotNull(node);
+      assertEquals(0, tableCalls.get());
+
+      node.setPermission(new FsPermission((short) 0600));
+      nodeManager.updateINode(node);
+      assertEquals(0, tableCalls.get());
+      assertEquals(new FsPermission((short) 0600),
+          nodeManager.getINode(LOCAL).getPermission());
+      // written to the region only
+      assertFalse(Bytes.equals(region.get(newPermissionGet()).value(),
+          nsTable.get(newPermissionGet()).value()));
+    } finally {
+      nodeManager.close();
+    }
+  }
+
+  @Test
+  public void testRemoteRowsAreServedByTable() throws IOException {
+    INodeManager nodeManager = new INodeManager(conf, newEnvironment());
+    try {
+      assertNotNull(nodeManager.getINode(REMOTE));
+      assertEquals(1, tableCalls.get());
+    } finally {
+      nodeManager.close();
+    }
+  }
+
+  @Test
+  public void testClosedRegionFallsBackToTable() throws IOException {
+    INodeManager nodeManager = new INodeManager(conf, newEnvironment());
+    try {
+      HRegion.closeHRegion(region);
+      // the local row is now read from the namespace table
+      assertNotNull(nodeManager.getINode(LOCAL));
+      assertEquals(1, tableCalls.get());
+    } finally {
+      nodeManager.close();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.giraffa.hbase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+
+import org.apache.giraffa.DirectoryUsage;
+import org.apache.giraffa.FileField;
+import org.apache.giraffa.GiraffaConfiguration;
+import org.apache.giraffa.GiraffaFileSystem;
+import org.apache.giraffa.GiraffaTestUtils;
+import org.apache.giraffa.RowKeyFactory;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.MiniHBaseCluster;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests usage intents replayed and usage deltas folded by the usage journal.
+ */
+public class TestUsageJournal {
+  private static final long INTERVAL = 100;
+  private static MiniHBaseCluster cluster;
+  private static final HBaseTestingUtility UTIL =
+                                  GiraffaTestUtils.getHBaseTestingUtility();
+  private GiraffaFileSystem grfs;
+  private HTable nsTable;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    System.setProperty(
+        HBaseTestingUtility.BASE_TEST_DIRECTORY_KEY,
+        GiraffaTestUtils.BASE_TEST_DIRECTORY);
+    UTIL.getConfiguration().setLong(
+        GiraffaConfiguration.GRFA_USAGE_JOURNAL_INTERVAL_KEY, INTERVAL);
+    cluster = UTIL.startMiniCluster(1);
+  }
+
+  @Before
+  public void before() throws IOException {
+    GiraffaConfiguration conf =
+        new GiraffaConfiguration(UTIL.getConfiguration());
+    GiraffaTestUtils.setGiraffaURI(conf);
+    GiraffaFileSystem.format(conf, false);
+    grfs = (GiraffaFileSystem) FileSystem.get(conf);
+    nsTable = new HTable(conf, conf.get(
+        GiraffaConfiguration.GRFA_TABLE_NAME_KEY,
+        GiraffaConfiguration.GRFA_TABLE_NAME_DEFAULT));
+  }
+
+  @After
+  public void after() throws IOException {
+    if(nsTable != null) nsTable.close();
+    if(grfs != null) grfs.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws IOException {
+    if(cluster != null) cluster.shutdown();
+  }
+
+  private NavigableMap<byte[], byte[]> getUsageCells(String path)
+      throws IOException {
+    Get get = new Get(RowKeyFactory.newInstance(path).getKey());
+    get.addFamily(FileField.getUsage());
+    return nsTable.get(get).getFamilyMap(FileField.getUsage());
+  }
+
+  private static int count(NavigableMap<byte[], byte[]> cells, byte kind) {
+    int n = 0;
+    if(cells != null) {
+      for(byte[] column : cells.keySet()) {
+        if(column[0] == kind)
+          n++;
+      }
+    }
+    return n;
+  }
+
+  @Test
+  public void testIntentIsReplayed() throws Exception {
+    Path file = new Path("/replayed/file");
+    grfs.create(file).close();
+    assertEquals(0, grfs.getContentSummary(file.getParent()).getLength());
+
+    // an intent left by an operation interrupted before applying it
+    long ts = System.currentTimeMillis() - 10 * INTERVAL;
+    Put put = new Put(RowKeyFactory.newInstance(file.toString()).getKey());
+    put.add(FileField.getUsage(),
+        UsageJournal.newColumn(UsageJournal.INTENT, ts), ts,
+        UsageJournal.newIntent(file.toString(),
+            new DirectoryUsage(0, 0, 10, 30)));
+    nsTable.put(put);
+
+    long deadline = System.currentTimeMillis() + 100 * INTERVAL;
+    while(grfs.getContentSummary(file.getParent()).getLength() == 0 &&
+        System.currentTimeMillis() < deadline) {
+      Thread.sleep(INTERVAL);
+    }
+    ContentSummary summary = grfs.getContentSummary(file.getParent());
+    assertEquals(10, summary.getLength());
+    assertEquals(30, summary.getSpaceConsumed());
+    assertEquals(1, summary.getFileCount());
+    assertEquals(10, grfs.getContentSummary(new Path("/")).getLength());
+    assertEquals(0, count(getUsageCells(file.toString()),
+        UsageJournal.INTENT));
+  }
+
+  @Test
+  public void testDeltasAreFolded() throws Exception {
+    Path dir = new Path("/folded");
+    for(int i = 0; i < 5; i++) {
+      FSDataOutputStream out =
+          grfs.create(new Path(dir, "file" + i), true, 4096, (short) 3, 512);
+      out.write(new byte[10]);
+      out.close();
+    }
+
+    long deadline = System.currentTimeMillis() + 100 * INTERVAL;
+    while(count(getUsageCells(dir.toString()), UsageJournal.DELTA) > 0 &&
+        System.currentTimeMillis() < deadline) {
+      Thread.sleep(INTERVAL);
+    }
+    NavigableMap<byte[], byte[]> cells = getUsageCells(dir.toString());
+    assertNotNull(cells);
+    assertEquals(0, count(cells, UsageJournal.DELTA));
+    assertEquals(1, count(cells, UsageJournal.BASE));
+    ContentSummary summary = grfs.getContentSummary(dir);
+    assertEquals(50, summary.getLength());
+    assertEquals(5, summary.getFileCount());
+    assertEquals(150, summary.getSpaceConsumed());
+  }
+
+  @Test
+  public void testDeletedDirectoryLeavesNoUsage() throws Exception {
+    Path dir = new Path("/deleted/dir");
+    grfs.create(new Path(dir, "file")).close();
+    assertTrue(grfs.delete(dir, true));
+    NavigableMap<byte[], byte[]> cells = getUsageCells(dir.toString());
+    assertEquals(0, count(cells, UsageJournal.BASE));
+    assertEquals(0, count(cells, UsageJournal.DELTA));
+    assertTrue(grfs.mkdirs(dir));
+    ContentSummary summary = grfs.getContentSummary(dir);
+    assertEquals(0, summary.getFileCount());
+    assertEquals(1, summary.getDirectoryCount());
+  }
+}